@@ -0,0 +1,430 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Binary snapshot of a mailing list system: the definitions as an encoded AST, and optionally the
+ * member sets already computed for them, so a large system loads without parsing or evaluating
+ * anything. Text snapshots (Snapshot) keep working; Snapshot.load recognizes both.
+ *
+ * Layout, big endian, version 1:
+ *   magic "NORNSNAP", int version, int flags (HAS_MEMBERS)
+ *   strings:  int count, then for each: int length, UTF-8 bytes
+ *   nodes:    int count, then for each, children before parents: byte tag and
+ *               EMPTY                                          nothing
+ *               EMAIL, LIST                                    int string
+ *               UNION, INTERSECTION, DIFFERENCE, SEQUENCE,
+ *               PARALLEL                                       int left node, int right node
+ *               NARY_UNION, NARY_INTERSECTION                  int count, int node for each operand
+ *               DEFINITION                                     int name string, int node
+ *   lists:    int count, then for each: int name string, int node
+ *   if HAS_MEMBERS
+ *     dictionary: int count, then for each address, in sorted order: int string
+ *     members:    int count, then for each list: int name string, int count, ascending dictionary indexes
+ *   long CRC32 of everything before it
+ *
+ * Shared subexpressions (the factory hash-conses them) are stored once. Member sets are only saved
+ * for lists whose cached members are current, and only restored into a ListNamespace.
+ *
+ * The file is read through a read-only memory map, so it must be smaller than 2 GiB.
+ *
+ */
+final class BinarySnapshot {
+
+    private static final byte[] MAGIC = "NORNSNAP".getBytes(UTF_8);
+    private static final int VERSION = 1;
+    private static final int HAS_MEMBERS = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int CHECKSUM_BYTES = Long.BYTES;
+
+    private static final byte EMPTY = 0;
+    private static final byte EMAIL = 1;
+    private static final byte LIST = 2;
+    private static final byte UNION = 3;
+    private static final byte INTERSECTION = 4;
+    private static final byte DIFFERENCE = 5;
+    private static final byte NARY_UNION = 6;
+    private static final byte NARY_INTERSECTION = 7;
+    private static final byte DEFINITION = 8;
+    private static final byte SEQUENCE = 9;
+    private static final byte PARALLEL = 10;
+
+    // uninstantiable
+    private BinarySnapshot() {
+    }
+
+    /**
+     * Atomically replaces file with a binary snapshot of map
+     *
+     * @param map map that maps mailing lists names to their expression
+     * @param file where to save; its directory is created if needed
+     * @param withMembers true to also save the member sets map has cached, if it is a ListNamespace
+     * @throws IOException if the snapshot cannot be written, in which case file is left unchanged
+     */
+    public static void save(Map<String, Expression> map, Path file, boolean withMembers) throws IOException {
+        // definitions and members taken together, so a list redefined meanwhile is not saved with the
+        // members of its other definition
+        final Map<String, EmailSet> cached = new LinkedHashMap<String, EmailSet>();
+        final Map<String, Expression> lists = map instanceof ListNamespace
+                ? ((ListNamespace) map).copy(cached) : new LinkedHashMap<String, Expression>(map);
+        final Map<String, EmailSet> members = new LinkedHashMap<String, EmailSet>();
+        if (withMembers) {
+            for (Map.Entry<String, EmailSet> entry : cached.entrySet()) {
+                if (ListAnalysis.of(lists.get(entry.getKey())).defined().isEmpty()) {
+                    members.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        final Encoder encoder = new Encoder();
+        final int[] roots = new int[lists.size()];
+        int i = 0;
+        for (Expression definition : lists.values()) {
+            roots[i++] = encoder.node(definition);
+        }
+        final String[] dictionary = EmailDictionary.sortedAddresses(EmailSet.union(List.copyOf(members.values())));
+        final int[] dictionaryStrings = new int[dictionary.length];
+        int maxId = -1;
+        for (String address : dictionary) {
+            maxId = Math.max(maxId, EmailDictionary.id(address));
+        }
+        final int[] indexOfId = new int[maxId + 1];
+        for (int j = 0; j < dictionary.length; j++) {
+            dictionaryStrings[j] = encoder.string(dictionary[j]);
+            indexOfId[EmailDictionary.id(dictionary[j])] = j;
+        }
+        for (String name : lists.keySet()) {
+            encoder.string(name);
+        }
+
+        Snapshot.writeAtomically(file, body -> {
+            final CRC32 checksum = new CRC32();
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(body, checksum), BUFFER_SIZE));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(withMembers ? HAS_MEMBERS : 0);
+            encoder.writeTo(out);
+            out.writeInt(lists.size());
+            int root = 0;
+            for (String name : lists.keySet()) {
+                out.writeInt(encoder.string(name));
+                out.writeInt(roots[root++]);
+            }
+            if (withMembers) {
+                out.writeInt(dictionaryStrings.length);
+                for (int string : dictionaryStrings) {
+                    out.writeInt(string);
+                }
+                out.writeInt(members.size());
+                for (Map.Entry<String, EmailSet> entry : members.entrySet()) {
+                    final int[] indexes = new int[entry.getValue().cardinality()];
+                    final int[] n = {0};
+                    entry.getValue().forEach(id -> indexes[n[0]++] = indexOfId[id]);
+                    Arrays.sort(indexes);
+                    out.writeInt(encoder.string(entry.getKey()));
+                    out.writeInt(indexes.length);
+                    for (int index : indexes) {
+                        out.writeInt(index);
+                    }
+                }
+            }
+            out.flush();
+            out.writeLong(checksum.getValue());
+            out.flush();
+        });
+    }
+
+    /**
+     * @param file a file
+     * @return true iff file starts like a binary snapshot
+     * @throws IOException if file cannot be read
+     */
+    public static boolean isBinary(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(MAGIC, in.readNBytes(MAGIC.length));
+        }
+    }
+
+    /**
+     * Puts the definitions of a binary snapshot into map, without evaluating them, and primes the
+     * member cache of map with the saved sets if it is a ListNamespace
+     *
+     * @param file binary snapshot written by save
+     * @param map map that maps mailing lists names to their expression
+     * @throws IOException if file cannot be read, is not a binary snapshot of a known version, or is
+     *                     corrupt, in which case map is left unchanged
+     */
+    public static void load(Path file, Map<String, Expression> map) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final int end = buffer.limit() - CHECKSUM_BYTES;
+        if (end < MAGIC.length + 2 * Integer.BYTES) {
+            throw new IOException(file + " is corrupt: truncated");
+        }
+        final CRC32 checksum = new CRC32();
+        checksum.update(buffer.slice(0, end));
+        if (buffer.getLong(end) != checksum.getValue()) {
+            throw new IOException(file + " is corrupt: checksum does not match");
+        }
+
+        final Map<String, Expression> lists = new LinkedHashMap<String, Expression>();
+        final Map<String, EmailSet> members = new HashMap<String, EmailSet>();
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            final int version = buffer.getInt();
+            if (!Arrays.equals(MAGIC, magic) || version != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " binary snapshot");
+            }
+            final int flags = buffer.getInt();
+            final String[] strings = readStrings(buffer);
+            final Expression[] nodes = readNodes(buffer, strings);
+            for (int i = buffer.getInt(); i > 0; i--) {
+                lists.put(strings[buffer.getInt()], nodes[buffer.getInt()]);
+            }
+            if ((flags & HAS_MEMBERS) != 0) {
+                final int[] ids = new int[buffer.getInt()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = EmailDictionary.id(strings[buffer.getInt()]);
+                }
+                for (int i = buffer.getInt(); i > 0; i--) {
+                    final String name = strings[buffer.getInt()];
+                    final EmailSet.Builder set = new EmailSet.Builder();
+                    for (int j = buffer.getInt(); j > 0; j--) {
+                        set.add(ids[buffer.getInt()]);
+                    }
+                    members.put(name, set.build());
+                }
+            }
+            if (buffer.position() != end) {
+                throw new IOException(file + " is corrupt: unexpected length");
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+
+        map.putAll(lists);
+        if (map instanceof ListNamespace) {
+            for (Map.Entry<String, EmailSet> entry : members.entrySet()) {
+                ((ListNamespace) map).prime(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        final String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, UTF_8);
+        }
+        return strings;
+    }
+
+    // children are always read before their parents, so no node needs recursion
+    private static Expression[] readNodes(ByteBuffer buffer, String[] strings) {
+        final Expression[] nodes = new Expression[buffer.getInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            final byte tag = buffer.get();
+            switch (tag) {
+            case EMPTY:
+                nodes[i] = ExpressionFactory.empty();
+                break;
+            case EMAIL:
+                nodes[i] = ExpressionFactory.email(strings[buffer.getInt()]);
+                break;
+            case LIST:
+                nodes[i] = ExpressionFactory.mailingList(strings[buffer.getInt()]);
+                break;
+            case UNION:
+                nodes[i] = ExpressionFactory.union(nodes[buffer.getInt()], nodes[buffer.getInt()]);
+                break;
+            case INTERSECTION:
+                nodes[i] = ExpressionFactory.intersection(nodes[buffer.getInt()], nodes[buffer.getInt()]);
+                break;
+            case DIFFERENCE:
+                nodes[i] = ExpressionFactory.difference(nodes[buffer.getInt()], nodes[buffer.getInt()]);
+                break;
+            case SEQUENCE:
+                nodes[i] = ExpressionFactory.sequence(nodes[buffer.getInt()], nodes[buffer.getInt()]);
+                break;
+            case PARALLEL:
+                nodes[i] = ExpressionFactory.parallel(nodes[buffer.getInt()], nodes[buffer.getInt()]);
+                break;
+            case NARY_UNION:
+                nodes[i] = ExpressionFactory.naryUnion(readOperands(buffer, nodes));
+                break;
+            case NARY_INTERSECTION:
+                nodes[i] = ExpressionFactory.naryIntersection(readOperands(buffer, nodes));
+                break;
+            case DEFINITION:
+                nodes[i] = ExpressionFactory.listDefinition(strings[buffer.getInt()], nodes[buffer.getInt()]);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown node tag " + tag);
+            }
+            if (nodes[i] == null) {
+                throw new IllegalArgumentException("node " + i + " refers to a later node");
+            }
+        }
+        return nodes;
+    }
+
+    private static List<Expression> readOperands(ByteBuffer buffer, Expression[] nodes) {
+        final Expression[] operands = new Expression[buffer.getInt()];
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = nodes[buffer.getInt()];
+        }
+        return Arrays.asList(operands);
+    }
+
+    /**
+     * The string table and node table of a snapshot being written
+     */
+    private static final class Encoder {
+        private final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        private final Map<Expression, Integer> nodes = new IdentityHashMap<Expression, Integer>();
+        private final List<int[]> encoded = new ArrayList<int[]>();
+
+        // index of s in the string table, added if needed
+        private int string(String s) {
+            return this.strings.computeIfAbsent(s, k -> this.strings.size());
+        }
+
+        // index of expr in the node table, added after its children if needed
+        private int node(Expression expr) {
+            final Deque<Expression> pending = new ArrayDeque<Expression>();
+            pending.push(expr);
+            while (!pending.isEmpty()) {
+                final Expression current = pending.peek();
+                if (this.nodes.containsKey(current)) {
+                    pending.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (Expression child : children(current)) {
+                    if (!this.nodes.containsKey(child)) {
+                        pending.push(child);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    pending.pop();
+                    this.encoded.add(this.encode(current));
+                    this.nodes.put(current, this.nodes.size());
+                }
+            }
+            return this.nodes.get(expr);
+        }
+
+        // tag and operands of expr, whose children are all in the node table
+        private int[] encode(Expression expr) {
+            if (expr instanceof Email) {
+                return new int[] { EMAIL, this.string(expr.toString()) };
+            } else if (expr instanceof MailingList) {
+                return new int[] { LIST, this.string(((MailingList) expr).getName()) };
+            } else if (expr instanceof ListDefinition) {
+                final ListDefinition e = (ListDefinition) expr;
+                return new int[] { DEFINITION, this.string(e.getName()), this.nodes.get(e.getExpr()) };
+            } else if (expr instanceof NaryUnion || expr instanceof NaryIntersection) {
+                final List<Expression> operands = children(expr);
+                final int[] out = new int[operands.size() + 2];
+                out[0] = expr instanceof NaryUnion ? NARY_UNION : NARY_INTERSECTION;
+                out[1] = operands.size();
+                for (int i = 0; i < operands.size(); i++) {
+                    out[i + 2] = this.nodes.get(operands.get(i));
+                }
+                return out;
+            } else if (expr instanceof EmptyEmailSet) {
+                return new int[] { EMPTY };
+            }
+            final List<Expression> operands = children(expr);
+            return new int[] { binaryTag(expr), this.nodes.get(operands.get(0)), this.nodes.get(operands.get(1)) };
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(this.strings.size());
+            for (String s : this.strings.keySet()) {
+                final byte[] bytes = s.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(this.encoded.size());
+            for (int[] node : this.encoded) {
+                out.writeByte(node[0]);
+                for (int i = 1; i < node.length; i++) {
+                    out.writeInt(node[i]);
+                }
+            }
+        }
+    }
+
+    private static byte binaryTag(Expression expr) {
+        if (expr instanceof Union) {
+            return UNION;
+        } else if (expr instanceof Intersection) {
+            return INTERSECTION;
+        } else if (expr instanceof Difference) {
+            return DIFFERENCE;
+        } else if (expr instanceof Sequence) {
+            return SEQUENCE;
+        } else if (expr instanceof Parallel) {
+            return PARALLEL;
+        }
+        throw new IllegalArgumentException("unknown expression " + expr.getClass());
+    }
+
+    // operands of expr, in order
+    private static List<Expression> children(Expression expr) {
+        if (expr instanceof Union) {
+            return List.of(((Union) expr).getLeft(), ((Union) expr).getRight());
+        } else if (expr instanceof Intersection) {
+            return List.of(((Intersection) expr).getLeft(), ((Intersection) expr).getRight());
+        } else if (expr instanceof Difference) {
+            return List.of(((Difference) expr).getLeft(), ((Difference) expr).getRight());
+        } else if (expr instanceof Sequence) {
+            return List.of(((Sequence) expr).getLeft(), ((Sequence) expr).getRight());
+        } else if (expr instanceof Parallel) {
+            return List.of(((Parallel) expr).getLeft(), ((Parallel) expr).getRight());
+        } else if (expr instanceof NaryUnion) {
+            return ((NaryUnion) expr).getOperands();
+        } else if (expr instanceof NaryIntersection) {
+            return ((NaryIntersection) expr).getOperands();
+        } else if (expr instanceof ListDefinition) {
+            return List.of(((ListDefinition) expr).getExpr());
+        }
+        return List.of();
+    }
+}
@@ -0,0 +1,130 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ *
+ * Handler for /api/contains, which answers whether one email is in the value of an expression
+ * without computing that value: the expression is probed with Expression.contains, so the answer
+ * costs time proportional to the expression rather than to the size of the lists it reads.
+ *
+ *   GET /api/contains?email=EMAIL&expr=EXPR (both URL encoded)
+ *
+ *   {"expression":"eng","email":"a@mit","member":true,"evalMicros":3}
+ *
+ * The answer is also sent as the X-Norn-Member header, and the time as X-Norn-Eval-Micros. Errors
+ * are the same as for /api/eval: 400 if a parameter is missing or the expression does not parse,
+ * 409 if its definitions conflict, 405 for any method other than GET and 500 otherwise.
+ *
+ */
+final class ContainsApiHandler implements HttpHandler {
+
+    private final ListNamespace allLists;
+    private final Durability durability;
+
+    // Abstraction function
+    //   AF(allLists, durability) = the /api/contains endpoint of a server whose lists are allLists, and
+    //     whose changes are durable once durability syncs
+    //
+    // Rep invariant
+    //   - true
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final and never returned, they are shared with the server on purpose
+    //
+    // Thread Safety Argument
+    //   - allLists is a ListNamespace and durability a Durability, which are thread safe; each exchange
+    //     is handled on its own with local variables only
+
+    /**
+     * @param allLists lists of the server, read and defined by the probed expressions
+     * @param durability what an expression that defines lists waits for before it is answered
+     */
+    public ContainsApiHandler(ListNamespace allLists, Durability durability) {
+        this.allLists = allLists;
+        this.durability = durability;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "GET");
+                EvalApiHandler.sendError(exchange, EvalApiHandler.METHOD_NOT_ALLOWED,
+                        "method " + exchange.getRequestMethod() + " not allowed");
+                return;
+            }
+            final String email = parameter(exchange, "email").strip();
+            final String text = parameter(exchange, "expr");
+            if (email.isEmpty() || text.isBlank()) {
+                EvalApiHandler.sendError(exchange, EvalApiHandler.BAD_REQUEST, "missing email or expression");
+                return;
+            }
+            final Expression parsed;
+            try {
+                parsed = Expression.parse(text);
+            } catch (IllegalArgumentException e) {
+                EvalApiHandler.sendError(exchange, EvalApiHandler.BAD_REQUEST, "expression does not parse");
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final boolean readsOnly = ParallelEvaluation.readsOnly(List.of(parsed), this.allLists);
+            final boolean member;
+            try {
+                member = parsed.contains(email, this.allLists, readsOnly);
+            } catch (ListConflictException e) {
+                EvalApiHandler.sendError(exchange, EvalApiHandler.CONFLICT, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                EvalApiHandler.sendError(exchange, EvalApiHandler.SERVER_ERROR, "evaluation failed");
+                return;
+            }
+            final long evalMicros = (System.nanoTime() - start) / EvalApiHandler.NANOS_PER_MICRO;
+            if (!readsOnly) {
+                try {
+                    this.durability.sync();
+                } catch (IOException e) {
+                    EvalApiHandler.sendError(exchange, EvalApiHandler.SERVER_ERROR, "definitions could not be saved");
+                    return;
+                }
+            }
+
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.getResponseHeaders().add("X-Norn-Member", String.valueOf(member));
+            exchange.getResponseHeaders().add("X-Norn-Eval-Micros", String.valueOf(evalMicros));
+            exchange.sendResponseHeaders(EvalApiHandler.OK, 0);
+            final Writer out = new OutputStreamWriter(exchange.getResponseBody(), UTF_8);
+            out.write("{\"expression\":");
+            EvalApiHandler.writeString(out, parsed.toString());
+            out.write(",\"email\":");
+            EvalApiHandler.writeString(out, email);
+            out.write(",\"member\":" + member + ",\"evalMicros\":" + evalMicros + "}\n");
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // the decoded value of a query parameter, empty if it is missing
+    private static String parameter(HttpExchange exchange, String name) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return URLDecoder.decode(parameter.substring(name.length() + 1), UTF_8);
+                }
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,381 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Write-ahead log of the definitions of a ListNamespace, kept in a directory:
+ *   snapshot.bin     binary snapshot (BinarySnapshot) of the definitions, if the log was ever compacted
+ *   wal-N.log        segments of records, N increasing; records are appended to the last one
+ *
+ * Every change of the namespace (put or remove, in the order the namespace applies them) becomes
+ * a record, appended to memory while the change is made:
+ *   int length, int CRC32 of the rest, byte PUT or REMOVE, UTF-8 "name = expression" or "name"
+ * Nothing is written to disk until someone waits for it with sync. The first thread to wait writes
+ * and forces everything appended so far, and the threads that wait in the meantime are served by
+ * the next force, so concurrent requests share their disk flushes (group commit).
+ *
+ * open replays the snapshot and then every segment in order; a torn record at the end of the last
+ * segment, from a crash in the middle of a write, is dropped with everything after it. When the
+ * current segment passes -Dnorn.walCompactBytes (64 MiB by default), a background thread starts a
+ * new segment, saves a snapshot of the namespace and deletes the older segments. The snapshot may
+ * already include changes logged in the new segment; replaying them again gives the same lists,
+ * and so does replaying old segments left behind by a crash during compaction.
+ *
+ */
+final class DefinitionLog implements Durability, Closeable {
+
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final long COMPACT_BYTES = Long.getLong("norn.walCompactBytes", 64L << 20);
+
+    private final Path directory;
+    private final ListNamespace lists;
+    private final long compactBytes;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "norn-wal-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean flushing = false;
+    private boolean compacting = false;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentBytes;
+
+    // Abstraction function
+    //   AF(directory, lists, ...) = the durable history of the definitions of lists: the snapshot and
+    //     segments in directory, followed by the records in pending, which are not on disk yet;
+    //     the first durable of the appended records are on disk and forced
+    //
+    // Rep invariant
+    //   - durable <= appended
+    //   - pending holds exactly the records after the first (appended - records in pending) ones
+    //   - segment is the open channel of SEGMENT_PREFIX + segmentNumber + SEGMENT_SUFFIX in directory,
+    //     and segmentBytes its size
+    //
+    // Safety from rep exposure
+    //   - all fields are private, none is returned
+    //
+    // Thread Safety Argument
+    //   - pending, appended, durable, flushing, compacting and segmentBytes are guarded by this
+    //   - only the thread that set flushing writes to segment, outside the lock, so appends never
+    //     wait for the disk; segment and segmentNumber only change under the lock while no one is
+    //     flushing
+    //   - records are appended while the namespace holds its own lock, so their order is the order
+    //     of the changes
+
+    private DefinitionLog(Path directory, ListNamespace lists, long compactBytes) {
+        this.directory = directory;
+        this.lists = lists;
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * Recovers lists from the log in directory, then logs every change made to lists
+     *
+     * @param directory directory of the log, created if needed
+     * @param lists namespace to recover into and log, nothing else may change it until this returns
+     * @return the log
+     * @throws IOException if the log cannot be read or a new segment cannot be started
+     */
+    public static DefinitionLog open(Path directory, ListNamespace lists) throws IOException {
+        return open(directory, lists, COMPACT_BYTES);
+    }
+
+    /**
+     * Recovers lists from the log in directory, then logs every change made to lists
+     *
+     * @param directory directory of the log, created if needed
+     * @param lists namespace to recover into and log, nothing else may change it until this returns
+     * @param compactBytes size of the current segment from which the log is compacted
+     * @return the log
+     * @throws IOException if the log cannot be read or a new segment cannot be started
+     */
+    public static DefinitionLog open(Path directory, ListNamespace lists, long compactBytes) throws IOException {
+        Files.createDirectories(directory);
+        final DefinitionLog log = new DefinitionLog(directory, lists, compactBytes);
+        final Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            BinarySnapshot.load(snapshot, lists);
+        }
+        final TreeMap<Long, Path> segments = segments(directory);
+        for (Path segment : segments.values()) {
+            replay(segment, lists);
+        }
+        synchronized (log) {
+            log.startSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        }
+        lists.attach(log);
+        return log;
+    }
+
+    /**
+     * Records that name is now defined by definition, called by the namespace as it changes
+     *
+     * @param name name of a mailing list
+     * @param definition its new definition
+     */
+    public void put(String name, Expression definition) {
+        this.append(PUT, name + " = " + definition);
+    }
+
+    /**
+     * Records that name is no longer defined, called by the namespace as it changes
+     *
+     * @param name name of a mailing list
+     */
+    public void remove(String name) {
+        this.append(REMOVE, name);
+    }
+
+    /**
+     * @return number of changes recorded so far
+     */
+    public synchronized long appended() {
+        return this.appended;
+    }
+
+    /**
+     * Waits until every change recorded so far is on disk, writing it if no other thread is
+     *
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public void sync() throws IOException {
+        final long target;
+        synchronized (this) {
+            target = this.appended;
+        }
+        while (true) {
+            final byte[] records;
+            final long upTo;
+            synchronized (this) {
+                while (this.durable < target && this.flushing) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while waiting for the log", e);
+                    }
+                }
+                if (this.durable >= target) {
+                    return;
+                }
+                // lead the next flush, for every thread that appended so far
+                this.flushing = true;
+                records = this.pending.toByteArray();
+                this.pending = new ByteArrayOutputStream();
+                upTo = this.appended;
+            }
+            boolean written = false;
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (buffer.hasRemaining()) {
+                    this.segment.write(buffer);
+                }
+                this.segment.force(false);
+                written = true;
+            } catch (IOException e) {
+                // no half written record before the ones retried
+                this.segment.truncate(this.segmentBytes);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    this.flushing = false;
+                    if (written) {
+                        this.durable = upTo;
+                        this.segmentBytes += records.length;
+                        this.compactIfLarge();
+                    } else {
+                        // put the records back, so the next flush retries them
+                        final ByteArrayOutputStream retry = new ByteArrayOutputStream();
+                        retry.writeBytes(records);
+                        retry.writeBytes(this.pending.toByteArray());
+                        this.pending = retry;
+                    }
+                    this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes what was recorded, stops compacting and closes the current segment
+     *
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        this.sync();
+        this.compactor.shutdown();
+        try {
+            this.compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            this.segment.close();
+        }
+    }
+
+    /**
+     * Compacts the log now: starts a new segment, saves a snapshot of the namespace and deletes the
+     * older segments
+     *
+     * @throws IOException if the snapshot cannot be saved, in which case the older segments are kept
+     */
+    public void compact() throws IOException {
+        // what is recorded so far goes to the current segment, later records to the new one
+        this.sync();
+        final List<Path> older;
+        synchronized (this) {
+            while (this.flushing) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for the log", e);
+                }
+            }
+            older = new ArrayList<Path>(segments(this.directory).values());
+            this.segment.close();
+            this.startSegment(this.segmentNumber + 1);
+        }
+        BinarySnapshot.save(this.lists, this.directory.resolve(SNAPSHOT), false);
+        for (Path segment : older) {
+            Files.deleteIfExists(segment);
+        }
+    }
+
+    // adds a record to pending
+    private void append(byte kind, String text) {
+        final byte[] payload = text.getBytes(UTF_8);
+        final CRC32 checksum = new CRC32();
+        checksum.update(kind);
+        checksum.update(payload);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_BYTES + 1 + payload.length);
+        final DataOutputStream out = new DataOutputStream(record);
+        try {
+            out.writeInt(1 + payload.length);
+            out.writeInt((int) checksum.getValue());
+            out.writeByte(kind);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException("a ByteArrayOutputStream does not throw", e);
+        }
+        synchronized (this) {
+            this.pending.writeBytes(record.toByteArray());
+            this.appended++;
+        }
+    }
+
+    // compacts in the background if the current segment is large, caller must hold this
+    private void compactIfLarge() {
+        if (this.compacting || this.segmentBytes < this.compactBytes) {
+            return;
+        }
+        this.compacting = true;
+        this.compactor.execute(() -> {
+            try {
+                this.compact();
+            } catch (IOException e) {
+                System.err.println("log compaction failed, will retry: " + e);
+            } finally {
+                synchronized (this) {
+                    this.compacting = false;
+                }
+            }
+        });
+    }
+
+    // opens a new segment to append to, caller must hold this
+    private void startSegment(long number) throws IOException {
+        this.segmentNumber = number;
+        this.segment = FileChannel.open(this.directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.segmentBytes = this.segment.size();
+    }
+
+    // segments in directory, by number
+    private static TreeMap<Long, Path> segments(Path directory) throws IOException {
+        final TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return segments;
+    }
+
+    // applies the records of segment to lists, up to the first torn or corrupt one
+    private static void replay(Path segment, ListNamespace lists) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        while (buffer.remaining() >= HEADER_BYTES) {
+            final int length = buffer.getInt();
+            final int expected = buffer.getInt();
+            if (length < 1 || length > buffer.remaining()) {
+                break;
+            }
+            final byte[] record = new byte[length];
+            buffer.get(record);
+            final CRC32 checksum = new CRC32();
+            checksum.update(record);
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            final String text = new String(record, 1, length - 1, UTF_8);
+            if (record[0] == PUT) {
+                final Expression parsed;
+                try {
+                    parsed = Expression.parse(text);
+                } catch (IllegalArgumentException e) {
+                    // intact but unreadable, e.g. written by a version that printed it wrongly: keep the rest
+                    System.err.println("skipping log record that does not parse in " + segment + ": " + text);
+                    continue;
+                }
+                if (!(parsed instanceof ListDefinition)) {
+                    System.err.println("skipping log record that is not a definition in " + segment + ": " + text);
+                    continue;
+                }
+                final ListDefinition definition = (ListDefinition) parsed;
+                lists.put(definition.getName(), definition.getExpr());
+            } else if (record[0] == REMOVE) {
+                lists.remove(text);
+            }
+        }
+    }
+}
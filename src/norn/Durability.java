@@ -0,0 +1,23 @@
+package norn;
+
+import java.io.IOException;
+
+/**
+ * Something that can wait until the changes made to the lists of a mailing list system are durable,
+ * so a request is only answered once what it defined would survive a crash.
+ */
+@FunctionalInterface
+interface Durability {
+
+    /**
+     * Durability of lists that are never saved: nothing to wait for
+     */
+    public static final Durability NONE = () -> { };
+
+    /**
+     * Waits until every change made so far is durable
+     *
+     * @throws IOException if the changes cannot be made durable
+     */
+    public void sync() throws IOException;
+}
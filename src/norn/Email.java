@@ -3,8 +3,10 @@ package norn;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 
 /**
@@ -16,12 +18,13 @@ import java.util.TreeSet;
 class Email implements Expression {
 
     private final String address;
+    private final int id;
     
     // Abstraction function
-    //   AF(address) = an email address
+    //   AF(address, id) = an email address
     //
     // Rep invariant
-    //   true
+    //   id == EmailDictionary.id(address)
     //   - the argument for this is that the email is really just a fancy string
     //
     // Safety from rep exposure
@@ -41,11 +44,30 @@ class Email implements Expression {
      */
     public Email(String address) {
         this.address = address;
+        this.id = EmailDictionary.id(address);
     }
     
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
-        return new TreeSet<String>(Set.of(this.toString()));
+    public EmailSet members (Map<String, Expression> map){
+        return EmailSet.of(this.id);
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        return this.address.equals(email);
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        EmailSet s = this.members(map);
+        tracer.exit(this, s);
+        return s;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        return EmailCursors.single(this.id);
     }
     
     @Override
@@ -53,12 +75,23 @@ class Email implements Expression {
         return new HashSet<String>();
     }
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
         return this;
     }
     
 
+    /**
+     * @return the id of this address in the EmailDictionary
+     */
+    public int getId() {
+        return this.id;
+    }
+
     @Override
     public String toString() {
         return this.address;
@@ -0,0 +1,127 @@
+package norn;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * The email dictionary gives every email address seen by this mailing list system
+ * a small int id, so that member sets can be stored as compressed EmailSets and
+ * combined without hashing strings. Ids are dense and handed out in first-seen
+ * order; addresses are sorted only when a set is decoded for output.
+ *
+ */
+public final class EmailDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] addresses = new String[INITIAL_CAPACITY];
+    private static int size = 0;
+
+    // Abstraction function
+    //   AF(ids, addresses, size) = the bijection address <-> id where addresses[id] = address
+    //                              and ids.get(address) = id, for 0 <= id < size
+    //
+    // Rep invariant
+    //   - ids.size() == size <= addresses.length
+    //   - for all 0 <= i < size, ids.get(addresses[i]) == i
+    //
+    // Safety from rep exposure
+    //   - all fields are private and never returned
+    //
+    // Thread Safety Argument
+    //   - new ids are only handed out while holding the class lock
+    //   - addresses[id] is written before id is published through the concurrent map,
+    //     so any thread that has an id can read its address
+    //   - growing the array copies it before publishing it through the volatile field
+
+    private EmailDictionary() {
+    }
+
+    /**
+     * Get the id of an address, giving it a new id if it has none yet
+     *
+     * @param address email address
+     * @return the id of address
+     */
+    public static int id(String address) {
+        Integer id = ids.get(address);
+        if (id != null) {
+            return id;
+        }
+        synchronized (EmailDictionary.class) {
+            id = ids.get(address);
+            if (id != null) {
+                return id;
+            }
+            String[] current = addresses;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+                addresses = current;
+            }
+            current[size] = address;
+            ids.put(address, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Get the id of an address without giving it one
+     *
+     * @param address email address
+     * @return the id of address, or -1 if it has none, in which case no member set contains it
+     */
+    public static int find(String address) {
+        final Integer id = ids.get(address);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @param id an id handed out by id(address)
+     * @return the address with that id
+     */
+    public static String address(int id) {
+        return addresses[id];
+    }
+
+    /**
+     * @param emails email addresses
+     * @return set of the ids of those addresses
+     */
+    public static EmailSet encode(Collection<String> emails) {
+        EmailSet.Builder builder = new EmailSet.Builder();
+        for (String email : emails) {
+            builder.add(id(email));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param emails set of ids
+     * @return the addresses of those ids in sorted order
+     */
+    public static String[] sortedAddresses(EmailSet emails) {
+        final String[] current = addresses;
+        String[] out = new String[emails.cardinality()];
+        int[] n = {0};
+        emails.forEach(id -> out[n[0]++] = current[id]);
+        Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * @param emails set of ids
+     * @return unmodifiable sorted set of the addresses of those ids
+     */
+    public static SortedSet<String> decode(EmailSet emails) {
+        return Collections.unmodifiableSortedSet(new TreeSet<String>(Arrays.asList(sortedAddresses(emails))));
+    }
+}
@@ -3,8 +3,10 @@ package norn;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 
 /**
@@ -25,7 +27,7 @@ public class EmptyEmailSet implements Expression {
     //   true
     //
     // Safety from rep exposure
-    //   - returns brand new empty sets in evaluate and subLists
+    //   - returns the immutable empty EmailSet in members and brand new empty sets in subLists
     //   - all variables are private and final
     //
     // Thread Safety Argument
@@ -51,8 +53,26 @@ public class EmptyEmailSet implements Expression {
     
 
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
-        return new TreeSet<String>(Set.of());
+    public EmailSet members (Map<String, Expression> map){
+        return EmailSet.empty();
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        return false;
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        EmailSet s = this.members(map);
+        tracer.exit(this, s);
+        return s;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        return EmailCursors.empty();
     }
     
     @Override
@@ -61,6 +81,10 @@ public class EmptyEmailSet implements Expression {
     }
 
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
         return this;
@@ -0,0 +1,221 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Handler for /api/eval, the machine oriented twin of /eval: it only parses and evaluates an
+ * expression, and streams its members back, sorted, without any visualization.
+ *
+ *   GET /api/eval/EXPR or GET /api/eval?expr=EXPR (URL encoded)
+ *
+ * The answer is JSON unless the query has format=ndjson or the request accepts application/x-ndjson:
+ *
+ *   JSON    {"expression":"(a, b@mit)","size":2,"parseMicros":35,"evalMicros":12,"members":["a@mit","b@mit"]}
+ *   NDJSON  {"expression":"(a, b@mit)","size":2,"parseMicros":35,"evalMicros":12}
+ *           "a@mit"
+ *           "b@mit"
+ *
+ * The size and timings are also sent as the X-Norn-Size, X-Norn-Parse-Micros and X-Norn-Eval-Micros
+ * headers. An expression that defines lists is answered once its definitions are durable. Errors
+ * are a JSON object {"error":"..."}, with status 400 if the expression is missing or does not parse,
+ * 409 if its definitions conflict (a cycle, an invalid pipe), 405 for any method other than GET and
+ * 500 if evaluation fails otherwise or the definitions cannot be saved.
+ *
+ */
+final class EvalApiHandler implements HttpHandler {
+
+    private static final String PATH = "/api/eval";
+    static final String NDJSON = "application/x-ndjson";
+    static final int OK = 200;
+    static final int BAD_REQUEST = 400;
+    static final int METHOD_NOT_ALLOWED = 405;
+    static final int CONFLICT = 409;
+    static final int SERVER_ERROR = 500;
+    private static final int BUFFER_SIZE = 8192;
+    static final long NANOS_PER_MICRO = 1000;
+
+    private final ListNamespace allLists;
+    private final Durability durability;
+
+    // Abstraction function
+    //   AF(allLists, durability) = the /api/eval endpoint of a server whose lists are allLists, and
+    //     whose changes are durable once durability syncs
+    //
+    // Rep invariant
+    //   - true
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final and never returned, they are shared with the server on purpose
+    //
+    // Thread Safety Argument
+    //   - allLists is a ListNamespace and durability a Durability, which are thread safe; each exchange
+    //     is handled on its own with local variables only
+
+    /**
+     * @param allLists lists of the server, read and defined by the evaluated expressions
+     * @param durability what an expression that defines lists waits for before it is answered
+     */
+    public EvalApiHandler(ListNamespace allLists, Durability durability) {
+        this.allLists = allLists;
+        this.durability = durability;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "GET");
+                sendError(exchange, METHOD_NOT_ALLOWED, "method " + exchange.getRequestMethod() + " not allowed");
+                return;
+            }
+            final String text = expressionText(exchange);
+            if (text.isBlank()) {
+                sendError(exchange, BAD_REQUEST, "missing expression");
+                return;
+            }
+
+            final long parseStart = System.nanoTime();
+            final Expression parsed;
+            try {
+                parsed = Expression.parse(text);
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, BAD_REQUEST, "expression does not parse");
+                return;
+            }
+            final long evalStart = System.nanoTime();
+            final boolean readsOnly = ParallelEvaluation.readsOnly(List.of(parsed), this.allLists);
+            final EmailSet members;
+            try {
+                members = ExpressionOptimizer.optimize(parsed, this.allLists).expression().members(this.allLists);
+            } catch (ListConflictException e) {
+                sendError(exchange, CONFLICT, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                sendError(exchange, SERVER_ERROR, "evaluation failed");
+                return;
+            }
+            final long evalEnd = System.nanoTime();
+            if (!readsOnly) {
+                try {
+                    this.durability.sync();
+                } catch (IOException e) {
+                    sendError(exchange, SERVER_ERROR, "definitions could not be saved");
+                    return;
+                }
+            }
+
+            this.sendMembers(exchange, parsed, members,
+                    (evalStart - parseStart) / NANOS_PER_MICRO, (evalEnd - evalStart) / NANOS_PER_MICRO);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // streams the answer, the members are decoded in sorted order as they are written
+    private void sendMembers(HttpExchange exchange, Expression parsed, EmailSet members, long parseMicros,
+            long evalMicros) throws IOException {
+        final boolean ndjson = wantsNdjson(exchange);
+        exchange.getResponseHeaders().add("Content-Type", (ndjson ? NDJSON : "application/json") + "; charset=utf-8");
+        exchange.getResponseHeaders().add("X-Norn-Size", String.valueOf(members.cardinality()));
+        exchange.getResponseHeaders().add("X-Norn-Parse-Micros", String.valueOf(parseMicros));
+        exchange.getResponseHeaders().add("X-Norn-Eval-Micros", String.valueOf(evalMicros));
+        exchange.sendResponseHeaders(OK, 0);
+
+        final Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8), BUFFER_SIZE);
+        out.write("{\"expression\":");
+        writeString(out, parsed.toString());
+        out.write(",\"size\":" + members.cardinality() + ",\"parseMicros\":" + parseMicros
+                + ",\"evalMicros\":" + evalMicros);
+        out.write(ndjson ? "}\n" : ",\"members\":[");
+        boolean first = true;
+        for (String address : EmailDictionary.sortedAddresses(members)) {
+            if (!ndjson && !first) {
+                out.write(',');
+            }
+            writeString(out, address);
+            if (ndjson) {
+                out.write('\n');
+            }
+            first = false;
+        }
+        if (!ndjson) {
+            out.write("]}\n");
+        }
+        out.close();
+    }
+
+    /**
+     * Answers exchange with an error
+     *
+     * @param exchange exchange whose response has not been started
+     * @param status HTTP status code
+     * @param message what went wrong
+     * @throws IOException if the response cannot be sent
+     */
+    static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, 0);
+        final Writer out = new OutputStreamWriter(exchange.getResponseBody(), UTF_8);
+        out.write("{\"error\":");
+        writeString(out, message);
+        out.write("}\n");
+        out.close();
+    }
+
+    // the expression from the expr query parameter, or else from the path after /api/eval/
+    private static String expressionText(HttpExchange exchange) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("expr=")) {
+                    return URLDecoder.decode(parameter.substring("expr=".length()), UTF_8);
+                }
+            }
+        }
+        final String path = exchange.getRequestURI().getPath();
+        return path.length() > PATH.length() + 1 ? path.substring(PATH.length() + 1) : "";
+    }
+
+    private static boolean wantsNdjson(HttpExchange exchange) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query != null && ("&" + query + "&").contains("&format=ndjson&")) {
+            return true;
+        }
+        final String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(NDJSON);
+    }
+
+    /**
+     * @param out where to write
+     * @param s any string
+     * @throws IOException if out cannot be written to
+     */
+    static void writeString(Writer out, String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < ' ') {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,207 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Handler for /api/batch: evaluates many expressions in one request, one per line of a POST body,
+ * and answers one NDJSON line per expression, in the order of the body.
+ *
+ *   {"line":1,"expression":"(a, b@mit)","size":2,"evalMicros":12,"members":["a@mit","b@mit"]}
+ *   {"line":2,"status":400,"error":"expression does not parse"}
+ *
+ * Blank lines are skipped, "line" is the number of the line in the body, counting from 1. An
+ * expression that fails gets an error line with the status /api/eval would have answered it with,
+ * and the batch goes on.
+ *
+ * Expressions are evaluated against the server's lists in order, as if sent one by one, but an
+ * expression that only reads lists (ParallelEvaluation.readsOnly) is started on the ParallelEngine
+ * pool right away, alongside the read only expressions before it. An expression that defines a
+ * list waits for all of those, then runs alone. Results are written as soon as all the ones before
+ * them are, and no more than a few per pool worker are kept waiting. The result of an expression
+ * that defines lists is only written once its definitions are durable; consecutive ones share a sync.
+ *
+ */
+final class EvalBatchHandler implements HttpHandler {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int PENDING_PER_WORKER = 4;
+
+    private final ListNamespace allLists;
+    private final Durability durability;
+
+    // Abstraction function
+    //   AF(allLists, durability) = the /api/batch endpoint of a server whose lists are allLists, and
+    //     whose changes are durable once durability syncs
+    //
+    // Rep invariant
+    //   - true
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final and never returned, they are shared with the server on purpose
+    //
+    // Thread Safety Argument
+    //   - allLists is a ListNamespace and durability a Durability, which are thread safe
+    //   - expressions run concurrently only if none of them, nor the definitions they reach, defines
+    //     a list, and only once every definition before them is done
+    //   - the rest is local to the thread handling the exchange; the pool only computes result lines
+
+    /**
+     * The result of an item of the batch
+     */
+    private static final class Result {
+        private final int line;
+        private final boolean defines;
+        private final CompletableFuture<String> text;
+
+        private Result(int line, boolean defines, CompletableFuture<String> text) {
+            this.line = line;
+            this.defines = defines;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param allLists lists of the server, read and defined by the evaluated expressions
+     * @param durability what the result of an expression that defines lists waits for before it is written
+     */
+    public EvalBatchHandler(ListNamespace allLists, Durability durability) {
+        this.allLists = allLists;
+        this.durability = durability;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                EvalApiHandler.sendError(exchange, EvalApiHandler.METHOD_NOT_ALLOWED,
+                        "method " + exchange.getRequestMethod() + " not allowed");
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", EvalApiHandler.NDJSON + "; charset=utf-8");
+            exchange.sendResponseHeaders(EvalApiHandler.OK, 0);
+
+            final BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF_8));
+            final Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8),
+                    BUFFER_SIZE);
+            final int maxPending = ParallelEngine.parallelism() * PENDING_PER_WORKER;
+            final Deque<Result> pending = new ArrayDeque<Result>();
+            int number = 0;
+            for (String text = in.readLine(); text != null; text = in.readLine()) {
+                number++;
+                if (text.isBlank()) {
+                    continue;
+                }
+                final int line = number;
+                final Expression parsed;
+                try {
+                    parsed = Expression.parse(text);
+                } catch (IllegalArgumentException e) {
+                    pending.add(new Result(line, false, CompletableFuture.completedFuture(
+                            errorLine(line, EvalApiHandler.BAD_REQUEST, "expression does not parse"))));
+                    continue;
+                }
+                if (ParallelEvaluation.readsOnly(List.of(parsed), this.allLists)) {
+                    pending.add(new Result(line, false, CompletableFuture.supplyAsync(
+                            () -> this.evaluate(line, parsed), ParallelEngine.pool())));
+                } else {
+                    // a definition changes what the expressions after it read
+                    for (Result before : pending) {
+                        before.text.join();
+                    }
+                    pending.add(new Result(line, true, CompletableFuture.completedFuture(this.evaluate(line, parsed))));
+                }
+                this.drain(pending, maxPending, out);
+            }
+            this.drain(pending, 0, out);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // writes the results at the head of pending that are done, and waits for more until at most keep are left
+    private void drain(Deque<Result> pending, int keep, Writer out) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > keep || pending.peek().text.isDone())) {
+            if (!pending.peek().text.isDone()) {
+                // send what is ready before waiting
+                out.flush();
+            }
+            final Result result = pending.remove();
+            if (result.defines) {
+                // one sync covers every definition evaluated so far
+                try {
+                    this.durability.sync();
+                } catch (IOException e) {
+                    out.write(errorLine(result.line, EvalApiHandler.SERVER_ERROR, "definitions could not be saved"));
+                    continue;
+                }
+            }
+            out.write(result.text.join());
+        }
+    }
+
+    // the result line of one expression
+    private String evaluate(int line, Expression parsed) {
+        final long start = System.nanoTime();
+        final EmailSet members;
+        try {
+            members = ExpressionOptimizer.optimize(parsed, this.allLists).expression().members(this.allLists);
+        } catch (ListConflictException e) {
+            return errorLine(line, EvalApiHandler.CONFLICT, e.getMessage());
+        } catch (RuntimeException e) {
+            return errorLine(line, EvalApiHandler.SERVER_ERROR, "evaluation failed");
+        }
+        final long micros = (System.nanoTime() - start) / EvalApiHandler.NANOS_PER_MICRO;
+
+        final StringWriter result = new StringWriter();
+        try {
+            result.write("{\"line\":" + line + ",\"expression\":");
+            EvalApiHandler.writeString(result, parsed.toString());
+            result.write(",\"size\":" + members.cardinality() + ",\"evalMicros\":" + micros + ",\"members\":[");
+            boolean first = true;
+            for (String address : EmailDictionary.sortedAddresses(members)) {
+                if (!first) {
+                    result.write(',');
+                }
+                EvalApiHandler.writeString(result, address);
+                first = false;
+            }
+            result.write("]}\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException("a StringWriter does not throw", e);
+        }
+        return result.toString();
+    }
+
+    private static String errorLine(int line, int status, String message) {
+        final StringWriter result = new StringWriter();
+        try {
+            result.write("{\"line\":" + line + ",\"status\":" + status + ",\"error\":");
+            EvalApiHandler.writeString(result, message);
+            result.write("}\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException("a StringWriter does not throw", e);
+        }
+        return result.toString();
+    }
+}
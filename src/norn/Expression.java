@@ -1,10 +1,13 @@
 package norn;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
 import edu.mit.eecs.parserlib.UnableToParseException;
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailSet;
 
 
 /**
@@ -34,7 +37,7 @@ public interface Expression {
      */
     public static Expression parse (String input) throws IllegalArgumentException {
         try {
-            return ExpressionParser.parse(input);            
+            return ParseCache.shared().parse(input);
         } catch (UnableToParseException e) {
             throw new IllegalArgumentException();
         }
@@ -47,7 +50,68 @@ public interface Expression {
      * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
      * @return set of string email names an expression instance corresponds to
      */
-    public SortedSet<String> evaluate (Map<String, Expression> map);
+    public default SortedSet<String> evaluate (Map<String, Expression> map) {
+        return EmailDictionary.decode(this.members(map));
+    }
+    
+    /**
+     * Evaluates a parsed expression to the ids of the emails it corresponds to, as given by EmailDictionary.
+     * Set operators combine these compressed sets directly, so addresses only need to be decoded for output.
+     * 
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return set of the email ids an expression instance corresponds to
+     */
+    public EmailSet members (Map<String, Expression> map);
+    
+    /**
+     * Decides whether an email is in the set of emails a parsed expression corresponds to, looking at no
+     * more of the expression than it needs: a union stops at the first operand that has the email, an
+     * intersection at the first that lacks it, and a difference only looks at its right side if the left
+     * has the email. Operands are only skipped if the expression defines no list, not even through the
+     * lists it reads, so map gets the same definitions as with members; a list whose members are cached
+     * in a ListNamespace is a single lookup.
+     * 
+     * @param email email address
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return true iff email is in members(map)
+     */
+    public default boolean contains (String email, Map<String, Expression> map) {
+        return this.contains(email, map, ParallelEvaluation.readsOnly(List.of(this), map));
+    }
+    
+    /**
+     * Decides whether an email is in the set of emails a parsed expression corresponds to, like
+     * contains(email, map), with the check for definitions already made once for the whole probe
+     * 
+     * @param email email address
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @param skip true iff operands that cannot change the answer may be skipped, which is only allowed
+     *             if evaluating them defines no list, directly or through the lists they read
+     * @return true iff email is in members(map)
+     */
+    public boolean contains (String email, Map<String, Expression> map, boolean skip);
+    
+    /**
+     * Evaluates a parsed expression lazily, as a cursor over the ids of the emails it corresponds to.
+     * Every read or change of map happens before this method returns, in the same order as in members;
+     * the set operators then merge their operands' cursors without building intermediate sets.
+     * 
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return cursor over the email ids an expression instance corresponds to, in ascending order
+     */
+    public EmailCursor cursor (Map<String, Expression> map);
+    
+    /**
+     * Evaluates a parsed expression to the ids of the emails it corresponds to, like members, in a
+     * single walk that reports every step to a tracer: this expression, its operands, and the
+     * definitions of the lists it reads, each entered before and exited after its own operands.
+     * Lists are always evaluated from their definitions, and the two sides of a pipe one after the other.
+     * 
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @param tracer observer of the evaluation
+     * @return set of the email ids an expression instance corresponds to, the same as members
+     */
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer);
     
     /**
      * 
@@ -61,8 +125,19 @@ public interface Expression {
     public Set<String> subLists (Map<String, Expression> map, Set<String> seen, boolean onlyListDefs);
     
     /**
-     * Checks for cycle of the same mailing list in the expression (e.g a = b@mit.edu, a = a, c@mit,edu) and if there is one,
-     * in place of the cycle list in the expression replaces that list with its own simpler expression so that there is no cycle 
+     * Adds the names of the mailing lists that appear in this expression to the given sets, looking
+     * only at this expression and not at the definitions of the lists it names
+     * 
+     * @param defined set that the names of the mailing lists this expression defines are added to
+     * @param referenced set that the names of the mailing lists this expression reads are added to
+     */
+    public void collectLists (Set<String> defined, Set<String> referenced);
+    
+    /**
+     * Removes a cycle of the same mailing list in the expression (e.g a = b@mit.edu, a = a, c@mit,edu):
+     * in place of the cycle list in the expression replaces that list with its own simpler expression so that there is no cycle.
+     * Cycles through other lists (e.g a = b, b = a) cannot be removed this way and are rejected beforehand by
+     * ListAnalysis.checkAcyclic
      * 
      * @param cycleName string name of the mailing list name that we are checking for cycle in this expression
      * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
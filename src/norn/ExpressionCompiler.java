@@ -0,0 +1,240 @@
+package norn;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import norn.ParallelEvaluation.Estimate;
+import norn.ParallelEvaluation.Structure;
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Compiles an expression into a tree of closures, one per node, each of which calls its
+ * children directly instead of going through Expression.members. Every closure has a single
+ * shape, so the JIT can inline a whole compiled list into straight-line set operations.
+ * Constant parts (emails, the empty set) are evaluated once at compile time. Nodes with side
+ * effects (definitions and pipes) are not compiled and run through the interpreter. Set
+ * operations go through ParallelEvaluation, which decides when to use more than one core; the
+ * structure it estimates them from is made along with the compiled form and cached with it, and
+ * each operation hands the estimates of its operands down to their closures.
+ *
+ * Compiled forms are cached by expression identity; since expressions are hash-consed,
+ * every parse of a hot list finds the same compiled form. The cache is a concurrent map, so a
+ * hit takes no lock; when it grows past its size, entries not used since the previous sweep
+ * are dropped (second chance), which approximates evicting the least recently used ones.
+ *
+ */
+final class ExpressionCompiler {
+
+    private static final int CACHE_SIZE = Integer.getInteger("norn.compilerCacheSize", 1024);
+
+    private static final ConcurrentMap<Identity, Entry> cache = new ConcurrentHashMap<Identity, Entry>();
+    private static final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+    // Abstraction function
+    //   AF(cache, sweeping) = the compiled forms of recently compiled expressions, where cache.get(key).used
+    //                         tells whether key was compiled again since the last sweep
+    //
+    // Rep invariant
+    //   - cache.size() <= CACHE_SIZE, except while compiled forms are being added and swept concurrently
+    //   - cache.get(key).compiled evaluates key.expr, and cache.get(key).structure is the structure of key.expr
+    //
+    // Safety from rep exposure
+    //   - all fields are private and never returned, compiled forms are immutable
+    //
+    // Thread Safety Argument
+    //   - cache is a concurrent map, so hits take no lock; used is volatile and only ever a hint
+    //   - sweeping lets one thread sweep at a time, others carry on without waiting
+    //   - compiled forms and structures only capture immutable values
+
+    /**
+     * An expression compiled for repeated evaluation
+     */
+    @FunctionalInterface
+    public interface Compiled {
+        /**
+         * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+         * @param estimate estimate of the compiled expression made by the operation above it, or null if none was
+         * @return the emails of the compiled expression, with the same effect on map as Expression.members
+         */
+        EmailSet members(Map<String, Expression> map, Estimate estimate);
+
+        /**
+         * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+         * @return the emails of the compiled expression, with the same effect on map as Expression.members
+         */
+        default EmailSet members(Map<String, Expression> map) {
+            return this.members(map, null);
+        }
+    }
+
+    /**
+     * A cached compiled form and its structure, with its second chance mark
+     */
+    private static final class Entry {
+        private final Compiled compiled;
+        private final Structure structure;
+        private volatile boolean used = false;
+
+        private Entry(Compiled compiled, Structure structure) {
+            this.compiled = compiled;
+            this.structure = structure;
+        }
+    }
+
+    /**
+     * Wraps an expression to compare it by identity
+     */
+    private static final class Identity {
+        private final Expression expr;
+
+        private Identity(Expression expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Identity && ((Identity) that).expr == this.expr;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.expr);
+        }
+    }
+
+    // uninstantiable
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * Get the compiled form of an expression, compiling it if it is not cached
+     *
+     * @param expr expression to compile
+     * @return compiled form of expr
+     */
+    public static Compiled compile(Expression expr) {
+        return entry(expr).compiled;
+    }
+
+    /**
+     * Get the structure ParallelEvaluation estimates an expression from, compiling it if it is not cached
+     *
+     * @param expr expression
+     * @return structure of expr
+     */
+    public static Structure structure(Expression expr) {
+        return entry(expr).structure;
+    }
+
+    private static Entry entry(Expression expr) {
+        final Identity key = new Identity(expr);
+        final Entry cached = cache.get(key);
+        if (cached != null) {
+            // only written when it changes, so hot entries are not written on every hit
+            if (!cached.used) {
+                cached.used = true;
+            }
+            return cached;
+        }
+        final Structure structure = Structure.of(expr);
+        final Entry entry = new Entry(compileNode(expr, structure), structure);
+        final Entry raced = cache.putIfAbsent(key, entry);
+        if (raced != null) {
+            return raced;
+        }
+        if (cache.size() > CACHE_SIZE) {
+            sweep();
+        }
+        return entry;
+    }
+
+    /**
+     * @return number of compiled forms currently cached
+     */
+    public static int cacheSize() {
+        return cache.size();
+    }
+
+    // drops entries not used since the previous sweep and clears the marks of the others, until a
+    // quarter of the cache is free; at most one thread sweeps at a time
+    private static void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final int target = CACHE_SIZE - CACHE_SIZE / 4;
+            // an entry marked again during the first two passes loses its chance on the third
+            for (int pass = 0; cache.size() > target; pass++) {
+                final Iterator<Entry> entries = cache.values().iterator();
+                while (entries.hasNext() && cache.size() > target) {
+                    final Entry entry = entries.next();
+                    if (entry.used && pass < 2) {
+                        entry.used = false;
+                    } else {
+                        entries.remove();
+                    }
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    // compiles expr, whose structure is structure
+    private static Compiled compileNode(Expression expr, Structure structure) {
+        if (expr instanceof Email || expr instanceof EmptyEmailSet) {
+            final EmailSet constant = expr.members(Map.of());
+            return (map, estimate) -> constant;
+        } else if (expr instanceof MailingList) {
+            final String name = ((MailingList) expr).getName();
+            return (map, estimate) -> (map instanceof ListNamespace) ? ((ListNamespace) map).members(name) : expr.members(map);
+        } else if (expr instanceof Union) {
+            final Compiled[] sides = compileAll(List.of(((Union) expr).getLeft(), ((Union) expr).getRight()), structure);
+            return (map, estimate) -> {
+                final EmailSet[] sets = ParallelEvaluation.members(structure, sides, estimate, map);
+                return ParallelEvaluation.union(sets[0], sets[1]);
+            };
+        } else if (expr instanceof Intersection) {
+            final Compiled[] sides = compileAll(List.of(((Intersection) expr).getLeft(), ((Intersection) expr).getRight()), structure);
+            return (map, estimate) -> {
+                final EmailSet[] sets = ParallelEvaluation.members(structure, sides, estimate, map);
+                return ParallelEvaluation.intersection(sets[0], sets[1]);
+            };
+        } else if (expr instanceof Difference) {
+            final Compiled[] sides = compileAll(List.of(((Difference) expr).getLeft(), ((Difference) expr).getRight()), structure);
+            return (map, estimate) -> {
+                final EmailSet[] sets = ParallelEvaluation.members(structure, sides, estimate, map);
+                return ParallelEvaluation.difference(sets[0], sets[1]);
+            };
+        } else if (expr instanceof NaryUnion) {
+            final Compiled[] compiled = compileAll(((NaryUnion) expr).getOperands(), structure);
+            return (map, estimate) -> ParallelEvaluation.union(List.of(ParallelEvaluation.members(structure, compiled, estimate, map)));
+        } else if (expr instanceof NaryIntersection) {
+            final Compiled[] compiled = compileAll(((NaryIntersection) expr).getOperands(), structure);
+            return (map, estimate) -> ParallelEvaluation.intersection(List.of(ParallelEvaluation.members(structure, compiled, estimate, map)));
+        } else if (expr instanceof Sequence) {
+            final Compiled left = compileNode(((Sequence) expr).getLeft(), structure.operand(0));
+            final Compiled right = compileNode(((Sequence) expr).getRight(), structure.operand(1));
+            return (map, estimate) -> {
+                left.members(map, estimate != null ? estimate.operand(0) : null);
+                return right.members(map, estimate != null ? estimate.operand(1) : null);
+            };
+        }
+        // definitions check for cycles and pipes check their sides, both against the map at the time
+        return (map, estimate) -> expr.members(map);
+    }
+
+    // compiles the operands of an operation whose structure is structure
+    private static Compiled[] compileAll(List<Expression> operands, Structure structure) {
+        final Compiled[] compiled = new Compiled[operands.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compileNode(operands.get(i), structure.operand(i));
+        }
+        return compiled;
+    }
+}
@@ -0,0 +1,275 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ *
+ * Recursive-descent parser for ListExpression.g that builds expressions directly from the
+ * input characters, without a parse tree and without backtracking. It makes exactly the
+ * expressions the parserlib parser makes, including for the odd corners of the grammar:
+ *
+ *   - the only backtracking parserlib needs is to tell a list definition from a union that
+ *     starts with a list name, and a list name followed by '=' always starts a definition,
+ *     so two tokens of lookahead decide it;
+ *   - lexemes are matched greedily, as parserlib does: "a = x@b.c=d" is not a definition
+ *     of c, and "a = bc = d" is not "b" followed by "c = d";
+ *   - a definition followed by several unions, as in "a = b c", defines the list named by
+ *     the text of the second to last one, trailing whitespace included ("b "), as the last one.
+ *
+ * The lexemes are matched with lookup tables for the character classes parserlib actually
+ * accepts for the grammar's [a-zA-Z0-9_./-/+] and [a-zA-Z0-9_.-]: an email is letters, digits,
+ * '_', '.', '/' and '+', then '@', then letters, digits, '_', '.' and '/'; a mailing list name
+ * is letters, digits, '_', '.' and '-'.
+ *
+ */
+final class ExpressionDescentParser {
+
+    private static final boolean[] LOCAL = charClass("_./+");
+    private static final boolean[] DOMAIN = charClass("_./");
+    private static final boolean[] NAME = charClass("_.-");
+    private static final boolean[] WHITESPACE = new boolean[128];
+    static {
+        for (char c : " \t\r\n".toCharArray()) {
+            WHITESPACE[c] = true;
+        }
+    }
+
+    private final CharSequence input;
+    private final int end;
+    private int pos = 0;
+
+    // Abstraction function
+    //   AF(input, end, pos) = a parse of input in progress, with input[0..pos) already parsed
+    //
+    // Rep invariant
+    //   - 0 <= pos <= end == input.length()
+    //   - between tokens, pos is never on whitespace
+    //
+    // Safety from rep exposure
+    //   - instances are private to parse
+    //
+    // Thread Safety Argument
+    //   - an instance is confined to the thread running parse, the tables are never modified
+    //     after class initialization
+
+    private ExpressionDescentParser(CharSequence input) {
+        this.input = input;
+        this.end = input.length();
+    }
+
+    /**
+     * Parse a string into an expression.
+     *
+     * @param input text to parse
+     * @return Expression parsed from the text, equal in structure to the one made by ExpressionParser's parserlib parser
+     * @throws UnableToParseException if the text doesn't match the Expression grammar
+     */
+    public static Expression parse(CharSequence input) throws UnableToParseException {
+        final ExpressionDescentParser parser = new ExpressionDescentParser(input);
+        parser.skipWhitespace();
+        final Expression expression = parser.parallel();
+        if (parser.pos != parser.end) {
+            throw parser.error("end of input");
+        }
+        return expression;
+    }
+
+    // parallel ::= sequence ('|' sequence)*;
+    private Expression parallel() throws UnableToParseException {
+        Expression expression = this.sequence();
+        while (this.accept('|')) {
+            expression = ExpressionFactory.parallel(expression, this.sequence());
+        }
+        return expression;
+    }
+
+    // sequence ::= (listdefinition | union) (';' (listdefinition | union))*;
+    private Expression sequence() throws UnableToParseException {
+        Expression expression = this.definitionOrUnion();
+        while (this.accept(';')) {
+            expression = ExpressionFactory.sequence(expression, this.definitionOrUnion());
+        }
+        return expression;
+    }
+
+    private Expression definitionOrUnion() throws UnableToParseException {
+        return this.startsDefinition() ? this.listDefinition() : this.union();
+    }
+
+    // listdefinition ::= mailingList '=' ((union) | listdefinition)*;
+    private Expression listDefinition() throws UnableToParseException {
+        final int nameEnd = this.scan(this.pos, NAME);
+        final String name = this.input.subSequence(this.pos, nameEnd).toString();
+        this.pos = nameEnd;
+        this.skipWhitespace();
+        this.expect('=');
+
+        final List<Expression> children = new ArrayList<Expression>();
+        final List<Integer> starts = new ArrayList<Integer>();
+        while (this.pos < this.end) {
+            final int start = this.pos;
+            if (this.startsDefinition()) {
+                children.add(this.listDefinition());
+            } else if (this.startsPrimitive()) {
+                children.add(this.union());
+            } else {
+                break;
+            }
+            starts.add(start);
+        }
+
+        final int n = children.size();
+        if (n == 0) {
+            return ExpressionFactory.listDefinition(name, EmptyEmailSet.getEmpty());
+        } else if (n == 1) {
+            return ExpressionFactory.listDefinition(name, children.get(0));
+        }
+        final String previous = this.input.subSequence(starts.get(n - 2), starts.get(n - 1)).toString();
+        return ExpressionFactory.listDefinition(previous, children.get(n - 1));
+    }
+
+    // union ::= difference (',' difference)*;
+    private Expression union() throws UnableToParseException {
+        final Expression first = this.difference();
+        if (!this.accept(',')) {
+            return first;
+        }
+        final List<Expression> operands = new ArrayList<Expression>();
+        operands.add(first);
+        do {
+            operands.add(this.difference());
+        } while (this.accept(','));
+        return operands.size() == 2
+                ? ExpressionFactory.union(operands.get(0), operands.get(1))
+                : ExpressionFactory.naryUnion(operands);
+    }
+
+    // difference ::= intersection ('!' intersection)*;
+    private Expression difference() throws UnableToParseException {
+        Expression expression = this.intersection();
+        while (this.accept('!')) {
+            expression = ExpressionFactory.difference(expression, this.intersection());
+        }
+        return expression;
+    }
+
+    // intersection ::= primitive ('*' primitive)*;
+    private Expression intersection() throws UnableToParseException {
+        final Expression first = this.primitive();
+        if (!this.accept('*')) {
+            return first;
+        }
+        final List<Expression> operands = new ArrayList<Expression>();
+        operands.add(first);
+        do {
+            operands.add(this.primitive());
+        } while (this.accept('*'));
+        return operands.size() == 2
+                ? ExpressionFactory.intersection(operands.get(0), operands.get(1))
+                : ExpressionFactory.naryIntersection(operands);
+    }
+
+    // primitive ::= email | mailingList | '(' expression ')';
+    private Expression primitive() throws UnableToParseException {
+        if (this.accept('(')) {
+            final Expression expression = this.parallel();
+            this.expect(')');
+            return expression;
+        }
+        final int localEnd = this.scan(this.pos, LOCAL);
+        if (localEnd > this.pos && localEnd < this.end && this.input.charAt(localEnd) == '@') {
+            final int domainEnd = this.scan(localEnd + 1, DOMAIN);
+            if (domainEnd > localEnd + 1) {
+                return ExpressionFactory.email(this.token(domainEnd));
+            }
+        }
+        final int nameEnd = this.scan(this.pos, NAME);
+        if (nameEnd > this.pos) {
+            return ExpressionFactory.mailingList(this.token(nameEnd));
+        }
+        throw this.error("email, mailing list or '('");
+    }
+
+    // a mailing list name followed by '='
+    private boolean startsDefinition() {
+        int next = this.scan(this.pos, NAME);
+        if (next == this.pos) {
+            return false;
+        }
+        while (next < this.end && isIn(WHITESPACE, this.input.charAt(next))) {
+            next++;
+        }
+        return next < this.end && this.input.charAt(next) == '=';
+    }
+
+    // a character that a primitive can start with
+    private boolean startsPrimitive() {
+        final char c = this.input.charAt(this.pos);
+        return c == '(' || isIn(LOCAL, c) || isIn(NAME, c);
+    }
+
+    // the lexeme input[pos..tokenEnd), moving past it and the whitespace after it
+    private String token(int tokenEnd) {
+        final String token = this.input.subSequence(this.pos, tokenEnd).toString();
+        this.pos = tokenEnd;
+        this.skipWhitespace();
+        return token;
+    }
+
+    // end of the run of characters of a class starting at from
+    private int scan(int from, boolean[] charClass) {
+        int i = from;
+        while (i < this.end && isIn(charClass, this.input.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean accept(char c) {
+        if (this.pos < this.end && this.input.charAt(this.pos) == c) {
+            this.pos++;
+            this.skipWhitespace();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws UnableToParseException {
+        if (!this.accept(c)) {
+            throw this.error("'" + c + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.end && isIn(WHITESPACE, this.input.charAt(this.pos))) {
+            this.pos++;
+        }
+    }
+
+    private UnableToParseException error(String expected) {
+        return new UnableToParseException("expected " + expected + " at position " + this.pos);
+    }
+
+    private static boolean isIn(boolean[] charClass, char c) {
+        return c < charClass.length && charClass[c];
+    }
+
+    // letters, digits and the given characters
+    private static boolean[] charClass(String others) {
+        final boolean[] charClass = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++) {
+            charClass[c] = true;
+            charClass[Character.toUpperCase(c)] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            charClass[c] = true;
+        }
+        for (char c : others.toCharArray()) {
+            charClass[c] = true;
+        }
+        return charClass;
+    }
+}
@@ -0,0 +1,233 @@
+package norn;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Hash-consing factory for expression nodes. Asking twice for a node of the same kind, with
+ * the same name and the very same children, returns the same instance, so identical subtrees
+ * are stored once however many definitions contain them, and comparing two nodes made here is
+ * mostly a reference comparison. Nodes are only weakly held by the factory, and are dropped
+ * from it once nothing else uses them.
+ *
+ */
+final class ExpressionFactory {
+
+    private static final ConcurrentMap<Shape, NodeReference> nodes = new ConcurrentHashMap<Shape, NodeReference>();
+    private static final ReferenceQueue<Expression> collected = new ReferenceQueue<Expression>();
+
+    // Abstraction function
+    //   AF(nodes, collected) = the set of live nodes handed out by this factory, each identified
+    //                          by its kind, name and the identities of its children
+    //
+    // Rep invariant
+    //   - nodes.get(shape).shape == shape
+    //   - a node reachable from nodes has the kind, name and children of its shape
+    //
+    // Safety from rep exposure
+    //   - all fields are private, only immutable nodes are returned
+    //
+    // Thread Safety Argument
+    //   - nodes is a concurrent map and new nodes are published with compute, so two threads
+    //     asking for the same shape get the same node
+    //   - stale references are only removed if they are still the ones mapped to their shape
+
+    /**
+     * The kind, name and children of a node; children are compared by identity, since
+     * children made by this factory are already shared
+     */
+    private static final class Shape {
+        private final Class<?> kind;
+        private final String name;
+        private final Expression[] children;
+        private final int hash;
+
+        private Shape(Class<?> kind, String name, Expression... children) {
+            this.kind = kind;
+            this.name = name;
+            this.children = children;
+            int hash = kind.hashCode() * 31 + Objects.hashCode(name);
+            for (Expression child : children) {
+                hash = hash * 31 + System.identityHashCode(child);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof Shape)) {
+                return false;
+            }
+            final Shape cast = (Shape) that;
+            if (this.hash != cast.hash || this.kind != cast.kind || !Objects.equals(this.name, cast.name)
+                    || this.children.length != cast.children.length) {
+                return false;
+            }
+            for (int i = 0; i < this.children.length; i++) {
+                if (this.children[i] != cast.children[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A weakly held node that remembers its shape, to be removed once the node is collected
+     */
+    private static final class NodeReference extends WeakReference<Expression> {
+        private final Shape shape;
+
+        private NodeReference(Expression node, Shape shape) {
+            super(node, collected);
+            this.shape = shape;
+        }
+    }
+
+    private ExpressionFactory() {
+    }
+
+    /**
+     * @param address email address
+     * @return the shared Email for address
+     */
+    public static Expression email(String address) {
+        return intern(new Shape(Email.class, address), () -> new Email(address));
+    }
+
+    /**
+     * @param name mailing list name
+     * @return the shared MailingList named name
+     */
+    public static Expression mailingList(String name) {
+        return intern(new Shape(MailingList.class, name), () -> new MailingList(name));
+    }
+
+    /**
+     * @param left list expression
+     * @param right list expression
+     * @return the shared Union of left and right
+     */
+    public static Expression union(Expression left, Expression right) {
+        return intern(new Shape(Union.class, null, left, right), () -> new Union(left, right));
+    }
+
+    /**
+     * @param left list expression
+     * @param right list expression
+     * @return the shared Intersection of left and right
+     */
+    public static Expression intersection(Expression left, Expression right) {
+        return intern(new Shape(Intersection.class, null, left, right), () -> new Intersection(left, right));
+    }
+
+    /**
+     * @param left list expression
+     * @param right list expression
+     * @return the shared Difference of left and right
+     */
+    public static Expression difference(Expression left, Expression right) {
+        return intern(new Shape(Difference.class, null, left, right), () -> new Difference(left, right));
+    }
+
+    /**
+     * @param operands at least two list expressions
+     * @return the shared NaryUnion of operands
+     */
+    public static Expression naryUnion(List<Expression> operands) {
+        final Expression[] children = operands.toArray(new Expression[0]);
+        return intern(new Shape(NaryUnion.class, null, children), () -> new NaryUnion(Arrays.asList(children)));
+    }
+
+    /**
+     * @param operands at least two list expressions
+     * @return the shared NaryIntersection of operands
+     */
+    public static Expression naryIntersection(List<Expression> operands) {
+        final Expression[] children = operands.toArray(new Expression[0]);
+        return intern(new Shape(NaryIntersection.class, null, children),
+                () -> new NaryIntersection(Arrays.asList(children)));
+    }
+
+    /**
+     * @param name name of the list to define
+     * @param expr expression defining it
+     * @return the shared ListDefinition of name as expr
+     */
+    public static Expression listDefinition(String name, Expression expr) {
+        return intern(new Shape(ListDefinition.class, name, expr), () -> new ListDefinition(name, expr));
+    }
+
+    /**
+     * @param left expression evaluated first
+     * @param right expression evaluated second
+     * @return the shared Sequence of left and right
+     */
+    public static Expression sequence(Expression left, Expression right) {
+        return intern(new Shape(Sequence.class, null, left, right), () -> new Sequence(left, right));
+    }
+
+    /**
+     * @param left expression
+     * @param right expression
+     * @return the shared Parallel of left and right
+     */
+    public static Expression parallel(Expression left, Expression right) {
+        return intern(new Shape(Parallel.class, null, left, right), () -> new Parallel(left, right));
+    }
+
+    /**
+     * @return the empty expression
+     */
+    public static Expression empty() {
+        return EmptyEmailSet.getEmpty();
+    }
+
+    /**
+     * @return number of nodes currently shared by the factory, including ones that were
+     *         collected but not removed yet
+     */
+    public static int size() {
+        purge();
+        return nodes.size();
+    }
+
+    private static Expression intern(Shape shape, Supplier<Expression> make) {
+        purge();
+        final NodeReference existing = nodes.get(shape);
+        final Expression found = (existing == null) ? null : existing.get();
+        if (found != null) {
+            return found;
+        }
+        final Expression[] result = new Expression[1];
+        nodes.compute(shape, (key, current) -> {
+            result[0] = (current == null) ? null : current.get();
+            if (result[0] != null) {
+                return current;
+            }
+            result[0] = make.get();
+            return new NodeReference(result[0], key);
+        });
+        return result[0];
+    }
+
+    // removes the entries of collected nodes
+    private static void purge() {
+        NodeReference stale;
+        while ((stale = (NodeReference) collected.poll()) != null) {
+            nodes.remove(stale.shape, stale);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Rewrites an expression into a simpler one with the same value, using the laws of set
+ * algebra: idempotence, absorption, propagation of the empty set and self difference, and
+ * pushing a difference below a union when that makes the tree smaller. The rewrite is a
+ * single bottom-up pass, so parents see their children already simplified.
+ *
+ * Only subtrees that are free of side effects are rewritten: no list definitions, sequences
+ * or pipes, and no reads of lists that are undefined (reading one defines it as empty) or
+ * whose definitions define other lists. Larger expressions still get their pure subtrees
+ * simplified, except inside list definitions, which are stored as written.
+ *
+ */
+final class ExpressionOptimizer {
+
+    /**
+     * The rewrite rules the optimizer applies
+     */
+    public enum Rule {
+        /** x, x = x and x * x = x, also (x ! y) ! y = x ! y */
+        IDEMPOTENCE,
+        /** x, (x * y) = x and x * (x, y) = x, also x, (x ! y) = x */
+        ABSORPTION,
+        /** x, empty = x and x * empty = empty, and the same for difference */
+        EMPTY_PROPAGATION,
+        /** x ! x = empty, also x ! (x, y) = empty and (x * y) ! x = empty */
+        SELF_DIFFERENCE,
+        /** (x, y) ! z = (x ! z), (y ! z) when the right side is smaller */
+        DIFFERENCE_PUSHDOWN
+    }
+
+    private static final Map<Rule, LongAdder> totals = new EnumMap<Rule, LongAdder>(Rule.class);
+    static {
+        for (Rule rule : Rule.values()) {
+            totals.put(rule, new LongAdder());
+        }
+    }
+
+    private final Map<String, Expression> map;
+    private final Map<String, Boolean> pureLists = new HashMap<String, Boolean>();
+    private final Set<String> redefined = new HashSet<String>();
+    private Map<Rule, Integer> fired = new EnumMap<Rule, Integer>(Rule.class);
+
+    // Abstraction function
+    //   AF(map, pureLists, redefined, fired) = one run of the optimizer over an expression to be evaluated
+    //                               against map, pureLists.get(name) telling whether reading list name has
+    //                               no side effect, redefined the lists the expression defines before the
+    //                               part being rewritten,
+    //                               fired.get(rule) being the number of times rule was applied so far
+    //
+    // Rep invariant
+    //   - every count in fired is positive
+    //
+    // Safety from rep exposure
+    //   - instances are private to optimize, results only hold copies of fired
+    //
+    // Thread Safety Argument
+    //   - an instance is confined to the thread running optimize
+    //   - totals is never modified after class initialization, and its counters are LongAdders
+
+    /**
+     * The optimized expression and the rules that were applied to get it
+     */
+    public static final class Result {
+        private final Expression expression;
+        private final Map<Rule, Integer> fired;
+
+        private Result(Expression expression, Map<Rule, Integer> fired) {
+            this.expression = expression;
+            this.fired = Collections.unmodifiableMap(new EnumMap<Rule, Integer>(fired));
+        }
+
+        /**
+         * @return the optimized expression
+         */
+        public Expression expression() {
+            return this.expression;
+        }
+
+        /**
+         * @return number of times each rule was applied, rules that were not applied are absent
+         */
+        public Map<Rule, Integer> fired() {
+            return this.fired;
+        }
+    }
+
+    // a rewritten subtree, and whether it has no side effects
+    private static final class Rewritten {
+        private final Expression expression;
+        private final boolean pure;
+
+        private Rewritten(Expression expression, boolean pure) {
+            this.expression = expression;
+            this.pure = pure;
+        }
+    }
+
+    private ExpressionOptimizer(Map<String, Expression> map) {
+        this.map = map;
+    }
+
+    /**
+     * Simplify an expression before evaluating it
+     *
+     * @param expr expression to simplify
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance,
+     *            not modified
+     * @return an expression that evaluates to the same emails and has the same effect on map as expr,
+     *         with the rules that were applied
+     */
+    public static Result optimize(Expression expr, Map<String, Expression> map) {
+        final ExpressionOptimizer optimizer = new ExpressionOptimizer(map);
+        final Expression optimized = optimizer.rewrite(expr).expression;
+        for (Map.Entry<Rule, Integer> entry : optimizer.fired.entrySet()) {
+            totals.get(entry.getKey()).add(entry.getValue());
+        }
+        return new Result(optimized, optimizer.fired);
+    }
+
+    /**
+     * @return number of times each rule was applied by all optimizations so far
+     */
+    public static Map<Rule, Long> totals() {
+        final Map<Rule, Long> counts = new EnumMap<Rule, Long>(Rule.class);
+        for (Map.Entry<Rule, LongAdder> entry : totals.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    private void fire(Rule rule) {
+        this.fired.merge(rule, 1, Integer::sum);
+    }
+
+    private Rewritten rewrite(Expression expr) {
+        if (expr instanceof Email || expr instanceof EmptyEmailSet) {
+            return new Rewritten(expr, true);
+        } else if (expr instanceof MailingList) {
+            return new Rewritten(expr, this.isPureList(((MailingList) expr).getName()));
+        } else if (expr instanceof Union) {
+            return this.rewriteUnion(expr, List.of(((Union) expr).getLeft(), ((Union) expr).getRight()));
+        } else if (expr instanceof NaryUnion) {
+            return this.rewriteUnion(expr, ((NaryUnion) expr).getOperands());
+        } else if (expr instanceof Intersection) {
+            return this.rewriteIntersection(expr,
+                    List.of(((Intersection) expr).getLeft(), ((Intersection) expr).getRight()));
+        } else if (expr instanceof NaryIntersection) {
+            return this.rewriteIntersection(expr, ((NaryIntersection) expr).getOperands());
+        } else if (expr instanceof Difference) {
+            final Difference difference = (Difference) expr;
+            final Rewritten left = this.child(difference.getLeft());
+            final Rewritten right = this.child(difference.getRight());
+            if (left.pure && right.pure) {
+                return new Rewritten(this.difference(left.expression, right.expression), true);
+            }
+            return new Rewritten(left.expression == difference.getLeft() && right.expression == difference.getRight()
+                    ? expr : ExpressionFactory.difference(left.expression, right.expression), false);
+        } else if (expr instanceof Sequence) {
+            final Sequence sequence = (Sequence) expr;
+            final Rewritten left = this.child(sequence.getLeft());
+            final Rewritten right = this.child(sequence.getRight());
+            return new Rewritten(left.expression == sequence.getLeft() && right.expression == sequence.getRight()
+                    ? expr : ExpressionFactory.sequence(left.expression, right.expression), false);
+        }
+        // definitions are stored as written, and pipes check their sides against each other
+        return new Rewritten(expr, false);
+    }
+
+    // rewrites an operand that is evaluated before the operands after it, which must not rely on
+    // the definitions of the lists it defines
+    private Rewritten child(Expression operand) {
+        final Rewritten rewritten = this.rewrite(operand);
+        if (!rewritten.pure) {
+            final Set<String> defined = ListAnalysis.of(operand).defined();
+            if (!defined.isEmpty()) {
+                this.redefined.addAll(defined);
+                this.pureLists.clear();
+            }
+        }
+        return rewritten;
+    }
+
+    // reading a list has no side effect if it is defined, was not redefined by the expression,
+    // and nothing it reaches defines a list
+    private boolean isPureList(String name) {
+        final Boolean known = this.pureLists.get(name);
+        if (known != null) {
+            return known;
+        }
+        this.pureLists.put(name, false);
+        final Expression definition = this.map.get(name);
+        if (definition == null || this.redefined.contains(name)) {
+            return false;
+        }
+        final ListAnalysis analysis = ListAnalysis.of(definition);
+        boolean pure = analysis.defined().isEmpty();
+        for (String referenced : analysis.referenced()) {
+            pure = pure && this.isPureList(referenced);
+        }
+        this.pureLists.put(name, pure);
+        return pure;
+    }
+
+    private Rewritten rewriteUnion(Expression expr, List<Expression> operands) {
+        final List<Expression> rewritten = new ArrayList<Expression>(operands.size());
+        boolean pure = true;
+        boolean changed = false;
+        for (Expression operand : operands) {
+            final Rewritten child = this.child(operand);
+            rewritten.add(child.expression);
+            pure &= child.pure;
+            changed |= child.expression != operand;
+        }
+        if (pure) {
+            return new Rewritten(this.union(rewritten), true);
+        }
+        return new Rewritten(changed ? makeUnion(rewritten) : expr, false);
+    }
+
+    private Rewritten rewriteIntersection(Expression expr, List<Expression> operands) {
+        final List<Expression> rewritten = new ArrayList<Expression>(operands.size());
+        boolean pure = true;
+        boolean changed = false;
+        for (Expression operand : operands) {
+            final Rewritten child = this.child(operand);
+            rewritten.add(child.expression);
+            pure &= child.pure;
+            changed |= child.expression != operand;
+        }
+        if (pure) {
+            return new Rewritten(this.intersection(rewritten), true);
+        }
+        return new Rewritten(changed ? makeIntersection(rewritten) : expr, false);
+    }
+
+    // union of simplified pure operands
+    private Expression union(List<Expression> operands) {
+        final Set<Expression> distinct = new LinkedHashSet<Expression>();
+        for (Expression operand : unionOperands(operands)) {
+            if (operand instanceof EmptyEmailSet) {
+                this.fire(Rule.EMPTY_PROPAGATION);
+            } else if (!distinct.add(operand)) {
+                this.fire(Rule.IDEMPOTENCE);
+            }
+        }
+        final List<Expression> kept = new ArrayList<Expression>(distinct.size());
+        for (Expression operand : distinct) {
+            if (this.absorbedByUnion(operand, distinct)) {
+                this.fire(Rule.ABSORPTION);
+            } else {
+                kept.add(operand);
+            }
+        }
+        return makeUnion(kept);
+    }
+
+    // x * ... or x ! ... is absorbed by a union that also has x as an operand
+    private boolean absorbedByUnion(Expression operand, Set<Expression> operands) {
+        if (operand instanceof Difference) {
+            return operands.contains(((Difference) operand).getLeft());
+        }
+        if (operand instanceof Intersection || operand instanceof NaryIntersection) {
+            for (Expression factor : intersectionOperands(List.of(operand))) {
+                if (operands.contains(factor)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // intersection of simplified pure operands
+    private Expression intersection(List<Expression> operands) {
+        final Set<Expression> distinct = new LinkedHashSet<Expression>();
+        for (Expression operand : intersectionOperands(operands)) {
+            if (operand instanceof EmptyEmailSet) {
+                this.fire(Rule.EMPTY_PROPAGATION);
+                return EmptyEmailSet.getEmpty();
+            } else if (!distinct.add(operand)) {
+                this.fire(Rule.IDEMPOTENCE);
+            }
+        }
+        final List<Expression> kept = new ArrayList<Expression>(distinct.size());
+        for (Expression operand : distinct) {
+            if (this.absorbedByIntersection(operand, distinct)) {
+                this.fire(Rule.ABSORPTION);
+            } else {
+                kept.add(operand);
+            }
+        }
+        return makeIntersection(kept);
+    }
+
+    // x, ... is absorbed by an intersection that also has x as an operand
+    private boolean absorbedByIntersection(Expression operand, Set<Expression> operands) {
+        if (operand instanceof Union || operand instanceof NaryUnion) {
+            for (Expression term : unionOperands(List.of(operand))) {
+                if (operands.contains(term)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // difference of simplified pure operands
+    private Expression difference(Expression left, Expression right) {
+        if (left instanceof EmptyEmailSet) {
+            this.fire(Rule.EMPTY_PROPAGATION);
+            return left;
+        }
+        if (right instanceof EmptyEmailSet) {
+            this.fire(Rule.EMPTY_PROPAGATION);
+            return left;
+        }
+        if (left.equals(right) || unionOperands(List.of(right)).contains(left)
+                || intersectionOperands(List.of(left)).contains(right)) {
+            this.fire(Rule.SELF_DIFFERENCE);
+            return EmptyEmailSet.getEmpty();
+        }
+        if (left instanceof Difference && ((Difference) left).getRight().equals(right)) {
+            this.fire(Rule.IDEMPOTENCE);
+            return left;
+        }
+        if (left instanceof Union || left instanceof NaryUnion) {
+            final Map<Rule, Integer> before = new EnumMap<Rule, Integer>(this.fired);
+            final List<Expression> pieces = new ArrayList<Expression>();
+            for (Expression term : unionOperands(List.of(left))) {
+                pieces.add(this.difference(term, right));
+            }
+            final Expression pushed = this.union(pieces);
+            if (size(pushed) < size(left) + size(right) + 1) {
+                this.fire(Rule.DIFFERENCE_PUSHDOWN);
+                return pushed;
+            }
+            this.fired = before;
+        }
+        return ExpressionFactory.difference(left, right);
+    }
+
+    // operands of unions nested directly in operands, in order
+    private static List<Expression> unionOperands(List<Expression> operands) {
+        final List<Expression> flat = new ArrayList<Expression>();
+        for (Expression operand : operands) {
+            if (operand instanceof Union) {
+                flat.addAll(unionOperands(List.of(((Union) operand).getLeft(), ((Union) operand).getRight())));
+            } else if (operand instanceof NaryUnion) {
+                flat.addAll(unionOperands(((NaryUnion) operand).getOperands()));
+            } else {
+                flat.add(operand);
+            }
+        }
+        return flat;
+    }
+
+    // operands of intersections nested directly in operands, in order
+    private static List<Expression> intersectionOperands(List<Expression> operands) {
+        final List<Expression> flat = new ArrayList<Expression>();
+        for (Expression operand : operands) {
+            if (operand instanceof Intersection) {
+                flat.addAll(intersectionOperands(
+                        List.of(((Intersection) operand).getLeft(), ((Intersection) operand).getRight())));
+            } else if (operand instanceof NaryIntersection) {
+                flat.addAll(intersectionOperands(((NaryIntersection) operand).getOperands()));
+            } else {
+                flat.add(operand);
+            }
+        }
+        return flat;
+    }
+
+    private static Expression makeUnion(List<Expression> operands) {
+        switch (operands.size()) {
+        case 0:
+            return EmptyEmailSet.getEmpty();
+        case 1:
+            return operands.get(0);
+        case 2:
+            return ExpressionFactory.union(operands.get(0), operands.get(1));
+        default:
+            return ExpressionFactory.naryUnion(operands);
+        }
+    }
+
+    private static Expression makeIntersection(List<Expression> operands) {
+        switch (operands.size()) {
+        case 0:
+            return EmptyEmailSet.getEmpty();
+        case 1:
+            return operands.get(0);
+        case 2:
+            return ExpressionFactory.intersection(operands.get(0), operands.get(1));
+        default:
+            return ExpressionFactory.naryIntersection(operands);
+        }
+    }
+
+    // number of nodes of a pure expression
+    private static int size(Expression expr) {
+        if (expr instanceof Union) {
+            return 1 + size(((Union) expr).getLeft()) + size(((Union) expr).getRight());
+        } else if (expr instanceof Intersection) {
+            return 1 + size(((Intersection) expr).getLeft()) + size(((Intersection) expr).getRight());
+        } else if (expr instanceof Difference) {
+            return 1 + size(((Difference) expr).getLeft()) + size(((Difference) expr).getRight());
+        } else if (expr instanceof NaryUnion || expr instanceof NaryIntersection) {
+            final List<Expression> operands = (expr instanceof NaryUnion)
+                    ? ((NaryUnion) expr).getOperands() : ((NaryIntersection) expr).getOperands();
+            int size = 1;
+            for (Expression operand : operands) {
+                size += size(operand);
+            }
+            return size;
+        }
+        return 1;
+    }
+}
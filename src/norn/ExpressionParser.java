@@ -2,6 +2,8 @@ package norn;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import edu.mit.eecs.parserlib.ParseTree;
@@ -21,6 +23,8 @@ public class ExpressionParser {
 
     }
     
+    private static final String GRAMMAR = "ListExpression.g";
+    
     // the nonterminals of the grammar
     private static enum ExpressionGrammar {
         EXPRESSION, PRIMITIVE, WHITESPACE, EMAIL, MAILINGLIST, DIFFERENCE,
@@ -28,18 +32,56 @@ public class ExpressionParser {
         
     }
     
-    private static Parser<ExpressionGrammar> parser = makeParser();
+    /**
+     * The parsers parse can use; both make the same expressions
+     */
+    public static enum Implementation {
+        /** the grammar in ListExpression.g, compiled by parserlib */
+        PARSERLIB,
+        /** the hand-written ExpressionDescentParser */
+        DESCENT
+    }
+    
+    private static volatile Implementation implementation =
+            "parserlib".equalsIgnoreCase(System.getProperty("norn.parser")) ? Implementation.PARSERLIB : Implementation.DESCENT;
+    
+    /**
+     * @return the parser parse uses, chosen with -Dnorn.parser=parserlib|descent or setImplementation
+     */
+    public static Implementation getImplementation() {
+        return implementation;
+    }
+    
+    /**
+     * Choose the parser parse uses
+     * 
+     * @param chosen parser to use from now on
+     */
+    public static void setImplementation(Implementation chosen) {
+        implementation = chosen;
+    }
+    
+    /**
+     * Holds the parserlib parser, so the grammar is only compiled the first time it is used
+     */
+    private static final class ParserlibHolder {
+        private static final Parser<ExpressionGrammar> PARSER = makeParser();
+    }
     
     /**
-     * Compile the grammar into a parser.
+     * Compile the grammar into a parser. The grammar is read from the classpath, next to this
+     * class, so that it is found whatever the working directory; when it was not copied there,
+     * it is read relative to the project root.
      * 
      * @return parser for the grammar
      * @throws RuntimeException if grammar file can't be read or has syntax errors
      */
     private static Parser<ExpressionGrammar> makeParser() {
-        try {
-            // read the grammar as a file, relative to the project root.
-            final File grammarFile = new File("src/norn/ListExpression.g");
+        try (InputStream grammar = ExpressionParser.class.getResourceAsStream(GRAMMAR)) {
+            if (grammar != null) {
+                return Parser.compile(grammar, ExpressionGrammar.EXPRESSION);
+            }
+            final File grammarFile = new File("src/norn/" + GRAMMAR);
             return Parser.compile(grammarFile, ExpressionGrammar.EXPRESSION);
 
         // Parser.compile() throws two checked exceptions.
@@ -60,9 +102,24 @@ public class ExpressionParser {
      * @throws UnableToParseException if the string doesn't match the Expression grammar
      */
     public static Expression parse (final String string) throws UnableToParseException {
+        return parse(string, implementation);
+    }
+    
+    /**
+     * Parse a string into an expression with a given parser.
+     * 
+     * @param string string to parse
+     * @param with parser to use
+     * @return Expression parsed from the string
+     * @throws UnableToParseException if the string doesn't match the Expression grammar
+     */
+    public static Expression parse (final String string, final Implementation with) throws UnableToParseException {
+        if (with == Implementation.DESCENT) {
+            return ExpressionDescentParser.parse(string);
+        }
 
         // parse the example into a parse tree
-        final ParseTree<ExpressionGrammar> parseTree = parser.parse(string);
+        final ParseTree<ExpressionGrammar> parseTree = ParserlibHolder.PARSER.parse(string);
 
         // display the parse tree in various ways, for debugging only
         // System.out.println("parse tree " + parseTree);
@@ -90,21 +147,28 @@ public class ExpressionParser {
         
         case EMAIL: // email ::= [a-zA-Z0-9_.-+]* '@' [a-zA-Z0-9_.-]*;
             {
-                return new Email(parseTree.text());
+                return ExpressionFactory.email(parseTree.text());
             }
             
         case MAILINGLIST: // mailingList ::= [a-zA-Z0-9_.-]*;
             {
-                return new MailingList(parseTree.text());
+                return ExpressionFactory.mailingList(parseTree.text());
             }
             
         case UNION: // union ::= primitive (',' primitive)*;
             {
                 final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                if (children.size() > 2) {
+                    final List<Expression> operands = new ArrayList<Expression>(children.size());
+                    for (ParseTree<ExpressionGrammar> child : children) {
+                        operands.add(makeAbstractSyntaxTree(child));
+                    }
+                    return ExpressionFactory.naryUnion(operands);
+                }
                 Expression expression = makeAbstractSyntaxTree(children.get(0));
 
                 for (int i = 1; i < children.size(); ++i) {
-                    expression = new Union(expression, makeAbstractSyntaxTree(children.get(i)));
+                    expression = ExpressionFactory.union(expression, makeAbstractSyntaxTree(children.get(i)));
                 }
                 return expression;
             }
@@ -115,7 +179,7 @@ public class ExpressionParser {
                 Expression expression = makeAbstractSyntaxTree(children.get(0));
 
                 for (int i = 1; i < children.size(); ++i) {
-                    expression = new Difference(expression, makeAbstractSyntaxTree(children.get(i)));
+                    expression = ExpressionFactory.difference(expression, makeAbstractSyntaxTree(children.get(i)));
                 }
                 return expression;
             }
@@ -123,10 +187,17 @@ public class ExpressionParser {
         case INTERSECTION: // intersection ::= difference ('*' difference)*;
             {
                 final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                if (children.size() > 2) {
+                    final List<Expression> operands = new ArrayList<Expression>(children.size());
+                    for (ParseTree<ExpressionGrammar> child : children) {
+                        operands.add(makeAbstractSyntaxTree(child));
+                    }
+                    return ExpressionFactory.naryIntersection(operands);
+                }
                 Expression expression = makeAbstractSyntaxTree(children.get(0));
 
                 for (int i = 1; i < children.size(); ++i) {
-                    expression = new Intersection(expression, makeAbstractSyntaxTree(children.get(i)));
+                    expression = ExpressionFactory.intersection(expression, makeAbstractSyntaxTree(children.get(i)));
                 }
                 return expression;
             }
@@ -139,15 +210,15 @@ public class ExpressionParser {
             Expression expression = EmptyEmailSet.getEmpty();
 
             if (children.size()==1) {
-                return new ListDefinition(name, EmptyEmailSet.getEmpty());
+                return ExpressionFactory.listDefinition(name, EmptyEmailSet.getEmpty());
             } else if (children.size()==2) {
-                return new ListDefinition(name, makeAbstractSyntaxTree(children.get(1)));
+                return ExpressionFactory.listDefinition(name, makeAbstractSyntaxTree(children.get(1)));
             }
             
             expression = makeAbstractSyntaxTree(children.get(1));
             
             for (int i = 2; i < children.size(); ++i) {
-                expression = new ListDefinition(children.get(i-1).text(), makeAbstractSyntaxTree(children.get(i)));
+                expression = ExpressionFactory.listDefinition(children.get(i-1).text(), makeAbstractSyntaxTree(children.get(i)));
             }
             return expression;
         }
@@ -161,7 +232,7 @@ public class ExpressionParser {
             }
             
             for (int i = 1; i < children.size(); ++i) {
-                expression = new Sequence(expression, makeAbstractSyntaxTree(children.get(i)));
+                expression = ExpressionFactory.sequence(expression, makeAbstractSyntaxTree(children.get(i)));
             }
             
             return expression;
@@ -172,7 +243,7 @@ public class ExpressionParser {
             Expression expression = makeAbstractSyntaxTree(children.get(0));
 
             for (int i = 1; i < children.size(); ++i) {
-                expression = new Parallel(expression, makeAbstractSyntaxTree(children.get(i)));
+                expression = ExpressionFactory.parallel(expression, makeAbstractSyntaxTree(children.get(i)));
             }
             return expression;
         }   
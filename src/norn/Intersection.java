@@ -1,11 +1,12 @@
 package norn;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 
 /**
@@ -17,12 +18,14 @@ import java.util.TreeSet;
 class Intersection implements Expression {
     
     private final Expression left, right;
+    private final int hash;
 
     // Abstraction function
     //   AF(left, right) = represents the items found in both left and right expressions
     //
     // Rep invariant
     //   - holds emails that are found in both expressions passed in
+    //   - hash == left.hashCode() + right.hashCode()
     //
     // Safety from rep exposure
     //   - all fields are immutable, private and final
@@ -42,48 +45,75 @@ class Intersection implements Expression {
     public Intersection(Expression left, Expression right) {
         this.left = left;
         this.right = right;
+        this.hash = left.hashCode() + right.hashCode();
     }
     
-    private void checkRep(Map<String, Expression> map) {
-        SortedSet<String> thisEmails = this.evaluate(map);
-        Set<String> emailsLeft = this.left.evaluate(map);
-        Set<String> emailsRight = this.right.evaluate(map);
+    private void checkRep(EmailSet thisEmails, EmailSet emailsLeft, EmailSet emailsRight) {
         // for everything in the left, if it is in the right, make sure it is in these emails
-        for(String email : emailsLeft) {
-            if(emailsRight.contains(email)) {
-                assert thisEmails.contains(email);
-            }
+        assert emailsLeft.and(emailsRight).andNot(thisEmails).isEmpty();
+    }
+    
+    @Override
+    public EmailSet members (Map<String, Expression> map){
+        EmailSet[] sides = ParallelEvaluation.members(List.of(this.left, this.right), map);
+        EmailSet emailsLeft = sides[0];
+        EmailSet emailsRight = sides[1];
+        EmailSet emails = ParallelEvaluation.intersection(emailsLeft, emailsRight);
+        if (RepInvariants.enabled()) {
+            this.checkRep(emails, emailsLeft, emailsRight);
         }
+        return emails;
     }
     
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
-        Set<String> emailsLeft = new HashSet<String>(this.left.evaluate(map));
-        Set<String> emailsRight = new HashSet<String>(this.right.evaluate(map));
-        SortedSet<String> ret = new TreeSet<String>();
-
-        for(String email : emailsLeft) {
-            if (emailsRight.contains(email)) {
-                ret.add(email);
-            }
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        boolean inLeft = this.left.contains(email, map, skip);
+        if (!inLeft && skip) {
+            return false;
         }
-        return Collections.unmodifiableSortedSet(ret);
+        boolean inRight = this.right.contains(email, map, skip);
+        return inLeft && inRight;
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        EmailSet emailsLeft = this.left.trace(map, tracer);
+        EmailSet emailsRight = this.right.trace(map, tracer);
+        EmailSet emails = emailsLeft.and(emailsRight);
+        tracer.exit(this, emails);
+        return emails;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        EmailCursor emailsLeft = this.left.cursor(map);
+        EmailCursor emailsRight = this.right.cursor(map);
+        return EmailCursors.intersection(emailsLeft, emailsRight);
     }
     
     @Override
     public Set<String> subLists(Map<String, Expression> map, Set<String> seen, boolean onlyListDefs) {
-        this.checkRep(map);
         Set<String> s = this.left.subLists(map, seen, onlyListDefs);
         s.addAll(this.right.subLists(map, seen, onlyListDefs));
         seen.addAll(s);
-        this.checkRep(map);
         return s;
     }
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        this.left.collectLists(defined, referenced);
+        this.right.collectLists(defined, referenced);
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
-        this.checkRep(map);
-        return new Intersection(left.cycle(cycleName, map), right.cycle(cycleName, map));
+        Expression cycledLeft = this.left.cycle(cycleName, map);
+        Expression cycledRight = this.right.cycle(cycleName, map);
+        if (cycledLeft == this.left && cycledRight == this.right) {
+            return this;
+        }
+        return ExpressionFactory.intersection(cycledLeft, cycledRight);
     }
     
     /**
@@ -109,17 +139,26 @@ class Intersection implements Expression {
     
     @Override
     public boolean equals (Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof NaryIntersection) {
+            return that.equals(this);
+        }
         if (!(that instanceof Intersection)) {
             return false;
         }
         
         Intersection cast = (Intersection) that;
+        if (this.hash != cast.hash) {
+            return false;
+        }
         return this.left.equals(cast.left) && this.right.equals(cast.right);
     }
 
     @Override
     public int hashCode () {
-        return this.left.hashCode() + this.right.hashCode();
+        return this.hash;
     }
 
 }
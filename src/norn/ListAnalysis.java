@@ -0,0 +1,120 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * Structural analysis of an expression: which mailing lists it defines, which it reads,
+ * and which lists it reaches through the definitions in a namespace. The analysis only
+ * walks expression trees and never evaluates a member set, so checking a definition or
+ * a pipe costs time proportional to the size of the expressions involved.
+ *
+ */
+final class ListAnalysis {
+
+    private final Set<String> defined;
+    private final Set<String> referenced;
+
+    // Abstraction function
+    //   AF(defined, referenced) = the lists defined and the lists read by one expression,
+    //                             not counting lists that only appear inside their definitions
+    //
+    // Rep invariant
+    //   true
+    //
+    // Safety from rep exposure
+    //   - fields are private, final and only returned as unmodifiable views
+    //
+    // Thread Safety Argument
+    //   - the sets are never modified after construction and only returned unmodifiable
+
+    private ListAnalysis(Set<String> defined, Set<String> referenced) {
+        this.defined = defined;
+        this.referenced = referenced;
+    }
+
+    /**
+     * @param expr expression to analyse
+     * @return the analysis of expr
+     */
+    public static ListAnalysis of(Expression expr) {
+        final Set<String> defined = new HashSet<String>();
+        final Set<String> referenced = new HashSet<String>();
+        expr.collectLists(defined, referenced);
+        return new ListAnalysis(defined, referenced);
+    }
+
+    /**
+     * @return names of the lists the expression defines
+     */
+    public Set<String> defined() {
+        return Collections.unmodifiableSet(this.defined);
+    }
+
+    /**
+     * @return names of the lists the expression reads directly
+     */
+    public Set<String> referenced() {
+        return Collections.unmodifiableSet(this.referenced);
+    }
+
+    /**
+     * Every list that appears in the expression or, transitively, in the definition of a list
+     * it reads, whether that list is read or defined there
+     *
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return new mutable set of list names
+     */
+    public Set<String> reachable(Map<String, Expression> map) {
+        final Set<String> reached = new HashSet<String>(this.defined);
+        reached.addAll(closure(this.referenced, map));
+        return reached;
+    }
+
+    /**
+     * Checks that the expression can be assigned to a list without creating a cycle:
+     * apart from the list itself, no list the expression reads may reach it
+     *
+     * @param name name of the list the expression is assigned to
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @throws ListConflictException if assigning would create a cycle
+     */
+    public void checkAcyclic(String name, Map<String, Expression> map) {
+        final Set<String> others = new HashSet<String>(this.referenced);
+        others.remove(name);
+        if (closure(others, map).contains(name)) {
+            throw new ListConflictException("cycle detected");
+        }
+    }
+
+    /**
+     * @param names list names to start from
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return names, and every list that appears in the definition of a list already in the result
+     */
+    private static Set<String> closure(Set<String> names, Map<String, Expression> map) {
+        final Set<String> reached = new HashSet<String>(names);
+        final Deque<String> pending = new ArrayDeque<String>(names);
+        while (!pending.isEmpty()) {
+            final Expression definition = map.get(pending.remove());
+            if (definition == null) {
+                continue;
+            }
+            final Set<String> defined = new HashSet<String>();
+            final Set<String> referenced = new HashSet<String>();
+            definition.collectLists(defined, referenced);
+            reached.addAll(defined);
+            for (String next : referenced) {
+                if (reached.add(next)) {
+                    pending.add(next);
+                }
+            }
+        }
+        return reached;
+    }
+}
@@ -0,0 +1,18 @@
+package norn;
+
+/**
+ * Thrown when an expression is valid syntax but its definitions conflict with each other or with
+ * the lists already defined: a definition that would make a list depend on itself, or a pipe
+ * whose sides depend on each other's definitions.
+ */
+class ListConflictException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message what conflicts
+     */
+    public ListConflictException(String message) {
+        super(message);
+    }
+}
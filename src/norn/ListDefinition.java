@@ -3,15 +3,9 @@ package norn;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-/**
- * 
- * An expression that represents defining a mailing list
- * to an expression
- * 
- * @author brettallen
- *
- */
-import java.util.SortedSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailSet;
 
 /**
  * 
@@ -28,6 +22,7 @@ class ListDefinition implements Expression{
     //
     // Rep invariant
     //   - true, because the name can be anything and assigned to any expression
+    //   - hash == name.hashCode() + expr.hashCode()
     //
     // Safety from rep exposure
     //   - all fields are immutable, private and final
@@ -39,6 +34,7 @@ class ListDefinition implements Expression{
     
     private final String name;
     private final Expression expr;
+    private final int hash;
     
     /**
      * 
@@ -51,6 +47,7 @@ class ListDefinition implements Expression{
     public ListDefinition (String name, Expression expr) {
         this.name = name;
         this.expr = expr;
+        this.hash = name.hashCode() + expr.hashCode();
     }
     
     
@@ -88,10 +85,43 @@ class ListDefinition implements Expression{
      * 
      */
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
+    public EmailSet members (Map<String, Expression> map){
+        ListAnalysis.of(this.expr).checkAcyclic(name, map);
+        Expression a = this.expr.cycle(name, map);
+
+        EmailSet s = this.expr.members(map);
+        map.put(name, a);
+        return s;
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        ListAnalysis.of(this.expr).checkAcyclic(name, map);
+        Expression a = this.expr.cycle(name, map);
+
+        boolean found = this.expr.contains(email, map, skip);
+        map.put(name, a);
+        return found;
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        ListAnalysis.of(this.expr).checkAcyclic(name, map);
         Expression a = this.expr.cycle(name, map);
 
-        SortedSet<String> s = this.expr.evaluate(map);
+        EmailSet s = this.expr.trace(map, tracer);
+        map.put(name, a);
+        tracer.exit(this, s);
+        return s;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        ListAnalysis.of(this.expr).checkAcyclic(name, map);
+        Expression a = this.expr.cycle(name, map);
+
+        EmailCursor s = this.expr.cursor(map);
         map.put(name, a);
         return s;
     }
@@ -114,9 +144,19 @@ class ListDefinition implements Expression{
         return new HashSet<String>();
     }
 
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        defined.add(this.name);
+        this.expr.collectLists(defined, referenced);
+    }
+
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
-        return new ListDefinition(this.name, expr.cycle(cycleName, map));
+        Expression cycled = this.expr.cycle(cycleName, map);
+        if (cycled == this.expr) {
+            return this;
+        }
+        return ExpressionFactory.listDefinition(this.name, cycled);
     }
 
     @Override
@@ -126,17 +166,23 @@ class ListDefinition implements Expression{
     
     @Override
     public boolean equals (Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof ListDefinition)) {
             return false;
         }
         
         ListDefinition cast = (ListDefinition) that;
+        if (this.hash != cast.hash) {
+            return false;
+        }
         return (this.name.equals(cast.name) && this.expr.equals(cast.expr));
     }
 
     @Override
     public int hashCode () {
-        return this.name.hashCode() + this.expr.hashCode();
+        return this.hash;
     }
 
 }
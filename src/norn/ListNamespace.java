@@ -0,0 +1,437 @@
+package norn;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * The list namespace maps mailing list names to their definitions, like any other map
+ * handed to Expression.evaluate, and also remembers the member set of every list it has
+ * evaluated. Each cached set is stamped with the version of its list, and redefining a
+ * list bumps the version of that list and of every list that depends on it, found with
+ * a reverse dependency index. Reading an unchanged list is then a single lookup, and
+ * reading a changed one runs the compiled form of its definition.
+ *
+ * When the members of a redefined list were cached, and so are those of everything its
+ * new definition reads, the new members are computed right away and the change is pushed
+ * through the lists that depend on it (ViewMaintenance): each one whose definition is made
+ * of set operations, and whose other lists are cached, has its cached members updated from
+ * the emails that entered or left the lists it reads, so it stays a single lookup. The
+ * others lose their cached members as before.
+ *
+ */
+class ListNamespace extends AbstractMap<String, Expression> {
+
+    private final ConcurrentMap<String, Expression> definitions = new ConcurrentHashMap<String, Expression>();
+    private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, CachedMembers> cache = new ConcurrentHashMap<String, CachedMembers>();
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+    private final AtomicLong clock = new AtomicLong();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private volatile DefinitionLog log = null;
+    private volatile MembershipIndex index = null;
+
+    // Abstraction function
+    //   AF(definitions, versions, cache, dependencies, dependents, clock, changed, log) = the mailing lists
+    //     named by the keys of definitions, each defined by its expression; cache.get(name).members is
+    //     the value of name whenever cache.get(name).version equals versions.get(name); changed are the
+    //     lists defined or removed since the last checkpoint, and log records every change if not null;
+    //     index, if not null, is told about every list whose members may have changed
+    //
+    // Rep invariant
+    //   - dependencies.get(name) is the set of list names read directly by definitions.get(name)
+    //   - b in dependents.get(a) iff a in dependencies.get(b)
+    //   - versions only increase, and every version is a distinct value taken from clock
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final
+    //   - entrySet and keySet are unmodifiable views, member sets are immutable
+    //
+    // Thread Safety Argument
+    //   - definitions, versions and cache are concurrent maps
+    //   - dependencies and dependents are only touched while holding this
+    //   - a changed list gets a new version after its definition is stored, so an evaluation that
+    //     raced with the change caches its result under a version that will never be current again
+    //   - maintained members are computed while holding this, only from cached members, so no list
+    //     is evaluated (and none defined) under the lock; they are cached under the new versions
+    //   - results are only cached if no list changed while they were computed, so side effects of
+    //     nested definitions are never skipped by a cache hit
+    //   - copy holds this, so no definition changes while it pairs definitions with cached members; a
+    //     member set cached for a version is the value of the definition of that version
+    //   - changes are recorded in log while holding this, so the log has them in the order they happened
+    //   - index is told about changes while holding this, and only adds them to a concurrent set, so it
+    //     never waits for a lock while this is held
+    //   - changed is a concurrent set, added to and taken while holding this, so a change is never
+    //     lost between the copy and the clear of takeChanged
+
+    /**
+     * A member set computed for a given version of a list
+     */
+    private static final class CachedMembers {
+        private final long version;
+        private final EmailSet members;
+
+        private CachedMembers(long version, EmailSet members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+
+    /**
+     * Make an empty namespace
+     */
+    public ListNamespace() {
+    }
+
+    /**
+     * Records every later change of this namespace in log
+     *
+     * @param log write-ahead log of this namespace
+     */
+    void attach(DefinitionLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Reports every later change of the members of a list of this namespace to index
+     *
+     * @param index reverse index of this namespace
+     */
+    void attach(MembershipIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Starts a new checkpoint
+     *
+     * @return the names of the lists defined or removed since the previous one
+     */
+    public synchronized Set<String> takeChanged() {
+        final Set<String> names = Set.copyOf(this.changed);
+        this.changed.clear();
+        return names;
+    }
+
+    /**
+     * Counts lists as changed since the current checkpoint again, when saving them failed
+     *
+     * @param names names of lists
+     */
+    public void markChanged(Set<String> names) {
+        this.changed.addAll(names);
+    }
+
+    /**
+     * Evaluates the mailing list with the given name, reusing the members computed
+     * by an earlier evaluation if neither the list nor anything it depends on changed since
+     *
+     * @param name name of the mailing list
+     * @return the emails of that list, empty if the list was undefined (it is then defined as empty)
+     */
+    public EmailSet members(String name) {
+        final long version = this.versions.getOrDefault(name, 0L);
+        final CachedMembers cached = this.cache.get(name);
+        if (cached != null && cached.version == version && version != 0) {
+            return cached.members;
+        }
+
+        final Expression definition = this.definitions.get(name);
+        if (definition == null) {
+            this.put(name, EmptyEmailSet.getEmpty());
+            return EmailSet.empty();
+        }
+
+        final long start = this.clock.get();
+        final EmailSet members = ExpressionCompiler.compile(definition).members(this);
+        if (this.clock.get() == start) {
+            this.cache.put(name, new CachedMembers(version, members));
+        }
+        return members;
+    }
+
+    /**
+     * @param name name of a mailing list
+     * @return number of emails of that list if its members are cached and current, otherwise -1
+     */
+    public int cachedSize(String name) {
+        final EmailSet cached = this.cached(name);
+        return cached != null ? cached.cardinality() : -1;
+    }
+
+    /**
+     * @param name name of a mailing list
+     * @return the emails of that list if they are cached and current, otherwise null
+     */
+    public EmailSet cached(String name) {
+        final long version = this.versions.getOrDefault(name, 0L);
+        final CachedMembers cached = this.cache.get(name);
+        return cached != null && cached.version == version && version != 0 ? cached.members : null;
+    }
+
+    /**
+     * Caches the members of a list computed elsewhere, as if members(name) had just computed them
+     *
+     * @param name name of a defined mailing list
+     * @param members the value of its current definition in this namespace; the caller must make sure
+     *                evaluating that definition would have been cached, i.e. it defines no list
+     */
+    public void prime(String name, EmailSet members) {
+        final long version = this.versions.getOrDefault(name, 0L);
+        if (version != 0) {
+            this.cache.put(name, new CachedMembers(version, members));
+        }
+    }
+
+    /**
+     * Copies the definitions and the cached members of this namespace as they are at one moment, so
+     * that every copied member set is the value of the copied definition of its list
+     *
+     * @param members map that the current cached members of each list that has them are put into
+     * @return copy of the definitions
+     */
+    public synchronized Map<String, Expression> copy(Map<String, EmailSet> members) {
+        final Map<String, Expression> copy = new LinkedHashMap<String, Expression>(this.definitions);
+        for (String name : copy.keySet()) {
+            final EmailSet cached = this.cached(name);
+            if (cached != null) {
+                members.put(name, cached);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @param name name of a mailing list
+     * @return the current version of that list, 0 if it was never defined
+     */
+    public long version(String name) {
+        return this.versions.getOrDefault(name, 0L);
+    }
+
+    @Override
+    public Expression get(Object name) {
+        return this.definitions.get(name);
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return this.definitions.containsKey(name);
+    }
+
+    @Override
+    public int size() {
+        return this.definitions.size();
+    }
+
+    @Override
+    public Expression put(String name, Expression definition) {
+        final Set<String> defined = new HashSet<String>();
+        final Set<String> referenced = new HashSet<String>();
+        definition.collectLists(defined, referenced);
+
+        synchronized (this) {
+            final EmailSet before = this.cached(name);
+            final Expression previous = this.definitions.put(name, definition);
+            this.link(name, referenced);
+            final Set<String> affected = this.affected(name);
+            if (before != null && defined.isEmpty() && ViewMaintenance.maintainable(definition)
+                    && referenced.stream().noneMatch(affected::contains)
+                    && referenced.stream().allMatch(list -> this.cached(list) != null)) {
+                this.propagate(name, affected, before, ExpressionCompiler.compile(definition).members(this));
+            } else {
+                this.invalidate(affected);
+            }
+            if (this.index != null) {
+                this.index.stale(affected);
+            }
+            this.changed.add(name);
+            if (this.log != null) {
+                this.log.put(name, definition);
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public Expression remove(Object name) {
+        if (!(name instanceof String)) {
+            return null;
+        }
+        synchronized (this) {
+            final Expression previous = this.definitions.remove(name);
+            if (previous != null) {
+                this.link((String) name, Set.of());
+                final Set<String> affected = this.affected((String) name);
+                this.invalidate(affected);
+                if (this.index != null) {
+                    this.index.stale(affected);
+                }
+                this.changed.add((String) name);
+                if (this.log != null) {
+                    this.log.remove((String) name);
+                }
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (String name : Set.copyOf(this.definitions.keySet())) {
+            this.remove(name);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Expression>> entrySet() {
+        return Collections.unmodifiableSet(this.definitions.entrySet());
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(this.definitions.keySet());
+    }
+
+    // replaces the recorded dependencies of name, caller must hold this
+    private void link(String name, Set<String> referenced) {
+        final Set<String> old = this.dependencies.getOrDefault(name, Set.of());
+        for (String dependency : old) {
+            final Set<String> users = this.dependents.get(dependency);
+            users.remove(name);
+            if (users.isEmpty()) {
+                this.dependents.remove(dependency);
+            }
+        }
+        if (referenced.isEmpty()) {
+            this.dependencies.remove(name);
+        } else {
+            this.dependencies.put(name, referenced);
+        }
+        for (String dependency : referenced) {
+            this.dependents.computeIfAbsent(dependency, k -> new HashSet<String>()).add(name);
+        }
+    }
+
+    // gives every affected list a new version, caller must hold this
+    private void invalidate(Set<String> affected) {
+        for (String current : affected) {
+            this.versions.put(current, this.clock.incrementAndGet());
+            this.cache.remove(current);
+        }
+    }
+
+    // name and every list that transitively depends on it, caller must hold this
+    private Set<String> affected(String name) {
+        final Set<String> seen = new HashSet<String>();
+        final Deque<String> pending = new ArrayDeque<String>();
+        pending.add(name);
+        seen.add(name);
+        while (!pending.isEmpty()) {
+            final String current = pending.remove();
+            for (String dependent : this.dependents.getOrDefault(current, Set.of())) {
+                if (seen.add(dependent)) {
+                    pending.add(dependent);
+                }
+            }
+        }
+        return seen;
+    }
+
+    // gives every affected list a new version, caching members of name and of the dependents that can
+    // be maintained from the change from before to after, caller must hold this
+    private void propagate(String name, Set<String> affected, EmailSet before, EmailSet after) {
+        final Map<String, EmailSet> old = new HashMap<String, EmailSet>();
+        for (String list : affected) {
+            final EmailSet members = this.cached(list);
+            if (members != null) {
+                old.put(list, members);
+            }
+        }
+        old.put(name, before);
+        // members of the unaffected lists read by dependents, which the change leaves as they are
+        final Map<String, EmailSet> unaffected = new HashMap<String, EmailSet>();
+        for (String list : affected) {
+            for (String dependency : this.dependencies.getOrDefault(list, Set.of())) {
+                if (!affected.contains(dependency)) {
+                    final EmailSet members = this.cached(dependency);
+                    if (members != null) {
+                        unaffected.put(dependency, members);
+                    }
+                }
+            }
+        }
+
+        for (String list : affected) {
+            this.versions.put(list, this.clock.incrementAndGet());
+            this.cache.remove(list);
+        }
+        final Map<String, EmailSet> updated = new HashMap<String, EmailSet>();
+        updated.put(name, after);
+        this.cache.put(name, new CachedMembers(this.versions.get(name), after));
+
+        for (String list : this.dependentsInOrder(name, affected)) {
+            final Expression definition = this.definitions.get(list);
+            final Set<String> reads = this.dependencies.getOrDefault(list, Set.of());
+            if (definition == null || !old.containsKey(list) || !ViewMaintenance.maintainable(definition)
+                    || !reads.stream().allMatch(read -> updated.containsKey(read) || unaffected.containsKey(read))) {
+                continue;
+            }
+            EmailSet candidates = EmailSet.empty();
+            for (String read : reads) {
+                if (updated.containsKey(read)) {
+                    candidates = candidates.or(ViewMaintenance.changed(old.get(read), updated.get(read)));
+                }
+            }
+            final EmailSet members = ViewMaintenance.update(definition, old.get(list), candidates,
+                    read -> updated.containsKey(read) ? old.get(read) : unaffected.get(read),
+                    read -> updated.containsKey(read) ? updated.get(read) : unaffected.get(read));
+            updated.put(list, members);
+            this.cache.put(list, new CachedMembers(this.versions.get(list), members));
+        }
+    }
+
+    // the affected lists other than name, each after the affected lists it reads; lists on a
+    // cycle are left out, caller must hold this
+    private List<String> dependentsInOrder(String name, Set<String> affected) {
+        final Map<String, Integer> waiting = new HashMap<String, Integer>();
+        for (String list : affected) {
+            int count = 0;
+            for (String dependency : this.dependencies.getOrDefault(list, Set.of())) {
+                if (affected.contains(dependency)) {
+                    count++;
+                }
+            }
+            waiting.put(list, count);
+        }
+        final List<String> order = new ArrayList<String>();
+        final Deque<String> ready = new ArrayDeque<String>();
+        ready.add(name);
+        while (!ready.isEmpty()) {
+            final String current = ready.remove();
+            if (!current.equals(name)) {
+                order.add(current);
+            }
+            for (String dependent : this.dependents.getOrDefault(current, Set.of())) {
+                if (waiting.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return order;
+    }
+}
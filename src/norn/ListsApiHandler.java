@@ -0,0 +1,115 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.util.SortedSet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ *
+ * Handler for /api/lists, which answers which lists contain an email from the server's reverse
+ * index (MembershipIndex), without evaluating every list.
+ *
+ *   GET /api/lists?email=EMAIL (URL encoded)
+ *
+ *   {"email":"a@mit","lists":["eng","org"],"unindexed":["c"],"micros":40}
+ *
+ * unindexed names the lists the answer does not cover, because evaluating them defines lists. Errors
+ * are a JSON object {"error":"..."}, with status 400 if the email is missing and 405 for any method
+ * other than GET.
+ *
+ */
+final class ListsApiHandler implements HttpHandler {
+
+    private final MembershipIndex index;
+
+    // Abstraction function
+    //   AF(index) = the /api/lists endpoint of a server whose lists are indexed by index
+    //
+    // Rep invariant
+    //   - true
+    //
+    // Safety from rep exposure
+    //   - index is private and final and never returned, it is shared with the server on purpose
+    //
+    // Thread Safety Argument
+    //   - index is thread safe; each exchange is handled on its own with local variables only
+
+    /**
+     * @param index reverse index of the lists of the server
+     */
+    public ListsApiHandler(MembershipIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "GET");
+                EvalApiHandler.sendError(exchange, EvalApiHandler.METHOD_NOT_ALLOWED,
+                        "method " + exchange.getRequestMethod() + " not allowed");
+                return;
+            }
+            final String email = emailParameter(exchange);
+            if (email.isEmpty()) {
+                EvalApiHandler.sendError(exchange, EvalApiHandler.BAD_REQUEST, "missing email");
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final MembershipIndex.Answer answer = this.index.lookup(email);
+            final SortedSet<String> lists = answer.lists();
+            final SortedSet<String> unindexed = answer.unindexed();
+            final long micros = (System.nanoTime() - start) / EvalApiHandler.NANOS_PER_MICRO;
+
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(EvalApiHandler.OK, 0);
+            final Writer out = new OutputStreamWriter(exchange.getResponseBody(), UTF_8);
+            out.write("{\"email\":");
+            EvalApiHandler.writeString(out, email);
+            out.write(",\"lists\":");
+            writeNames(out, lists);
+            out.write(",\"unindexed\":");
+            writeNames(out, unindexed);
+            out.write(",\"micros\":" + micros + "}\n");
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // names as a JSON array
+    private static void writeNames(Writer out, SortedSet<String> names) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                out.write(',');
+            }
+            EvalApiHandler.writeString(out, name);
+            first = false;
+        }
+        out.write(']');
+    }
+
+    // the email query parameter, decoded, or else the path after /api/lists/
+    private static String emailParameter(HttpExchange exchange) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("email=")) {
+                    return URLDecoder.decode(parameter.substring("email=".length()), UTF_8).strip();
+                }
+            }
+        }
+        final String path = exchange.getRequestURI().getPath();
+        return path.length() > "/api/lists/".length() ? path.substring("/api/lists/".length()).strip() : "";
+    }
+}
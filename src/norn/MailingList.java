@@ -3,8 +3,10 @@ package norn;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 
 /**
@@ -44,12 +46,59 @@ class MailingList implements Expression {
     }
     
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
+    public EmailSet members (Map<String, Expression> map){
+        if (map instanceof ListNamespace) {
+            return ((ListNamespace) map).members(name);
+        }
         if (map.containsKey(name)) {
-            return map.get(name).evaluate(map);
+            return map.get(name).members(map);
         } else {
             map.put(name, EmptyEmailSet.getEmpty());
-            return new TreeSet<String>(Set.of());
+            return EmailSet.empty();
+        }
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        if (map instanceof ListNamespace) {
+            EmailSet cached = ((ListNamespace) map).cached(name);
+            if (cached != null) {
+                int id = EmailDictionary.find(email);
+                return id >= 0 && cached.contains(id);
+            }
+        }
+        if (map.containsKey(name)) {
+            return map.get(name).contains(email, map, skip);
+        } else {
+            map.put(name, EmptyEmailSet.getEmpty());
+            return false;
+        }
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        EmailSet s;
+        if (map.containsKey(name)) {
+            s = map.get(name).trace(map, tracer);
+        } else {
+            map.put(name, EmptyEmailSet.getEmpty());
+            s = EmailSet.empty();
+        }
+        tracer.exit(this, s);
+        return s;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        if (map instanceof ListNamespace) {
+            return ((ListNamespace) map).members(name).cursor();
+        }
+        if (map.containsKey(name)) {
+            return map.get(name).cursor(map);
+        } else {
+            map.put(name, EmptyEmailSet.getEmpty());
+            return EmailCursors.empty();
         }
     }
     
@@ -69,14 +118,13 @@ class MailingList implements Expression {
         return s;
     }
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        referenced.add(this.name);
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
-        Set<String> dependentLists = map.getOrDefault(this.name, EmptyEmailSet.getEmpty()).subLists(map, new HashSet<String>(), false);
-        
-        if (dependentLists.contains(cycleName) && !this.name.equals(cycleName)){
-            throw new RuntimeException("cycle detected");
-        }
-        
         if (this.name.equals(cycleName)) {
             return map.getOrDefault(this.name, EmptyEmailSet.getEmpty());
         }
@@ -4,17 +4,16 @@
 package norn;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
 import java.util.SortedSet;
 
 import edu.mit.eecs.parserlib.internal.ParseException;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 /**
  * Start the Norn mailing list system console interface and web server.
@@ -33,10 +32,13 @@ public class Main {
      */
     public static void main (String[] args) throws IOException, IllegalArgumentException, ParseException {
         
-        final WebServer web = new WebServer(8080);
+        // lists defined through the console or the server survive restarts through the log
+        final WebServer web = new WebServer(8080, Paths.get("./files", "wal"));
         web.start();
         
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        // file of the last /save or /snapshot, which incremental saves add deltas to
+        Path checkpoint = null;
         
         while (true) {
             System.out.print("> ");
@@ -50,44 +52,40 @@ public class Main {
             String[] arr = input.split(" ");
             
             if (arr[0].equals("/save")) {
-                Map<String, Expression> map = web.getMap();
-                String fileName = "./files/"+arr[1];
-                String str = "";
-
-                File file = new File(fileName);
-                file.createNewFile();
-                
-                BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-                
-                for (Map.Entry<String, Expression> entry : map.entrySet()) {
-                    str += entry.getKey() + " = " + entry.getValue().toString()+"\n";
+                final Path file = Paths.get("./files", arr[1]);
+                // a delta only makes sense on top of the last checkpoint
+                if (arr.length > 2 && arr[2].equals("incremental") && file.equals(checkpoint)) {
+                    Snapshot.saveDelta(web.getMap(), file);
+                } else {
+                    Snapshot.save(web.getMap(), file);
                 }
-                
-                
-                writer.write(str);
-                 
-                writer.close();
-                
-                
+                checkpoint = file;
+            } else if (arr[0].equals("/snapshot")) {
+                // binary, with the computed member sets unless only the definitions are asked for
+                final boolean withMembers = arr.length < 3 || !arr[2].equals("definitions");
+                final Path file = Paths.get("./files", arr[1]);
+                Snapshot.saveBinary(web.getMap(), file, withMembers);
+                checkpoint = file;
             } else if (arr[0].equals("/load")){
-                String fileName = "./files/"+arr[1];
-                BufferedReader file = new BufferedReader(new FileReader(fileName));
-                
-                String text = file.readLine();
-                while (text!=null) {
-                    final Expression expression = Expression.parse(text);
-                    expression.evaluate(web.getMap());
-                    text = file.readLine();
+                Snapshot.load(Paths.get("./files", arr[1]), web.getMap());
+                web.sync();
+            } else if (arr[0].equals("/lists") && arr.length > 1) {
+                // lists containing an address, from the reverse index
+                final MembershipIndex.Answer answer = web.lookupLists(arr[1]);
+                System.out.println(String.join(", ", answer.lists()));
+                final SortedSet<String> notCovered = answer.unindexed();
+                if (!notCovered.isEmpty()) {
+                    System.out.println("(not covered, they define lists: " + String.join(", ", notCovered) + ")");
+                }
+            } else if (arr[0].equals("/optimizer")) {
+                for (Map.Entry<ExpressionOptimizer.Rule, Long> entry : ExpressionOptimizer.totals().entrySet()) {
+                    System.out.println(entry.getKey() + ": " + entry.getValue());
                 }
-                
-                
-                file.close();
-                
-                
             }
             else {
-                final Expression expression = Expression.parse(input);
-                SortedSet<String> emails = expression.evaluate(web.getMap());
+                final Expression expression = ExpressionOptimizer.optimize(Expression.parse(input), web.getMap()).expression();
+                EmailSet emails = EmailCursors.materialize(expression.cursor(web.getMap()));
+                web.sync();
                 System.out.println(formatOutput(emails));
             }
             
@@ -102,7 +100,7 @@ public class Main {
      * @return a set of string email names that the expression corresponds to
      */
     public static SortedSet<String> parseFactory (Expression expression) {
-        Map<String, Expression> map = new HashMap<String, Expression>();
+        Map<String, Expression> map = new ListNamespace();
         SortedSet<String> a = expression.evaluate(map);
         return a;
         
@@ -129,4 +127,15 @@ public class Main {
             
         return out;
     }
+    
+    /**
+     * Formats a set of email ids to a viewable string format (eg. name1, name2, name3 ...),
+     * decoding the ids to their sorted addresses
+     * 
+     * @param emails the set of email ids
+     * @return formatted string of emails 
+     */
+    public static String formatOutput (EmailSet emails) {
+        return String.join(", ", EmailDictionary.sortedAddresses(emails));
+    }
 }
@@ -0,0 +1,166 @@
+package norn;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Reverse index of a ListNamespace, from each email to the names of the lists whose members include
+ * it, for questions like "which lists is this address on?" that would otherwise evaluate every list.
+ *
+ * The namespace reports every list whose members may have changed (a redefined or removed list and
+ * everything that depends on it) as stale. Stale lists are brought up to date before the next answer:
+ * their members come from the namespace, a cache hit whenever they were maintained (ViewMaintenance),
+ * and only the emails that entered or left a list are moved in the index.
+ *
+ * Lists whose evaluation would define other lists, directly or through the lists they read, are not
+ * indexed, since evaluating them only to index them would redefine those lists; they are reported by
+ * unindexed() so that callers can say the answer does not cover them.
+ *
+ */
+final class MembershipIndex {
+
+    private final ListNamespace lists;
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+    private final Map<String, EmailSet> indexed = new HashMap<String, EmailSet>();
+    private final Map<Integer, Set<String>> containing = new HashMap<Integer, Set<String>>();
+    private final Set<String> unindexed = new HashSet<String>();
+
+    // Abstraction function
+    //   AF(lists, stale, indexed, containing, unindexed) = for every list of lists that is neither stale
+    //     nor in unindexed, the emails of that list are indexed.get(name), and name is in containing.get(id)
+    //     for each of those ids; stale lists are indexed as they were before they changed
+    //
+    // Rep invariant
+    //   - name in containing.get(id) iff indexed.get(name) contains id
+    //   - no set in containing is empty
+    //   - indexed and unindexed are disjoint
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final, answers are new sets
+    //
+    // Thread Safety Argument
+    //   - stale is a concurrent set, added to by the namespace while it holds its own lock, so a change
+    //     never waits for this index
+    //   - indexed, containing and unindexed are only touched while holding this
+    //   - a stale list is taken out of stale before its members are read, so a change made meanwhile
+    //     leaves it stale for the next answer
+
+    /**
+     * The answer for one email, and the lists it does not cover, as of the same moment
+     */
+    public static final class Answer {
+        private final SortedSet<String> lists;
+        private final SortedSet<String> unindexed;
+
+        private Answer(SortedSet<String> lists, SortedSet<String> unindexed) {
+            this.lists = Collections.unmodifiableSortedSet(lists);
+            this.unindexed = Collections.unmodifiableSortedSet(unindexed);
+        }
+
+        /**
+         * @return names of the indexed lists that contain the email, sorted
+         */
+        public SortedSet<String> lists() {
+            return this.lists;
+        }
+
+        /**
+         * @return names of the lists that are not indexed because evaluating them defines lists, sorted
+         */
+        public SortedSet<String> unindexed() {
+            return this.unindexed;
+        }
+    }
+
+    /**
+     * Makes an index of lists that stays up to date as lists change
+     *
+     * @param lists namespace to index
+     */
+    public MembershipIndex(ListNamespace lists) {
+        this.lists = lists;
+        lists.attach(this);
+        this.stale.addAll(lists.keySet());
+    }
+
+    /**
+     * Marks lists as changed, called by the namespace as they change
+     *
+     * @param names names of lists whose members may have changed
+     */
+    void stale(Set<String> names) {
+        this.stale.addAll(names);
+    }
+
+    /**
+     * @param email email address
+     * @return the lists that contain email, and the lists the answer does not cover, both after the
+     *         same refresh
+     */
+    public synchronized Answer lookup(String email) {
+        this.refresh();
+        final int id = EmailDictionary.find(email);
+        final Set<String> names = id >= 0 ? this.containing.get(id) : null;
+        return new Answer(names != null ? new TreeSet<String>(names) : new TreeSet<String>(),
+                new TreeSet<String>(this.unindexed));
+    }
+
+    /**
+     * @param email email address
+     * @return names of the indexed lists that contain email, sorted
+     */
+    public SortedSet<String> listsContaining(String email) {
+        return this.lookup(email).lists();
+    }
+
+    /**
+     * @return names of the lists that are not indexed because evaluating them defines lists, sorted
+     */
+    public synchronized SortedSet<String> unindexed() {
+        this.refresh();
+        return Collections.unmodifiableSortedSet(new TreeSet<String>(this.unindexed));
+    }
+
+    // brings every stale list up to date, caller must hold this
+    private void refresh() {
+        for (String name : List.copyOf(this.stale)) {
+            this.stale.remove(name);
+            final Expression definition = this.lists.get(name);
+            final EmailSet before = this.indexed.getOrDefault(name, EmailSet.empty());
+            final EmailSet after;
+            if (definition == null) {
+                this.unindexed.remove(name);
+                after = EmailSet.empty();
+            } else if (!ParallelEvaluation.readsOnly(List.of(definition), this.lists)) {
+                this.unindexed.add(name);
+                after = EmailSet.empty();
+            } else {
+                this.unindexed.remove(name);
+                after = this.lists.members(name);
+            }
+            before.andNot(after).forEach(id -> {
+                final Set<String> names = this.containing.get(id);
+                names.remove(name);
+                if (names.isEmpty()) {
+                    this.containing.remove(id);
+                }
+            });
+            after.andNot(before).forEach(id -> this.containing.computeIfAbsent(id, k -> new HashSet<String>()).add(name));
+            if (definition != null && !this.unindexed.contains(name)) {
+                this.indexed.put(name, after);
+            } else {
+                this.indexed.remove(name);
+            }
+        }
+    }
+}
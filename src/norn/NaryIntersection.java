@@ -0,0 +1,185 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
+
+/**
+ * 
+ * NaryIntersection represents a chain of intersections, e1 * e2 * ... * en, as a single node so that
+ * the operands are intersected smallest first, or leapfrogged all at once as cursors. It is
+ * equal to, and prints the same as, the left-deep chain of Intersections it stands for.
+ *
+ */
+class NaryIntersection implements Expression {
+    
+    private final List<Expression> operands;
+    private final int hash;
+    
+    // Abstraction function
+    //   AF(operands) = the emails that are in every operand, the same as
+    //                  ((operands[0] * operands[1]) * ...) * operands[n-1])
+    //
+    // Rep invariant
+    //   - operands.size() >= 2
+    //   - hash is the sum of the hash codes of the operands
+    //   - holds the emails found in every operand
+    //
+    // Safety from rep exposure
+    //   - operands is private, final and an unmodifiable copy
+    //   - any returned set is immutable and unrelated to this instance
+    //
+    // Thread Safety Argument
+    //   - all fields and return types are immutable, therefore
+    //     there is no concern for race conditions in regard to mutability
+    
+    /**
+     * 
+     * A list expression that includes emails found in every operand
+     * 
+     * @param operands at least two list expressions, in the order they were written
+     */
+    public NaryIntersection(List<Expression> operands) {
+        this.operands = List.copyOf(operands);
+        int hash = 0;
+        for (Expression operand : this.operands) {
+            hash += operand.hashCode();
+        }
+        this.hash = hash;
+        assert this.operands.size() >= 2;
+    }
+    
+    private void checkRep(EmailSet thisEmails, List<EmailSet> operandEmails) {
+        assert this.operands.size() >= 2;
+        // everything found in every operand must be in these emails, and nothing else
+        EmailSet common = operandEmails.get(0);
+        for (EmailSet emails : operandEmails) {
+            common = common.and(emails);
+        }
+        assert common.equals(thisEmails);
+    }
+    
+    @Override
+    public EmailSet members (Map<String, Expression> map){
+        List<EmailSet> operandEmails = List.of(ParallelEvaluation.members(this.operands, map));
+        EmailSet emails = ParallelEvaluation.intersection(operandEmails);
+        if (RepInvariants.enabled()) {
+            this.checkRep(emails, operandEmails);
+        }
+        return emails;
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        boolean found = true;
+        for (Expression operand : this.operands) {
+            if (!found && skip) {
+                continue;
+            }
+            found = operand.contains(email, map, skip) && found;
+        }
+        return found;
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        // traced as the chain of binary operations it stands for
+        return this.toBinary().trace(map, tracer);
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        List<EmailCursor> cursors = new ArrayList<EmailCursor>(this.operands.size());
+        for (Expression operand : this.operands) {
+            cursors.add(operand.cursor(map));
+        }
+        return EmailCursors.intersection(cursors);
+    }
+    
+    @Override
+    public Set<String> subLists(Map<String, Expression> map, Set<String> seen, boolean onlyListDefs) {
+        Set<String> s = this.operands.get(0).subLists(map, seen, onlyListDefs);
+        for (int i = 1; i < this.operands.size(); i++) {
+            s.addAll(this.operands.get(i).subLists(map, seen, onlyListDefs));
+        }
+        seen.addAll(s);
+        return s;
+    }
+    
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        for (Expression operand : this.operands) {
+            operand.collectLists(defined, referenced);
+        }
+    }
+    
+    @Override
+    public Expression cycle (String cycleName, Map<String, Expression> map) {
+        List<Expression> cycled = new ArrayList<Expression>(this.operands.size());
+        boolean changed = false;
+        for (Expression operand : this.operands) {
+            Expression cycledOperand = operand.cycle(cycleName, map);
+            cycled.add(cycledOperand);
+            changed |= cycledOperand != operand;
+        }
+        return changed ? ExpressionFactory.naryIntersection(cycled) : this;
+    }
+    
+    /**
+     * 
+     * @return the operands, in the order they were written
+     */
+    public List<Expression> getOperands() {
+        return this.operands;
+    }
+    
+    /**
+     * 
+     * @return the left-deep chain of Intersections this expression stands for, shared through ExpressionFactory
+     */
+    public Intersection toBinary() {
+        Expression chain = ExpressionFactory.intersection(this.operands.get(0), this.operands.get(1));
+        for (int i = 2; i < this.operands.size(); i++) {
+            chain = ExpressionFactory.intersection(chain, this.operands.get(i));
+        }
+        return (Intersection) chain;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i < this.operands.size(); i++) {
+            builder.append('(');
+        }
+        builder.append(this.operands.get(0));
+        for (int i = 1; i < this.operands.size(); i++) {
+            builder.append(" * ").append(this.operands.get(i)).append(')');
+        }
+        return builder.toString();
+    }
+    
+    @Override
+    public boolean equals (Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof Expression) || that.hashCode() != this.hash) {
+            return false;
+        }
+        if (that instanceof NaryIntersection) {
+            return this.toBinary().equals(((NaryIntersection) that).toBinary());
+        }
+        return that instanceof Intersection && this.toBinary().equals(that);
+    }
+
+    @Override
+    public int hashCode () {
+        return this.hash;
+    }
+    
+}
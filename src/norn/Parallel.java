@@ -1,15 +1,19 @@
 package norn;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 /**
  * 
  * Expression that represents two expressions being evaluated
- * in parallel threads.
+ * in parallel threads. A chain of pipes is run as one fork of
+ * all its branches on the ParallelEngine pool.
  * 
  * @author brettallen
  *
@@ -17,6 +21,7 @@ import java.util.TreeSet;
 class Parallel implements Expression {
     
     private final Expression left, right;
+    private final int hash;
     
     
     // Abstraction function
@@ -25,19 +30,20 @@ class Parallel implements Expression {
     // Rep invariant
     //   - true, the expressions can be anything, the rules of cycles and such are not up to this
     //     class
+    //   - hash == left.hashCode() + right.hashCode()
     //
     // Safety from rep exposure
     //   - all fields are immutable, private and final
     //   - any returned sets are unmodifiable and unrelated to this instance
     //
     // Thread Safety Argument
-    //   - we check if the threads rely on each other
+    //   - we check if any two branches of the pipe rely on each other
     //     and if so, we throw an "Invalid Pipe!!!" error
     //   - now that we know threads are not reliant on each other
     //     we can now make the argument that there are no race conditions
     //     as the threads are declaring mailing lists and creating data separately
     //     and when they read data, they are unable to modify it
-    //   - both threads must complete before they move on to the next
+    //   - all branches must complete before they move on to the next
     //     expression operation, thus we do not have any race conditions
     
     /**
@@ -51,44 +57,49 @@ class Parallel implements Expression {
     public Parallel(Expression left, Expression right) {
         this.left = left;
         this.right = right;
+        this.hash = left.hashCode() + right.hashCode();
     }
 
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
-        Set<String> leftDefinedLists = this.left.subLists(map, new HashSet<String>(), true);
-        Set<String> rightDefinedLists = this.right.subLists(map, new HashSet<String>(), true);
-        Set<String> leftSubLists = this.left.subLists(map, new HashSet<String>(), false);
-        Set<String> rightSubLists = this.right.subLists(map, new HashSet<String>(), false);
-
-        leftSubLists.retainAll(rightDefinedLists);
-        rightSubLists.retainAll(leftDefinedLists);
-        
-        
-        if (leftSubLists.size()>0 || rightSubLists.size()>0) {
-            throw new RuntimeException("Invalid Pipe!!!");
-        }
+    public EmailSet members (Map<String, Expression> map){
+        List<Expression> branches = ParallelEngine.branches(this);
+        ParallelEngine.checkPipes(branches, map);
         
         // if valid pipe
         
-        Thread t1 = new Thread(() -> {
-            this.left.evaluate(map);
-        });
-        
-        Thread t2 = new Thread(() -> {
-            this.right.evaluate(map);
-        });
-        
-        t1.start();
-        t2.start();
-        
-        try {
-          t1.join();
-          t2.join();
-      } catch (InterruptedException e1) {
-          e1.printStackTrace();
-      }
+        List<Runnable> tasks = new ArrayList<Runnable>(branches.size());
+        for (Expression branch : branches) {
+            tasks.add(() -> branch.members(map));
+        }
+        ParallelEngine.invokeAll(tasks);
         
-        return new TreeSet<String>();
+        return EmailSet.empty();
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        this.members(map);
+        return false;
+    }
+    
+    /**
+     * Traces the two sides one after the other: a valid pipe gives the same lists
+     * in any order, and a tracer then sees each side's steps together
+     */
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        ParallelEngine.checkPipes(List.of(this.left, this.right), map);
+        this.left.trace(map, tracer);
+        this.right.trace(map, tracer);
+        tracer.exit(this, EmailSet.empty());
+        return EmailSet.empty();
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        this.members(map);
+        return EmailCursors.empty();
     }
     
     @Override
@@ -99,9 +110,20 @@ class Parallel implements Expression {
         return s;
     }
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        this.left.collectLists(defined, referenced);
+        this.right.collectLists(defined, referenced);
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
-        return new Parallel(left.cycle(cycleName, map), right.cycle(cycleName, map));
+        Expression cycledLeft = this.left.cycle(cycleName, map);
+        Expression cycledRight = this.right.cycle(cycleName, map);
+        if (cycledLeft == this.left && cycledRight == this.right) {
+            return this;
+        }
+        return ExpressionFactory.parallel(cycledLeft, cycledRight);
     }
     
     /**
@@ -122,22 +144,28 @@ class Parallel implements Expression {
     
     @Override
     public String toString() {
-        return "(" + this.left.toString() + " | " + this.right.toString();
+        return "(" + this.left.toString() + " | " + this.right.toString() + ")";
     }
     
     @Override
     public boolean equals (Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof Parallel)) {
             return false;
         }
         
         Parallel cast = (Parallel) that;
+        if (this.hash != cast.hash) {
+            return false;
+        }
         return (this.left.equals(cast.left) && this.right.equals(cast.right));
     }
 
     @Override
     public int hashCode () {
-        return this.left.hashCode() + this.right.hashCode();
+        return this.hash;
     }
 
 }
@@ -0,0 +1,160 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * Runs the branches of pipes on one shared work-stealing pool instead of starting threads.
+ * A chain of pipes a | b | c | d, which parses as nested binary Parallel nodes, is flattened
+ * into its branches and forked once. A pipe nested inside a branch forks from the worker that
+ * runs the branch, so it waits by helping with queued work instead of blocking a thread.
+ *
+ * The pool has -Dnorn.parallelism workers (the number of processors by default). The first
+ * exception thrown by a branch is thrown to the caller once every branch has finished.
+ *
+ */
+final class ParallelEngine {
+
+    private static final ForkJoinPool pool =
+            new ForkJoinPool(Integer.getInteger("norn.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    // Thread Safety Argument
+    //   - pool is a thread safe executor and never modified after class initialization
+
+    // uninstantiable
+    private ParallelEngine() {
+    }
+
+    /**
+     * @return number of workers of the shared pool
+     */
+    public static int parallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return the shared pool, for work that forks on its own
+     */
+    public static ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * @param pipe a pipe expression
+     * @return the branches of pipe and of the pipes directly nested in it, in order, none of them a pipe
+     */
+    public static List<Expression> branches(Parallel pipe) {
+        final List<Expression> branches = new ArrayList<Expression>();
+        final Deque<Expression> pending = new ArrayDeque<Expression>();
+        pending.push(pipe);
+        while (!pending.isEmpty()) {
+            final Expression next = pending.pop();
+            if (next instanceof Parallel) {
+                pending.push(((Parallel) next).getRight());
+                pending.push(((Parallel) next).getLeft());
+            } else {
+                branches.add(next);
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Checks that branches can run at the same time: no branch may reach a list that
+     * another branch defines
+     *
+     * @param branches expressions to run at the same time
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @throws ListConflictException if a branch reaches a list defined by another branch
+     */
+    public static void checkPipes(List<Expression> branches, Map<String, Expression> map) {
+        final Map<String, Integer> definedBy = new HashMap<String, Integer>();
+        final List<ListAnalysis> analyses = new ArrayList<ListAnalysis>(branches.size());
+        for (int i = 0; i < branches.size(); i++) {
+            final ListAnalysis analysis = ListAnalysis.of(branches.get(i));
+            analyses.add(analysis);
+            for (String name : analysis.defined()) {
+                // a list defined by two branches conflicts with both of them
+                definedBy.merge(name, i, (first, second) -> -1);
+            }
+        }
+        for (int i = 0; i < branches.size(); i++) {
+            for (String name : analyses.get(i).reachable(map)) {
+                final Integer definer = definedBy.get(name);
+                if (definer != null && definer != i) {
+                    throw new ListConflictException("Invalid Pipe!!!");
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs tasks at the same time and waits for all of them
+     *
+     * @param tasks tasks to run
+     * @throws RuntimeException the first exception or error thrown by a task, or if the calling
+     *                          thread was interrupted while waiting (its interrupt flag is then set again)
+     */
+    public static void invokeAll(List<Runnable> tasks) {
+        // failures are kept here rather than left to the pool, which would cancel the other
+        // branches and rethrow a copy of the failure
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final RecursiveAction all = new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                final List<RecursiveAction> forks = new ArrayList<RecursiveAction>(tasks.size());
+                for (Runnable task : tasks) {
+                    forks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            try {
+                                task.run();
+                            } catch (RuntimeException | Error e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                }
+                ForkJoinTask.invokeAll(forks);
+            }
+        };
+
+        final Thread current = Thread.currentThread();
+        if (current instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) current).getPool() == pool) {
+            all.invoke();
+        } else {
+            pool.execute(all);
+            try {
+                all.get();
+            } catch (InterruptedException e) {
+                all.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while waiting for a pipe", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        final Throwable thrown = failure.get();
+        if (thrown instanceof RuntimeException) {
+            throw (RuntimeException) thrown;
+        } else if (thrown instanceof Error) {
+            throw (Error) thrown;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import norn.ExpressionCompiler.Compiled;
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Cost model for evaluating unions, intersections and differences on the ParallelEngine pool.
+ *
+ * The operands of one operation are evaluated at the same time only if
+ *   - the map is a ListNamespace, which can be read and updated from several threads,
+ *   - no operand defines a list, directly or through the definitions of the lists it reads,
+ *     so the order they run in cannot change anything, and
+ *   - at least two operands are estimated to cost -Dnorn.parallelThreshold (65536 by default)
+ *     or more, where a cost is the number of emails going into the set operations an operand
+ *     still has to run; an operand whose members are cached costs nothing.
+ * A set operation whose inputs add up to the threshold is split into chunk key ranges that
+ * are combined on the pool. Everything else stays on the sequential path.
+ *
+ * Estimates are made bottom-up, in one pass over an evaluation root, and each operation
+ * passes the estimates of its operands down to them instead of estimating them again. What
+ * does not change while an expression is evaluated (its operations, the lists it reads,
+ * whether it defines lists, the estimate of parts that read no list) is its Structure, made once
+ * per compiled expression, so a pass only looks up the lists.
+ *
+ */
+final class ParallelEvaluation {
+
+    // how many list definitions deep an estimate looks before giving up on a list
+    private static final int MAX_ESTIMATE_DEPTH = 4;
+
+    private static volatile long threshold = Long.getLong("norn.parallelThreshold", 1 << 16);
+
+    // Thread Safety Argument
+    //   - threshold is volatile, nothing else is stored
+    //   - structures and estimates are immutable, an estimate pass is confined to the thread making it
+
+    // uninstantiable
+    private ParallelEvaluation() {
+    }
+
+    /**
+     * What the cost model needs to know about an expression that does not depend on the lists it
+     * reads. Immutable.
+     */
+    static final class Structure {
+
+        private enum Rule { LEAF, LIST, UNION, INTERSECTION, DIFFERENCE, SEQUENCE }
+
+        private static final Structure[] NONE = new Structure[0];
+
+        private final Rule rule;
+        private final String name;
+        private final Structure[] operands;
+        private final List<String> reads;
+        private final Estimate constant;
+
+        // Abstraction function
+        //   AF(rule, name, operands, reads, constant) = an expression that is the list name if rule is LIST,
+        //     the set operation or sequence rule of operands, or else a leaf reading the lists reads;
+        //     constant is its estimate if it reads no list
+        //
+        // Rep invariant
+        //   - name != null iff rule is LIST
+        //   - operands is empty iff rule is LEAF or LIST, reads is empty unless rule is LEAF
+        //   - constant != null iff neither this nor any operand is a LIST or a LEAF that reads lists
+        //
+        // Safety from rep exposure
+        //   - all fields are private and final, operands is never returned and reads is unmodifiable
+
+        private Structure(Rule rule, String name, Structure[] operands, List<String> reads, Estimate constant) {
+            this.rule = rule;
+            this.name = name;
+            this.operands = operands;
+            this.reads = reads;
+            this.constant = constant;
+        }
+
+        /**
+         * @param expr expression
+         * @return the structure of expr, whose operand(i) is the structure of the i-th operand of a set operation
+         *         (left and right of a binary one), or of a sequence
+         */
+        public static Structure of(Expression expr) {
+            if (expr instanceof Email) {
+                return new Structure(Rule.LEAF, null, NONE, List.of(), new Estimate(0, 1, true, Estimate.NONE));
+            } else if (expr instanceof EmptyEmailSet) {
+                return new Structure(Rule.LEAF, null, NONE, List.of(), Estimate.EMPTY);
+            } else if (expr instanceof MailingList) {
+                return new Structure(Rule.LIST, ((MailingList) expr).getName(), NONE, List.of(), null);
+            } else if (expr instanceof Union) {
+                return operation(Rule.UNION, List.of(((Union) expr).getLeft(), ((Union) expr).getRight()));
+            } else if (expr instanceof Intersection) {
+                return operation(Rule.INTERSECTION, List.of(((Intersection) expr).getLeft(), ((Intersection) expr).getRight()));
+            } else if (expr instanceof Difference) {
+                return operation(Rule.DIFFERENCE, List.of(((Difference) expr).getLeft(), ((Difference) expr).getRight()));
+            } else if (expr instanceof NaryUnion) {
+                return operation(Rule.UNION, ((NaryUnion) expr).getOperands());
+            } else if (expr instanceof NaryIntersection) {
+                return operation(Rule.INTERSECTION, ((NaryIntersection) expr).getOperands());
+            } else if (expr instanceof Sequence) {
+                return operation(Rule.SEQUENCE, List.of(((Sequence) expr).getLeft(), ((Sequence) expr).getRight()));
+            }
+            // definitions and pipes never run concurrently, and cost nothing here
+            final ListAnalysis analysis = ListAnalysis.of(expr);
+            if (!analysis.defined().isEmpty()) {
+                return new Structure(Rule.LEAF, null, NONE, List.of(), new Estimate(0, 0, false, Estimate.NONE));
+            }
+            final List<String> reads = List.copyOf(analysis.referenced());
+            return new Structure(Rule.LEAF, null, NONE, reads, reads.isEmpty() ? Estimate.EMPTY : null);
+        }
+
+        private static Structure operation(Rule rule, List<Expression> operands) {
+            final Structure[] structures = new Structure[operands.size()];
+            final Estimate[] constants = new Estimate[structures.length];
+            boolean constant = true;
+            for (int i = 0; i < structures.length; i++) {
+                structures[i] = of(operands.get(i));
+                constants[i] = structures[i].constant;
+                constant &= constants[i] != null;
+            }
+            return new Structure(rule, null, structures, List.of(), constant ? Estimate.combine(rule, constants) : null);
+        }
+
+        /**
+         * @param i index of an operand, 0 <= i < number of operands of this
+         * @return the structure of that operand
+         */
+        public Structure operand(int i) {
+            return this.operands[i];
+        }
+    }
+
+    /**
+     * Estimated work of evaluating an expression, and of each of its operands, at one moment. Immutable.
+     */
+    static final class Estimate {
+
+        private static final Estimate[] NONE = new Estimate[0];
+        private static final Estimate EMPTY = new Estimate(0, 0, true, NONE);
+
+        private final long cost;
+        private final long size;
+        private final boolean readsOnly;
+        private final Estimate[] operands;
+
+        // Abstraction function
+        //   AF(cost, size, readsOnly, operands) = an expression that still has to run set operations on cost
+        //     emails, has about size emails, defines no list directly or through the lists it reads iff
+        //     readsOnly, and whose operands are estimated by operands
+        //
+        // Rep invariant
+        //   - cost >= 0, size >= 0
+        //
+        // Safety from rep exposure
+        //   - all fields are private and final, operands is only read through operand(i)
+
+        private Estimate(long cost, long size, boolean readsOnly, Estimate[] operands) {
+            this.cost = cost;
+            this.size = size;
+            this.readsOnly = readsOnly;
+            this.operands = operands;
+        }
+
+        // the estimate of a set operation or sequence from the estimates of its operands
+        private static Estimate combine(Structure.Rule rule, Estimate[] operands) {
+            long cost = 0;
+            long size = rule == Structure.Rule.INTERSECTION ? Long.MAX_VALUE : 0;
+            boolean readsOnly = true;
+            for (Estimate operand : operands) {
+                readsOnly &= operand.readsOnly;
+                if (rule == Structure.Rule.SEQUENCE) {
+                    cost += operand.cost;
+                    size = operand.size;
+                    continue;
+                }
+                cost += operand.cost + operand.size;
+                if (rule == Structure.Rule.UNION) {
+                    size += operand.size;
+                } else if (rule == Structure.Rule.INTERSECTION) {
+                    size = Math.min(size, operand.size);
+                }
+            }
+            if (rule == Structure.Rule.DIFFERENCE) {
+                size = operands[0].size;
+            }
+            return new Estimate(cost, size, readsOnly, operands);
+        }
+
+        /**
+         * @param i index of an operand of the estimated set operation or sequence
+         * @return the estimate of that operand, made in the same pass
+         */
+        public Estimate operand(int i) {
+            return this.operands[i];
+        }
+    }
+
+    /**
+     * One bottom-up estimate pass over a namespace, which looks each list up once per depth
+     */
+    private static final class Estimator {
+        private final ListNamespace namespace;
+        private final List<Map<String, Estimate>> lists = new ArrayList<Map<String, Estimate>>();
+        private final Map<String, Boolean> readsOnly = new HashMap<String, Boolean>();
+
+        private Estimator(ListNamespace namespace) {
+            this.namespace = namespace;
+            for (int depth = 0; depth <= MAX_ESTIMATE_DEPTH; depth++) {
+                this.lists.add(new HashMap<String, Estimate>());
+            }
+        }
+
+        private Estimate estimate(Structure structure, int depth) {
+            if (structure.constant != null) {
+                return structure.constant;
+            } else if (structure.rule == Structure.Rule.LIST) {
+                return this.list(structure.name, depth);
+            } else if (structure.rule == Structure.Rule.LEAF) {
+                boolean readsOnly = true;
+                for (String name : structure.reads) {
+                    readsOnly &= this.readsOnly(name);
+                }
+                return readsOnly ? Estimate.EMPTY : new Estimate(0, 0, false, Estimate.NONE);
+            }
+            final Estimate[] operands = new Estimate[structure.operands.length];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = this.estimate(structure.operands[i], depth);
+            }
+            return Estimate.combine(structure.rule, operands);
+        }
+
+        // a cached list costs nothing, other lists are estimated from their definitions
+        private Estimate list(String name, int depth) {
+            final Estimate known = this.lists.get(depth).get(name);
+            if (known != null) {
+                return known;
+            }
+            final boolean readsOnly = this.readsOnly(name);
+            final int cached = this.namespace.cachedSize(name);
+            final Expression definition = this.namespace.get(name);
+            final Estimate estimate;
+            if (cached >= 0) {
+                estimate = new Estimate(0, cached, readsOnly, Estimate.NONE);
+            } else if (definition == null || depth >= MAX_ESTIMATE_DEPTH) {
+                estimate = new Estimate(0, 0, readsOnly, Estimate.NONE);
+            } else {
+                final Estimate expanded = this.estimate(ExpressionCompiler.structure(definition), depth + 1);
+                estimate = new Estimate(expanded.cost, expanded.size, readsOnly, Estimate.NONE);
+            }
+            this.lists.get(depth).put(name, estimate);
+            return estimate;
+        }
+
+        // every list a list that only reads reaches only reads too, so they are all known after one search
+        private boolean readsOnly(String name) {
+            final Boolean known = this.readsOnly.get(name);
+            if (known != null) {
+                return known;
+            }
+            final Set<String> reached = new HashSet<String>();
+            if (!ParallelEvaluation.readsOnly(List.of(ExpressionFactory.mailingList(name)), this.namespace, reached)) {
+                this.readsOnly.put(name, false);
+                return false;
+            }
+            for (String list : reached) {
+                this.readsOnly.put(list, true);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of emails from which operands are evaluated, and set operations run, in parallel
+     */
+    public static long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param emails number of emails from which operands are evaluated, and set operations run, in parallel
+     */
+    public static void setThreshold(long emails) {
+        threshold = emails;
+    }
+
+    /**
+     * Evaluates the operands of an operation, at the same time if the cost model allows it. When it
+     * may, the operands are evaluated compiled, so that the estimate made here reaches every operation
+     * below them.
+     *
+     * @param operands operands of one operation, in order
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return the emails of each operand, with the same effect on map as evaluating them in order
+     */
+    public static EmailSet[] members(List<Expression> operands, Map<String, Expression> map) {
+        final EmailSet[] results = new EmailSet[operands.size()];
+        if (!estimated(map)) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = operands.get(i).members(map);
+            }
+            return results;
+        }
+        final Structure[] structures = new Structure[results.length];
+        final Compiled[] evaluators = new Compiled[results.length];
+        for (int i = 0; i < results.length; i++) {
+            structures[i] = ExpressionCompiler.structure(operands.get(i));
+            evaluators[i] = ExpressionCompiler.compile(operands.get(i));
+        }
+        return members(estimates(structures, (ListNamespace) map), evaluators, map);
+    }
+
+    /**
+     * Evaluates the operands of a compiled operation, at the same time if the cost model allows it
+     *
+     * @param structure structure of the operation
+     * @param evaluators evaluators[i] evaluates the operand whose structure is structure.operand(i)
+     * @param estimate estimate of the operation made by the operation above it, or null to make one
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return the emails of each operand, with the same effect on map as evaluating them in order
+     */
+    public static EmailSet[] members(Structure structure, Compiled[] evaluators, Estimate estimate, Map<String, Expression> map) {
+        if (estimate != null) {
+            return members(estimate.operands, evaluators, map);
+        } else if (!estimated(map)) {
+            final EmailSet[] results = new EmailSet[evaluators.length];
+            for (int i = 0; i < evaluators.length; i++) {
+                results[i] = evaluators[i].members(map, null);
+            }
+            return results;
+        }
+        return members(estimates(structure.operands, (ListNamespace) map), evaluators, map);
+    }
+
+    // evaluates operands with their estimates, at the same time if the estimates allow it
+    private static EmailSet[] members(Estimate[] estimates, Compiled[] evaluators, Map<String, Expression> map) {
+        final EmailSet[] results = new EmailSet[evaluators.length];
+        if (!concurrent(estimates)) {
+            for (int i = 0; i < evaluators.length; i++) {
+                results[i] = evaluators[i].members(map, estimates[i]);
+            }
+            return results;
+        }
+        final Runnable[] tasks = new Runnable[evaluators.length];
+        for (int i = 0; i < evaluators.length; i++) {
+            final int operand = i;
+            tasks[i] = () -> results[operand] = evaluators[operand].members(map, estimates[operand]);
+        }
+        ParallelEngine.invokeAll(List.of(tasks));
+        return results;
+    }
+
+    /**
+     * @param operands operands of one operation
+     * @param map map that maps mailing lists names to their expression of the this mailing lists system instance
+     * @return true iff the operands should be evaluated at the same time
+     */
+    public static boolean concurrent(List<Expression> operands, Map<String, Expression> map) {
+        if (!estimated(map)) {
+            return false;
+        }
+        final Structure[] structures = new Structure[operands.size()];
+        for (int i = 0; i < structures.length; i++) {
+            structures[i] = Structure.of(operands.get(i));
+        }
+        return concurrent(estimates(structures, (ListNamespace) map));
+    }
+
+    // true iff operands may run at the same time at all, which is when estimates are made
+    private static boolean estimated(Map<String, Expression> map) {
+        return map instanceof ListNamespace && ParallelEngine.parallelism() >= 2;
+    }
+
+    // estimates of operands, in one pass
+    private static Estimate[] estimates(Structure[] operands, ListNamespace namespace) {
+        final Estimator estimator = new Estimator(namespace);
+        final Estimate[] estimates = new Estimate[operands.length];
+        for (int i = 0; i < operands.length; i++) {
+            estimates[i] = estimator.estimate(operands[i], 0);
+        }
+        return estimates;
+    }
+
+    private static boolean concurrent(Estimate[] operands) {
+        final long minimum = threshold;
+        int costly = 0;
+        boolean readsOnly = true;
+        for (Estimate operand : operands) {
+            if (operand.cost >= minimum) {
+                costly++;
+            }
+            readsOnly &= operand.readsOnly;
+        }
+        return costly >= 2 && readsOnly;
+    }
+
+    /**
+     * @param left emails of the left operand
+     * @param right emails of the right operand
+     * @return left.or(right), split across the pool if the sets are large
+     */
+    public static EmailSet union(EmailSet left, EmailSet right) {
+        return split((long) left.cardinality() + right.cardinality())
+                ? left.or(right, ParallelEngine.pool()) : left.or(right);
+    }
+
+    /**
+     * @param left emails of the left operand
+     * @param right emails of the right operand
+     * @return left.and(right), split across the pool if the sets are large
+     */
+    public static EmailSet intersection(EmailSet left, EmailSet right) {
+        return split((long) left.cardinality() + right.cardinality())
+                ? left.and(right, ParallelEngine.pool()) : left.and(right);
+    }
+
+    /**
+     * @param left emails of the left operand
+     * @param right emails of the right operand
+     * @return left.andNot(right), split across the pool if the sets are large
+     */
+    public static EmailSet difference(EmailSet left, EmailSet right) {
+        return split((long) left.cardinality() + right.cardinality())
+                ? left.andNot(right, ParallelEngine.pool()) : left.andNot(right);
+    }
+
+    /**
+     * @param sets emails of the operands
+     * @return EmailSet.union(sets), split across the pool if the sets are large
+     */
+    public static EmailSet union(List<EmailSet> sets) {
+        return split(total(sets)) ? EmailSet.union(sets, ParallelEngine.pool()) : EmailSet.union(sets);
+    }
+
+    /**
+     * @param sets emails of the operands, at least one
+     * @return EmailSet.intersection(sets), split across the pool if the sets are large
+     */
+    public static EmailSet intersection(List<EmailSet> sets) {
+        return split(total(sets)) ? EmailSet.intersection(sets, ParallelEngine.pool()) : EmailSet.intersection(sets);
+    }
+
+    private static boolean split(long emails) {
+        return emails >= threshold && ParallelEngine.parallelism() > 1;
+    }
+
+    private static long total(List<EmailSet> sets) {
+        long total = 0;
+        for (EmailSet set : sets) {
+            total += set.cardinality();
+        }
+        return total;
+    }
+
+    /**
+     * @param operands expressions to evaluate
+     * @param map map that maps mailing lists names to their expression
+     * @return true iff no operand defines a list, and no list they reach is defined by an expression that does
+     */
+    static boolean readsOnly(List<Expression> operands, Map<String, Expression> map) {
+        return readsOnly(operands, map, new HashSet<String>());
+    }
+
+    // readsOnly, adding the lists it reached to reached
+    private static boolean readsOnly(List<Expression> operands, Map<String, Expression> map, Set<String> reached) {
+        final Deque<String> pending = new ArrayDeque<String>();
+        for (Expression operand : operands) {
+            final ListAnalysis analysis = ListAnalysis.of(operand);
+            if (!analysis.defined().isEmpty()) {
+                return false;
+            }
+            for (String name : analysis.referenced()) {
+                if (reached.add(name)) {
+                    pending.add(name);
+                }
+            }
+        }
+        while (!pending.isEmpty()) {
+            final Expression definition = map.get(pending.remove());
+            if (definition == null) {
+                continue;
+            }
+            final ListAnalysis analysis = ListAnalysis.of(definition);
+            if (!analysis.defined().isEmpty()) {
+                return false;
+            }
+            for (String name : analysis.referenced()) {
+                if (reached.add(name)) {
+                    pending.add(name);
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package norn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ *
+ * A bounded cache of parsed expressions keyed by their text, in front of ExpressionParser.
+ * Expressions are immutable, so a cached one can be handed to any number of callers.
+ *
+ * The cache is split into segments by the hash of the text, each with its own lock, and each
+ * segment is a segmented LRU: a new entry goes to the probation part and moves to the
+ * protected part when it is read again, so the expressions that are polled over and over are
+ * not flushed out by a burst of one-off ones. Inputs that fail to parse are not cached, and
+ * very long inputs (pasted member lists) are parsed without being cached.
+ *
+ */
+final class ParseCache {
+
+    private static final int SEGMENTS = 16;
+    private static final int MAX_CACHED_LENGTH = 1 << 16;
+    private static final ParseCache shared = new ParseCache(Integer.getInteger("norn.parseCacheSize", 4096));
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Abstraction function
+    //   AF(segments, hits, misses, evictions) = a map from expression texts to their parses, made of
+    //     the union of the segments, along with how many lookups found an entry, how many did not,
+    //     and how many entries were dropped to make room
+    //
+    // Rep invariant
+    //   - each text is only in segments[segmentIndex(text)]
+    //   - each segment holds at most its capacity, and its protected part at most protectedCapacity
+    //   - a text is in at most one part of its segment
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final, only immutable expressions are returned
+    //
+    // Thread Safety Argument
+    //   - a segment is only touched while holding its lock, and only one lock is held at a time
+    //   - counters are LongAdders
+    //   - parsing happens outside the lock, two threads missing on the same text may both parse
+    //     it, and the first to finish wins
+
+    /**
+     * One lock's share of the cache, a segmented LRU
+     */
+    private final class Segment {
+        private final int capacity;
+        private final int protectedCapacity;
+        private final LinkedHashMap<String, Expression> probation = new LinkedHashMap<String, Expression>(16, 0.75f, true);
+        private final LinkedHashMap<String, Expression> protectedPart = new LinkedHashMap<String, Expression>(16, 0.75f, true);
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = Math.max(1, capacity * 4 / 5);
+        }
+
+        private synchronized Expression get(String text) {
+            final Expression found = this.protectedPart.get(text);
+            if (found != null) {
+                return found;
+            }
+            final Expression promoted = this.probation.remove(text);
+            if (promoted != null) {
+                this.protectedPart.put(text, promoted);
+                if (this.protectedPart.size() > this.protectedCapacity) {
+                    final Map.Entry<String, Expression> demoted = removeEldest(this.protectedPart);
+                    this.probation.put(demoted.getKey(), demoted.getValue());
+                }
+            }
+            return promoted;
+        }
+
+        private synchronized Expression put(String text, Expression expression) {
+            final Expression present = this.protectedPart.containsKey(text)
+                    ? this.protectedPart.get(text) : this.probation.get(text);
+            if (present != null) {
+                return present;
+            }
+            this.probation.put(text, expression);
+            while (this.probation.size() + this.protectedPart.size() > this.capacity) {
+                removeEldest(this.probation.isEmpty() ? this.protectedPart : this.probation);
+                ParseCache.this.evictions.increment();
+            }
+            return expression;
+        }
+
+        private synchronized int size() {
+            return this.probation.size() + this.protectedPart.size();
+        }
+    }
+
+    /**
+     * Make an empty cache
+     *
+     * @param capacity maximum number of expressions to keep, at least 1
+     */
+    public ParseCache(int capacity) {
+        final int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * @return the cache used by Expression.parse, of -Dnorn.parseCacheSize expressions (4096 by default)
+     */
+    public static ParseCache shared() {
+        return shared;
+    }
+
+    /**
+     * Parse a string into an expression, reusing an earlier parse of the same string
+     *
+     * @param text string to parse
+     * @return Expression parsed from the string
+     * @throws UnableToParseException if the string doesn't match the Expression grammar
+     */
+    public Expression parse(String text) throws UnableToParseException {
+        if (text.length() > MAX_CACHED_LENGTH) {
+            this.misses.increment();
+            return ExpressionParser.parse(text);
+        }
+        final Segment segment = this.segmentFor(text);
+        final Expression cached = segment.get(text);
+        if (cached != null) {
+            this.hits.increment();
+            return cached;
+        }
+        this.misses.increment();
+        return segment.put(text, ExpressionParser.parse(text));
+    }
+
+    /**
+     * @return number of parses answered from the cache
+     */
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of parses that had to run the parser
+     */
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return number of expressions dropped to make room for new ones
+     */
+    public long evictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return number of expressions currently cached
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String text) {
+        final int hash = text.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static Map.Entry<String, Expression> removeEldest(LinkedHashMap<String, Expression> part) {
+        final Iterator<Map.Entry<String, Expression>> iterator = part.entrySet().iterator();
+        final Map.Entry<String, Expression> eldest = iterator.next();
+        final Map.Entry<String, Expression> removed = Map.entry(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+        return removed;
+    }
+}
@@ -0,0 +1,73 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ *
+ * Where one /eval response is rendered. HTML and SVG fragments are written as they are
+ * produced into a fixed size buffer over the (chunked) response body, and go out to the client
+ * each time the buffer fills, so a large visualization starts arriving at once and a request
+ * holds no more than the buffer, however large its output.
+ *
+ */
+final class RenderContext implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PrintWriter out;
+
+    // Abstraction function
+    //   AF(out) = the part of a response rendered so far, sent or waiting in out's buffer
+    //
+    // Rep invariant
+    //   - true
+    //
+    // Safety from rep exposure
+    //   - out is private and final and never returned
+    //
+    // Thread Safety Argument
+    //   - every write is a single call on out, which locks itself, so fragments written by the
+    //     branches of a pipe never mix inside a line
+
+    /**
+     * @param body response body to render into, closed with this context
+     */
+    public RenderContext(OutputStream body) {
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(body, UTF_8), BUFFER_SIZE), false);
+    }
+
+    /**
+     * @param fragment HTML or SVG to append
+     */
+    public void print(String fragment) {
+        this.out.print(fragment);
+    }
+
+    /**
+     * @param fragment HTML or SVG to append as a line of its own
+     */
+    public void line(String fragment) {
+        this.out.println(fragment);
+    }
+
+    /**
+     * Sends what has been rendered so far
+     */
+    public void flush() {
+        this.out.flush();
+    }
+
+    /**
+     * Sends the rest of the response and closes the body
+     */
+    @Override
+    public void close() {
+        this.out.close();
+    }
+}
@@ -0,0 +1,34 @@
+package norn;
+
+/**
+ * 
+ * Switch for the rep invariant checks of the set operators. The checks compare every
+ * member set an operator produces against its operands, which costs as much as the
+ * operation itself, so they are off unless a test turns them on (or the JVM is started
+ * with -Dnorn.checkRep=true).
+ *
+ */
+final class RepInvariants {
+    
+    private static volatile boolean enabled = Boolean.getBoolean("norn.checkRep");
+    
+    // uninstantiable
+    private RepInvariants() {
+    }
+    
+    /**
+     * @return true iff rep invariants should be checked
+     */
+    static boolean enabled() {
+        return enabled;
+    }
+    
+    /**
+     * Turns rep invariant checking on or off for every expression
+     * 
+     * @param on true to check rep invariants
+     */
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+}
@@ -2,7 +2,9 @@ package norn;
 
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailSet;
 
 
 /**
@@ -17,6 +19,7 @@ import java.util.SortedSet;
 class Sequence implements Expression {
     
     private final Expression left, right;
+    private final int hash;
     
     // Abstraction function
     //   AF(left, right) = represents an expression with two expressions, left and right, that
@@ -24,6 +27,7 @@ class Sequence implements Expression {
     //
     // Rep invariant
     //   - true, rules about what can be on either side are established outside of this class
+    //   - hash == left.hashCode() + right.hashCode()
     //
     // Safety from rep exposure
     //   - all fields are immutable, private and final
@@ -45,12 +49,34 @@ class Sequence implements Expression {
     public Sequence(Expression left, Expression right) {
         this.left = left;
         this.right = right;
+        this.hash = left.hashCode() + right.hashCode();
     }
 
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
-        this.left.evaluate(map);
-        return this.right.evaluate(map);
+    public EmailSet members (Map<String, Expression> map){
+        this.left.members(map);
+        return this.right.members(map);
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        this.left.members(map);
+        return this.right.contains(email, map, skip);
+    }
+    
+    @Override
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        this.left.trace(map, tracer);
+        EmailSet s = this.right.trace(map, tracer);
+        tracer.exit(this, s);
+        return s;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        this.left.cursor(map);
+        return this.right.cursor(map);
     }
     
     @Override
@@ -61,9 +87,20 @@ class Sequence implements Expression {
         return s;
     }
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        this.left.collectLists(defined, referenced);
+        this.right.collectLists(defined, referenced);
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
-        return new Sequence(left.cycle(cycleName, map), right.cycle(cycleName, map));
+        Expression cycledLeft = this.left.cycle(cycleName, map);
+        Expression cycledRight = this.right.cycle(cycleName, map);
+        if (cycledLeft == this.left && cycledRight == this.right) {
+            return this;
+        }
+        return ExpressionFactory.sequence(cycledLeft, cycledRight);
     }
     
     /**
@@ -93,17 +130,23 @@ class Sequence implements Expression {
     
     @Override
     public boolean equals (Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof Sequence)) {
             return false;
         }
         
         Sequence cast = (Sequence) that;
+        if (this.hash != cast.hash) {
+            return false;
+        }
         return (this.left.equals(cast.left) && this.right.equals(cast.right));
     }
 
     @Override
     public int hashCode () {
-        return this.left.hashCode() + this.right.hashCode();
+        return this.hash;
     }
 
 }
@@ -0,0 +1,346 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *
+ * Text snapshot of the definitions of a mailing list system, as written by /save and read by /load.
+ *
+ * A snapshot has one line per list, "name = expression", followed by a footer line
+ *   #norn-crc32 CHECKSUM COUNT
+ * where CHECKSUM is the CRC32 of all the bytes before the footer, in hex, and COUNT the number of
+ * lines before it. Files saved before the footer existed have none, and are loaded as they are.
+ *
+ * Saving streams the definitions into a temporary file next to the target, forces it to disk and
+ * then renames it over the target, so the target is always either the old snapshot or the whole
+ * new one. Loading checks the footer before it applies any definition.
+ *
+ * Every save of a ListNamespace is a checkpoint, and an incremental save only writes the lists
+ * defined or removed since the previous checkpoint, as a delta segment FILE.delta-N next to the
+ * base snapshot FILE (text or binary), N counting from 1:
+ *   #norn-base BASE
+ *   name = expression        for a list defined since the previous checkpoint
+ *   #norn-remove name        for a list removed since then
+ *   #norn-crc32 CHECKSUM COUNT
+ * where BASE is the checksum of the base snapshot, so deltas left from an older base are never
+ * stacked on a newer one. Loading a file loads its base and then its deltas in order; a delta
+ * applies its lists as they are, without evaluating them. A full save deletes the deltas of its file.
+ *
+ */
+final class Snapshot {
+
+    private static final String FOOTER = "#norn-crc32 ";
+    private static final String BASE = "#norn-base ";
+    private static final String REMOVE = "#norn-remove ";
+    private static final String DELTA = ".delta-";
+    private static final int TAIL_BYTES = 256;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int HEX = 16;
+
+    // uninstantiable
+    private Snapshot() {
+    }
+
+    /**
+     * Atomically replaces file with a snapshot of the definitions in map, as a full checkpoint
+     *
+     * @param map map that maps mailing lists names to their expression
+     * @param file where to save; its directory is created if needed
+     * @throws IOException if the snapshot cannot be written, in which case file is left unchanged
+     */
+    public static void save(Map<String, Expression> map, Path file) throws IOException {
+        checkpoint(map, file, () -> writeAtomically(file, body -> {
+            writeLines(body, null, () -> map.entrySet().stream()
+                    .map(entry -> entry.getKey() + " = " + entry.getValue()).iterator());
+        }));
+    }
+
+    /**
+     * Atomically replaces file with a binary snapshot (BinarySnapshot) of map, as a full checkpoint
+     *
+     * @param map map that maps mailing lists names to their expression
+     * @param file where to save; its directory is created if needed
+     * @param withMembers true to also save the member sets map has cached
+     * @throws IOException if the snapshot cannot be written, in which case file is left unchanged
+     */
+    public static void saveBinary(Map<String, Expression> map, Path file, boolean withMembers) throws IOException {
+        checkpoint(map, file, () -> BinarySnapshot.save(map, file, withMembers));
+    }
+
+    /**
+     * Saves the lists of map defined or removed since the previous checkpoint as the next delta of
+     * file, if there are any. If map is not a ListNamespace, or file has no checksum to refer to,
+     * saves all of map instead, with save. The previous checkpoint must have been a save to file.
+     *
+     * @param map map that maps mailing lists names to their expression
+     * @param file base snapshot
+     * @throws IOException if the delta cannot be written, in which case the lists in it still count
+     *                     as changed
+     */
+    public static void saveDelta(Map<String, Expression> map, Path file) throws IOException {
+        final String base = Files.exists(file) ? baseId(file) : null;
+        if (!(map instanceof ListNamespace) || base == null) {
+            save(map, file);
+            return;
+        }
+        final ListNamespace namespace = (ListNamespace) map;
+        final Set<String> changed = namespace.takeChanged();
+        if (changed.isEmpty()) {
+            return;
+        }
+        try {
+            writeAtomically(delta(file, deltas(file, base).size() + 1), body -> {
+                writeLines(body, BASE + base, () -> changed.stream().sorted().map(name -> {
+                    final Expression definition = namespace.get(name);
+                    return definition == null ? REMOVE + name : name + " = " + definition;
+                }).iterator());
+            });
+        } catch (IOException | RuntimeException e) {
+            namespace.markChanged(changed);
+            throw e;
+        }
+    }
+
+    /**
+     * Something that saves a snapshot
+     */
+    @FunctionalInterface
+    private interface Save {
+
+        /**
+         * @throws IOException if the snapshot cannot be written
+         */
+        public void run() throws IOException;
+    }
+
+    // runs save as a new checkpoint of map for file, then deletes the deltas of the previous base
+    private static void checkpoint(Map<String, Expression> map, Path file, Save save) throws IOException {
+        final Set<String> changed = map instanceof ListNamespace ? ((ListNamespace) map).takeChanged() : Set.of();
+        try {
+            save.run();
+        } catch (IOException | RuntimeException e) {
+            if (map instanceof ListNamespace) {
+                ((ListNamespace) map).markChanged(changed);
+            }
+            throw e;
+        }
+        final Path directory = file.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, file.getFileName() + DELTA + "*")) {
+            for (Path delta : stale) {
+                Files.deleteIfExists(delta);
+            }
+        }
+    }
+
+    // writes header if not null, lines, and the footer
+    private static void writeLines(OutputStream body, String header, Iterable<String> lines) throws IOException {
+        final CRC32 checksum = new CRC32();
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new CheckedOutputStream(body, checksum),
+                UTF_8), BUFFER_SIZE);
+        long count = 0;
+        if (header != null) {
+            out.write(header);
+            out.write('\n');
+            count++;
+        }
+        for (String line : lines) {
+            out.write(line);
+            out.write('\n');
+            count++;
+        }
+        out.flush();
+        out.write(FOOTER + Long.toHexString(checksum.getValue()) + " " + count + "\n");
+        out.flush();
+    }
+
+    /**
+     * Content of a file
+     */
+    @FunctionalInterface
+    interface Content {
+
+        /**
+         * @param body stream to write the content into, flushed by the caller
+         * @throws IOException if body cannot be written to
+         */
+        public void writeTo(OutputStream body) throws IOException;
+    }
+
+    /**
+     * Atomically replaces file with content: it is written to a temporary file in the same directory,
+     * forced to disk, and renamed over file
+     *
+     * @param file file to replace; its directory is created if needed
+     * @param content what to write
+     * @throws IOException if content cannot be written, in which case file is left unchanged
+     */
+    static void writeAtomically(Path file, Content content) throws IOException {
+        final Path target = file.toAbsolutePath();
+        final Path directory = target.getParent();
+        Files.createDirectories(directory);
+        final Path temporary = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                final OutputStream body = Channels.newOutputStream(channel);
+                content.writeTo(body);
+                body.flush();
+                channel.force(true);
+            }
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        forceDirectory(directory);
+    }
+
+    /**
+     * Applies the definitions of a snapshot to map, in file order, as if each line were evaluated,
+     * then the lists of its deltas. A binary snapshot (BinarySnapshot) is loaded as such.
+     *
+     * @param file snapshot written by save or BinarySnapshot.save, or a file of definitions without a footer
+     * @param map map that maps mailing lists names to their expression, changed by the definitions
+     * @throws IOException if file or a delta cannot be read, or a footer does not match its content,
+     *                     in which case map is left unchanged
+     * @throws IllegalArgumentException if a line is not a valid expression
+     */
+    public static void load(Path file, Map<String, Expression> map) throws IOException {
+        final String base = baseId(file);
+        final List<Path> deltas = base == null ? List.of() : deltas(file, base);
+        for (Path delta : deltas) {
+            verify(delta);
+        }
+        if (BinarySnapshot.isBinary(file)) {
+            BinarySnapshot.load(file, map);
+        } else {
+            verify(file);
+            final List<Expression> definitions = new ArrayList<Expression>();
+            try (BufferedReader in = Files.newBufferedReader(file, UTF_8)) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (!line.startsWith(FOOTER) && !line.isBlank()) {
+                        definitions.add(Expression.parse(line));
+                    }
+                }
+            }
+            for (Expression definition : definitions) {
+                definition.members(map);
+            }
+        }
+        for (Path delta : deltas) {
+            try (BufferedReader in = Files.newBufferedReader(delta, UTF_8)) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.startsWith(REMOVE)) {
+                        map.remove(line.substring(REMOVE.length()));
+                    } else if (!line.startsWith(BASE) && !line.startsWith(FOOTER)) {
+                        final ListDefinition definition = (ListDefinition) Expression.parse(line);
+                        map.put(definition.getName(), definition.getExpr());
+                    }
+                }
+            }
+        }
+    }
+
+    // the deltas of file that extend the base with checksum base, in order
+    private static List<Path> deltas(Path file, String base) throws IOException {
+        final List<Path> deltas = new ArrayList<Path>();
+        for (Path delta = delta(file, 1); Files.exists(delta); delta = delta(file, deltas.size() + 1)) {
+            try (BufferedReader in = Files.newBufferedReader(delta, UTF_8)) {
+                if (!(BASE + base).equals(in.readLine())) {
+                    break;
+                }
+            }
+            deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    private static Path delta(Path file, int n) {
+        return file.resolveSibling(file.getFileName() + DELTA + n);
+    }
+
+    // the checksum of a snapshot, from its footer or its binary trailer, null if it has none
+    private static String baseId(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final int length = (int) Math.min(channel.size(), TAIL_BYTES);
+            final ByteBuffer tail = ByteBuffer.allocate(length);
+            channel.read(tail, channel.size() - length);
+            tail.flip();
+            if (BinarySnapshot.isBinary(file)) {
+                return length >= Long.BYTES ? Long.toHexString(tail.getLong(length - Long.BYTES)) : null;
+            }
+            final String text = UTF_8.decode(tail).toString().stripTrailing();
+            final String last = text.substring(text.lastIndexOf('\n') + 1);
+            return last.startsWith(FOOTER) ? last.substring(FOOTER.length()).split(" ")[0] : null;
+        }
+    }
+
+    // checks the footer of file against the bytes before it, if it has one
+    private static void verify(Path file) throws IOException {
+        final CRC32 checksum = new CRC32();
+        long count = 0;
+        String footer = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(file), UTF_8),
+                BUFFER_SIZE)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (footer != null) {
+                    throw new IOException(file + " has content after its footer");
+                }
+                if (line.startsWith(FOOTER)) {
+                    footer = line;
+                } else {
+                    checksum.update((line + "\n").getBytes(UTF_8));
+                    count++;
+                }
+            }
+        }
+        if (footer == null) {
+            // saved before snapshots had a footer
+            return;
+        }
+        final String[] fields = footer.substring(FOOTER.length()).split(" ");
+        try {
+            if (fields.length != 2 || Long.parseLong(fields[0], HEX) != checksum.getValue()
+                    || Long.parseLong(fields[1]) != count) {
+                throw new IOException(file + " is corrupt: checksum does not match");
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(file + " is corrupt: bad footer", e);
+        }
+    }
+
+    // makes the rename in directory durable, where the platform allows syncing a directory
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on this platform, the rename is still atomic
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Tracer that renders the two /eval visualizations of an expression from one traced evaluation:
+ * the recursive explanation, an indented line per step streamed into the response as the steps
+ * happen, and the tree, an SVG drawing whose fragments are kept until the explanation is done,
+ * since the page shows it second.
+ *
+ * Each step is placed from its parent and its position among the parent's operands: a step
+ * one level deeper in the explanation, and below its parent in the tree, the second operand of
+ * a binary operation one column to the right.
+ *
+ */
+final class TraceRenderer implements Tracer {
+
+    private static final int DISTANCE_BETWEEN_LABELS = 80;
+    private static final int X_ROOT = 10;
+    private static final int Y_ROOT = 20;
+
+    private final RenderContext out;
+    private final List<String> tree = new ArrayList<String>();
+    private final Deque<Step> steps = new ArrayDeque<Step>();
+
+    // Abstraction function
+    //   AF(out, tree, steps) = the rendering of a traced evaluation in progress, with the explanation
+    //     written to out so far, the tree drawn so far, and steps the expressions being evaluated,
+    //     innermost first
+    //
+    // Rep invariant
+    //   - each step's children is the number of steps entered directly below it so far
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final, treeFragments returns an unmodifiable copy
+    //
+    // Thread Safety Argument
+    //   - not thread safe, confined to the thread running the traced evaluation (Expression.trace
+    //     reports every step from that thread)
+
+    /**
+     * An expression being evaluated, and where it is shown
+     */
+    private static final class Step {
+        private final Expression expr;
+        private final int depth;
+        private final int x, y;
+        private int children = 0;
+
+        private Step(Expression expr, int depth, int x, int y) {
+            this.expr = expr;
+            this.depth = depth;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * @param out context to stream the explanation into
+     */
+    public TraceRenderer(RenderContext out) {
+        this.out = out;
+    }
+
+    /**
+     * @return the SVG elements of the tree drawn so far, in drawing order
+     */
+    public List<String> treeFragments() {
+        return List.copyOf(this.tree);
+    }
+
+    @Override
+    public void enter(Expression expr, Map<String, Expression> map) {
+        final Step parent = this.steps.peek();
+        final int depth, x, y;
+        boolean drawLine = true;
+        if (parent == null) {
+            depth = 0;
+            x = X_ROOT;
+            y = Y_ROOT;
+        } else {
+            final int index = parent.children++;
+            final boolean second = index == 1;
+            if (parent.expr instanceof MailingList) {
+                // the definition of a list read by the parent
+                depth = parent.depth * 2 + 1;
+                x = parent.x;
+                y = parent.y + DISTANCE_BETWEEN_LABELS;
+            } else if (parent.expr instanceof Sequence) {
+                depth = parent.depth + 1;
+                x = parent.x;
+                y = second ? parent.y + DISTANCE_BETWEEN_LABELS : parent.y;
+            } else if (parent.expr instanceof Parallel) {
+                depth = parent.depth + 1;
+                x = parent.x;
+                y = parent.y;
+                drawLine = !second;
+            } else if (parent.expr instanceof ListDefinition) {
+                depth = parent.depth + 1;
+                x = parent.x;
+                y = parent.y + DISTANCE_BETWEEN_LABELS;
+            } else {
+                depth = parent.depth + 1;
+                x = second ? parent.x + DISTANCE_BETWEEN_LABELS : parent.x;
+                y = parent.y + DISTANCE_BETWEEN_LABELS;
+                drawLine = !second;
+            }
+        }
+        this.explain(expr, map, depth);
+        this.draw(expr, map, x, y, drawLine);
+        this.steps.push(new Step(expr, depth, x, y));
+    }
+
+    @Override
+    public void exit(Expression expr, EmailSet result) {
+        this.steps.pop();
+    }
+
+    // the line of the explanation for expr
+    private void explain(Expression expr, Map<String, Expression> map, int depth) {
+        final String indent = "-".repeat(depth * 2);
+        final String line;
+        if (expr instanceof Email) {
+            line = indent + "email: " + expr;
+        } else if (expr instanceof MailingList) {
+            final String name = ((MailingList) expr).getName();
+            line = indent + name + ": " + (map.containsKey(name) ? expr.toString() : "empty");
+        } else if (expr instanceof Union) {
+            final Union e = (Union) expr;
+            line = indent + "union: " + e.getLeft() + " , " + e.getRight() + " := " + e;
+        } else if (expr instanceof Difference) {
+            final Difference e = (Difference) expr;
+            line = indent + "difference: " + e.getLeft() + " ! " + e.getRight() + " := " + e;
+        } else if (expr instanceof Intersection) {
+            final Intersection e = (Intersection) expr;
+            line = indent + "intersection: " + e.getLeft() + " * " + e.getRight() + " := " + e;
+        } else if (expr instanceof ListDefinition) {
+            final ListDefinition e = (ListDefinition) expr;
+            line = indent + e.getName() + " = " + e.getExpr();
+        } else if (expr instanceof Parallel) {
+            final Parallel e = (Parallel) expr;
+            line = indent + "parallel: " + e.getLeft() + " | " + e.getRight();
+        } else if (expr instanceof EmptyEmailSet) {
+            line = indent + "empty email ";
+        } else {
+            // a sequence is explained by its two sides
+            return;
+        }
+        this.out.line(line + "<br><br>");
+    }
+
+    // the lines and label of expr in the tree
+    private void draw(Expression expr, Map<String, Expression> map, int x, int y, boolean drawLine) {
+        final String label;
+        if (expr instanceof Email) {
+            label = expr.toString();
+        } else if (expr instanceof MailingList) {
+            final String name = ((MailingList) expr).getName();
+            if (drawLine) {
+                this.tree.add(line(x, y, x, y + DISTANCE_BETWEEN_LABELS));
+            }
+            this.tree.add(text(x, y + DISTANCE_BETWEEN_LABELS, map.containsKey(name) ? name : "empty"));
+            return;
+        } else if (expr instanceof Union) {
+            label = "union";
+        } else if (expr instanceof Difference) {
+            label = "diff";
+        } else if (expr instanceof Intersection) {
+            label = "and";
+        } else if (expr instanceof ListDefinition) {
+            label = " = ";
+        } else if (expr instanceof Parallel) {
+            label = " | ";
+        } else if (expr instanceof EmptyEmailSet) {
+            label = " empty ";
+        } else {
+            // a sequence draws its two sides one below the other
+            return;
+        }
+        this.tree.add(drawLine
+                ? line(x, y, x, y + DISTANCE_BETWEEN_LABELS)
+                : line(x - DISTANCE_BETWEEN_LABELS, y, x, y + DISTANCE_BETWEEN_LABELS));
+        this.tree.add(text(x, y + DISTANCE_BETWEEN_LABELS, label));
+    }
+
+    private static String line(int x1, int y1, int x2, int y2) {
+        return "  <line x1=\"" + x1 + "\" y1=\"" + y1 + "\" x2=\"" + x2 + "\" y2=\"" + y2 + "\" stroke=\"blue\"/>";
+    }
+
+    private static String text(int x, int y, String label) {
+        return "<text x=\"" + x + "\" y=\"" + y + "\">" + label + "</text>";
+    }
+}
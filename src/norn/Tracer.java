@@ -0,0 +1,30 @@
+package norn;
+
+import java.util.Map;
+
+import norn.bitmap.EmailSet;
+
+/**
+ * Observer of a traced evaluation (Expression.trace). Every expression evaluated, including
+ * the definitions of the lists that are read, is reported when evaluation enters it and when
+ * it leaves it; the expressions entered in between are the ones it evaluated to get its result,
+ * in order.
+ */
+public interface Tracer {
+
+    /**
+     * Called when evaluation of an expression starts
+     *
+     * @param expr expression about to be evaluated
+     * @param map map that maps mailing lists names to their expression, as it is before expr is evaluated
+     */
+    public void enter(Expression expr, Map<String, Expression> map);
+
+    /**
+     * Called when evaluation of an expression ends
+     *
+     * @param expr expression that was evaluated
+     * @param result the emails expr evaluated to
+     */
+    public void exit(Expression expr, EmailSet result);
+}
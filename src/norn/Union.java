@@ -1,11 +1,12 @@
 package norn;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+
+import norn.bitmap.EmailCursor;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 /**
  * 
@@ -22,16 +23,18 @@ class Union implements Expression {
     //
     // Rep invariant
     //   - all emails in this expression are in both left, right, or both
+    //   - hash == left.hashCode() + right.hashCode()
     //
     // Safety from rep exposure
     //   - all fields are immutable, private and final.
-    //   - any returned set is unmodifiable and unrelated to this instance
+    //   - any returned set is immutable and unrelated to this instance
     //
     // Thread Safety Argument
     //   - all fields and return types are immutable, therefore
     //     there is no concern for race conditions in regard to mutability
     
     private final Expression left, right;
+    private final int hash;
     
     /**
      * 
@@ -43,44 +46,76 @@ class Union implements Expression {
     public Union(Expression left, Expression right) {
         this.left = left;
         this.right = right;
+        this.hash = left.hashCode() + right.hashCode();
+    }
+    
+    private void checkRep(EmailSet thisEmails, EmailSet emailsLeft, EmailSet emailsRight) {
+        // everything in the left and everything in the right must be in these emails
+        assert emailsLeft.andNot(thisEmails).isEmpty();
+        assert emailsRight.andNot(thisEmails).isEmpty();
     }
     
-    private void checkRep(Map<String, Expression> map) {
-        SortedSet<String> thisEmails = this.evaluate(map);
-        Set<String> emailsLeft = this.left.evaluate(map);
-        Set<String> emailsRight = this.right.evaluate(map);
-        // for everything in the left, if it is in the right, make sure it is in these emails
-        for(String email : emailsLeft) {
-            assert thisEmails.contains(email);
+    @Override
+    public EmailSet members (Map<String, Expression> map){
+        EmailSet[] sides = ParallelEvaluation.members(List.of(this.left, this.right), map);
+        EmailSet emailsLeft = sides[0];
+        EmailSet emailsRight = sides[1];
+        EmailSet emails = ParallelEvaluation.union(emailsLeft, emailsRight);
+        if (RepInvariants.enabled()) {
+            this.checkRep(emails, emailsLeft, emailsRight);
         }
-        for(String email : emailsRight) {
-            assert thisEmails.contains(email);
+        return emails;
+    }
+    
+    @Override
+    public boolean contains (String email, Map<String, Expression> map, boolean skip){
+        boolean inLeft = this.left.contains(email, map, skip);
+        if (inLeft && skip) {
+            return true;
         }
+        boolean inRight = this.right.contains(email, map, skip);
+        return inLeft || inRight;
     }
     
     @Override
-    public SortedSet<String> evaluate (Map<String, Expression> map){
-        Set<String> emailsLeft = new HashSet<String>(this.left.evaluate(map));
-        Set<String> emailsRight = new HashSet<String>(this.right.evaluate(map));
-
-        emailsLeft.addAll(emailsRight);
-        return Collections.unmodifiableSortedSet(new TreeSet<String>(emailsLeft));
+    public EmailSet trace (Map<String, Expression> map, Tracer tracer){
+        tracer.enter(this, map);
+        EmailSet emailsLeft = this.left.trace(map, tracer);
+        EmailSet emailsRight = this.right.trace(map, tracer);
+        EmailSet emails = emailsLeft.or(emailsRight);
+        tracer.exit(this, emails);
+        return emails;
+    }
+    
+    @Override
+    public EmailCursor cursor (Map<String, Expression> map){
+        EmailCursor emailsLeft = this.left.cursor(map);
+        EmailCursor emailsRight = this.right.cursor(map);
+        return EmailCursors.union(emailsLeft, emailsRight);
     }
     
     @Override
     public Set<String> subLists(Map<String, Expression> map, Set<String> seen, boolean onlyListDefs) {
-        this.checkRep(map);
         Set<String> s = this.left.subLists(map, seen, onlyListDefs);
         s.addAll(this.right.subLists(map, seen, onlyListDefs));
         seen.addAll(s);
-        this.checkRep(map);
         return s;
     }
     
+    @Override
+    public void collectLists(Set<String> defined, Set<String> referenced) {
+        this.left.collectLists(defined, referenced);
+        this.right.collectLists(defined, referenced);
+    }
+    
     @Override
     public Expression cycle (String cycleName, Map<String, Expression> map) {
-        this.checkRep(map);
-        return new Union(left.cycle(cycleName, map), right.cycle(cycleName, map));
+        Expression cycledLeft = this.left.cycle(cycleName, map);
+        Expression cycledRight = this.right.cycle(cycleName, map);
+        if (cycledLeft == this.left && cycledRight == this.right) {
+            return this;
+        }
+        return ExpressionFactory.union(cycledLeft, cycledRight);
     }
     
     /**
@@ -106,18 +141,27 @@ class Union implements Expression {
     
     @Override
     public boolean equals (Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof NaryUnion) {
+            return that.equals(this);
+        }
         if (!(that instanceof Union)) {
             return false;
         }
         
         Union cast = (Union) that;
+        if (this.hash != cast.hash) {
+            return false;
+        }
         return (this.left.equals(cast.left) && this.right.equals(cast.right)) || 
                (this.left.equals(cast.right) && this.right.equals(cast.left));
     }
 
     @Override
     public int hashCode () {
-        return this.left.hashCode() + this.right.hashCode();
+        return this.hash;
     }
     
 }
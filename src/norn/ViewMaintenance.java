@@ -0,0 +1,112 @@
+package norn;
+
+import java.util.function.Function;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Incremental view maintenance for the member sets a ListNamespace keeps of its lists. When the
+ * members of some lists change, the members of a list defined on top of them are updated from the
+ * changes instead of being evaluated again.
+ *
+ * Only an email can enter or leave a definition's value if it entered or left one of the lists the
+ * definition reads, so those emails are the only candidates. For each candidate, membership in the
+ * definition before and after the change is decided by walking the definition once per side,
+ * looking each list up in its member set before or after the change, with the usual rules
+ *   union: in some operand, intersection: in every operand, difference: in the left and not the right.
+ * A candidate that is only in the value after the change is added, one that is only in the value
+ * before is removed, so updating a list costs O(changed emails x size of its definition), however
+ * large its value.
+ *
+ * Definitions that define lists, or sequence or pipe expressions, are not maintained: their
+ * evaluation has side effects, so they are evaluated again as before.
+ *
+ */
+final class ViewMaintenance {
+
+    // uninstantiable
+    private ViewMaintenance() {
+    }
+
+    /**
+     * @param definition definition of a list
+     * @return true iff definition is made only of emails, lists, the empty set and set operations,
+     *         so it can be maintained
+     */
+    public static boolean maintainable(Expression definition) {
+        if (definition instanceof Email || definition instanceof MailingList || definition instanceof EmptyEmailSet) {
+            return true;
+        } else if (definition instanceof Union) {
+            return maintainable(((Union) definition).getLeft()) && maintainable(((Union) definition).getRight());
+        } else if (definition instanceof Intersection) {
+            return maintainable(((Intersection) definition).getLeft())
+                    && maintainable(((Intersection) definition).getRight());
+        } else if (definition instanceof Difference) {
+            return maintainable(((Difference) definition).getLeft())
+                    && maintainable(((Difference) definition).getRight());
+        } else if (definition instanceof NaryUnion) {
+            return ((NaryUnion) definition).getOperands().stream().allMatch(ViewMaintenance::maintainable);
+        } else if (definition instanceof NaryIntersection) {
+            return ((NaryIntersection) definition).getOperands().stream().allMatch(ViewMaintenance::maintainable);
+        }
+        return false;
+    }
+
+    /**
+     * @param before members of a list before a change
+     * @param after members of the list after it
+     * @return the emails that entered or left the list
+     */
+    public static EmailSet changed(EmailSet before, EmailSet after) {
+        return before.andNot(after).or(after.andNot(before));
+    }
+
+    /**
+     * Updates the members of a maintainable definition after the lists it reads changed
+     *
+     * @param definition a maintainable definition
+     * @param members its members before the change
+     * @param candidates every email that entered or left a list read by definition
+     * @param before members of each list read by definition, before the change
+     * @param after members of each list read by definition, after the change
+     * @return the members of definition after the change
+     */
+    public static EmailSet update(Expression definition, EmailSet members, EmailSet candidates,
+            Function<String, EmailSet> before, Function<String, EmailSet> after) {
+        final EmailSet.Builder added = new EmailSet.Builder();
+        final EmailSet.Builder removed = new EmailSet.Builder();
+        candidates.forEach(id -> {
+            final boolean was = contains(definition, id, before);
+            final boolean is = contains(definition, id, after);
+            if (is && !was) {
+                added.add(id);
+            } else if (was && !is) {
+                removed.add(id);
+            }
+        });
+        return members.andNot(removed.build()).or(added.build());
+    }
+
+    // true iff id is in the value of a maintainable expression, where list names the members of each list
+    private static boolean contains(Expression expr, int id, Function<String, EmailSet> lists) {
+        if (expr instanceof Email) {
+            return ((Email) expr).getId() == id;
+        } else if (expr instanceof MailingList) {
+            return lists.apply(((MailingList) expr).getName()).contains(id);
+        } else if (expr instanceof Union) {
+            return contains(((Union) expr).getLeft(), id, lists) || contains(((Union) expr).getRight(), id, lists);
+        } else if (expr instanceof Intersection) {
+            return contains(((Intersection) expr).getLeft(), id, lists)
+                    && contains(((Intersection) expr).getRight(), id, lists);
+        } else if (expr instanceof Difference) {
+            return contains(((Difference) expr).getLeft(), id, lists)
+                    && !contains(((Difference) expr).getRight(), id, lists);
+        } else if (expr instanceof NaryUnion) {
+            return ((NaryUnion) expr).getOperands().stream().anyMatch(operand -> contains(operand, id, lists));
+        } else if (expr instanceof NaryIntersection) {
+            return ((NaryIntersection) expr).getOperands().stream().allMatch(operand -> contains(operand, id, lists));
+        }
+        return false;
+    }
+}
@@ -5,24 +5,12 @@
  */
 package norn;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
 
 import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpContext;
@@ -30,8 +18,10 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 import edu.mit.eecs.parserlib.internal.ParseException;
+import norn.bitmap.EmailSet;
 import norn.web.ExceptionsFilter;
 import norn.web.LogFilter;
+import norn.web.RequestExecution;
 
 /**
  * HTTP web server for norn mailing list.
@@ -43,9 +33,11 @@ public class WebServer {
 
     private final HttpServer server;
     private static final int VALID_RESPONSE = 200;
-    private static final int DISTANCE_BETWEEN_LABELS = 80;
-    private final ConcurrentMap<String, Expression> allLists;
-    private static List<String> visual = new ArrayList<String>(); //this keeps track of each line of the visualization
+    private final ListNamespace allLists;
+    private final RequestExecution execution;
+    private final DefinitionLog log;
+    private final Durability durability;
+    private final MembershipIndex index;
 
     // AF(server) a webserver for the Norn mailing list that is launched on server
     // 'server'
@@ -56,33 +48,81 @@ public class WebServer {
 
     // Thread safety argument:
     // Server is final and used only once in the setup of the server
-    // Map uses thread safe datatype (ConcurrentMap) and is immutable
+    // Exchanges run on the threads of execution, which also caps how many evaluate at once
+    // Map uses thread safe datatype (ListNamespace) and is immutable
+    // Log is thread safe, requests that define lists wait for it to sync before answering
+    // Index is thread safe and kept up to date by the map itself
 
     /**
      * Make a new web server using that listens for connections on port.
+     * Its lists are not saved anywhere.
      * 
      * @param port server port number
      * @throws IOException if an error occurs starting the server
      */ 
     public WebServer(int port) throws IOException {
-        this.allLists = new ConcurrentHashMap<String, Expression>();
+        this(port, null);
+    }
+
+    /**
+     * Make a new web server using that listens for connections on port, whose lists
+     * are recovered from, and logged to, a write-ahead log (DefinitionLog).
+     * 
+     * @param port server port number
+     * @param logDirectory directory of the log, or null to not save the lists
+     * @throws IOException if an error occurs recovering the lists or starting the server
+     */ 
+    public WebServer(int port, Path logDirectory) throws IOException {
+        this.allLists = new ListNamespace();
+        this.log = logDirectory == null ? null : DefinitionLog.open(logDirectory, this.allLists);
+        this.durability = this.log == null ? Durability.NONE : this.log;
+        this.index = new MembershipIndex(this.allLists);
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
 
-        // handle concurrent requests with multiple threads
-        server.setExecutor(Executors.newCachedThreadPool());
+        // handle concurrent requests with one thread per exchange, a virtual one if the JVM has them
+        this.execution = RequestExecution.fromSystemProperties();
+        server.setExecutor(this.execution.executor());
 
         List<Filter> logging = List.of(new ExceptionsFilter(), new LogFilter());
 
         HttpContext show = server.createContext("/eval", exchange -> {
-            new Thread(() -> {
+            this.execution.evaluate(() -> {
                 try {
                     handleVisualization(exchange);
-                } catch (IOException | ParseException e) {
-                    throw new RuntimeException("Could not make a new thread for look");
+                } catch (ParseException e) {
+                    throw new RuntimeException("Could not evaluate " + exchange.getRequestURI(), e);
                 }
-            }).start();
+            });
         });
         show.getFilters().addAll(logging);
+
+        // members only, as JSON or NDJSON, for clients that do not need the visualizations
+        final EvalApiHandler api = new EvalApiHandler(this.allLists, this.durability);
+        HttpContext eval = server.createContext("/api/eval", exchange -> {
+            this.execution.evaluate(() -> api.handle(exchange));
+        });
+        eval.getFilters().addAll(logging);
+
+        // many expressions in one request, one per line
+        final EvalBatchHandler batch = new EvalBatchHandler(this.allLists, this.durability);
+        HttpContext batchEval = server.createContext("/api/batch", exchange -> {
+            this.execution.evaluate(() -> batch.handle(exchange));
+        });
+        batchEval.getFilters().addAll(logging);
+
+        // is one email in an expression, without computing its members
+        final ContainsApiHandler probe = new ContainsApiHandler(this.allLists, this.durability);
+        HttpContext contains = server.createContext("/api/contains", exchange -> {
+            this.execution.evaluate(() -> probe.handle(exchange));
+        });
+        contains.getFilters().addAll(logging);
+
+        // which lists contain an email, from the reverse index
+        final ListsApiHandler reverse = new ListsApiHandler(this.index);
+        HttpContext lists = server.createContext("/api/lists", exchange -> {
+            this.execution.evaluate(() -> reverse.handle(exchange));
+        });
+        lists.getFilters().addAll(logging);
     }
 
     /**
@@ -106,6 +146,45 @@ public class WebServer {
     public void stop() {
         System.err.println("Server will stop");
         server.stop(0);
+        this.execution.shutdown();
+        if (this.log != null) {
+            try {
+                this.log.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the log: " + e);
+            }
+        }
+    }
+
+    /**
+     * Wait until every list defined so far is saved in the log, if there is one
+     * 
+     * @throws IOException if the log cannot be written
+     */
+    public void sync() throws IOException {
+        this.durability.sync();
+    }
+
+    /**
+     * Finds the lists that contain an email, without evaluating every list. Lists whose evaluation
+     * defines other lists are not covered, see lookupLists.
+     * 
+     * @param email email address
+     * @return names of the lists that contain email, sorted
+     */
+    public SortedSet<String> listsContaining(String email) {
+        return this.index.listsContaining(email);
+    }
+
+    /**
+     * Finds the lists that contain an email, and the lists that answer does not cover because
+     * evaluating them defines other lists, both as of the same moment
+     * 
+     * @param email email address
+     * @return the answer
+     */
+    MembershipIndex.Answer lookupLists(String email) {
+        return this.index.lookup(email);
     }
 
     /**
@@ -125,470 +204,73 @@ public class WebServer {
      * ALSO DOES VISUALIZATION. This is done with a tree structure where each node
      * has three children describing how it was formed (left exp, operation, right exp), or 1
      * child with all emails if it was only a list definition. Also has a second visuualization 
-     * that explains the calculation performed for an expression
+     * that explains the calculation performed for an expression. The response is streamed
+     * through a render context of its own, so concurrent requests never share output
      * 
      * @param exchange HTTP request/response, modified by this method to send a
      *                 response to the client and close the exchange
      * @throws ParseException 
      */
     private void handleVisualization(HttpExchange exchange) throws IOException, ParseException {
-        final int numDashesNewSection = 100;
         final int lengthTLD = 6;
         String extra = exchange.getRequestURI().toString().substring(lengthTLD);
 
-        OutputStream body = exchange.getResponseBody();
-        PrintWriter out = new PrintWriter(new OutputStreamWriter(body, UTF_8), true);
-
         exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
         exchange.sendResponseHeaders(VALID_RESPONSE, 0);
-        
-        Boolean stop = false;
 
-        try {
-            final Expression result = Expression.parse(extra);
-
-                final Set<String> evaluation = result.evaluate(this.allLists);
-
-                out.print("<H2> Resulting expression parsed is: " + result + "  </H2> <H3> Which equals " + evaluation + "</H3>");
-        }
-        
-        catch (Exception e) {
-            stop = true; 
-        }
-  
-        if (stop) {
-            out.print("<H2> Warning: Expression has an error in it! </H2>");
-
-
-        } else {
-            out.println("<br><br>" + "-".repeat(numDashesNewSection) + "<br>");
-            
-            out.println("<H3> Recursive calculation & explanation </H3>");
-            
-            out.println("<br>" + "-".repeat(numDashesNewSection) + "<br>");
-            
-            visual = new ArrayList<>();
-            
-            try {
-                WebServer.evaluateV2(Expression.parse(extra), this.allLists, 0);
-            } catch (Exception e) {
-
-            }
-            
-            for (String v : visual) {
-                out.println(v + "<br><br>");
-                
-            }
-            
-            out.println("<br><br>" + "-".repeat(numDashesNewSection) + "<br>");
-            
-            out.println("<H3> Tree visualization of expression </H3>");
-            
-            out.println("<br>" + "-".repeat(numDashesNewSection) + "<br>");
-            visual = new ArrayList<>();
-            
-            visual.add(
-                    "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"500\" height=\"500\">");
-            visual.add("<text x=\"10\" y=\"20\">expr</text>");
-            
-            
+        try (RenderContext out = new RenderContext(exchange.getResponseBody())) {
+            this.render(extra, out);
         }
-        
-        final int xOffset = 10;
-        final int yOffset = 20;
-        try {
-            WebServer.evaluate(Expression.parse(extra), this.allLists, xOffset, yOffset, true);
-        } catch (IllegalArgumentException e) {
-
-        }
-        
-        visual.add("</svg>");
-        
-        for (String v : visual) {
-            out.println(v);
-        }
-
         exchange.close();
     } 
 
     /**
-     * Evaluates an expression and returns the emails that form part of an expression, generating a visualisation with a tree structure at the same time.
-     * 
-     * @param expr the expression to evaluate
-     * @param map a map mapping list name to an expression of what it contains
-     * @param xRoot the x coordinate on the page of the parent of this current expression
-     * @param yRoot the y coordinate on the page of the parent of this current expression
-     * @param drawLine a flag. true -> print the next line segment, false -> print the previous linee segment
-     * @return a set of emails that correspond to this expression
-     */
-    private static SortedSet<String> evaluate(Expression expr, Map<String, Expression> map, int xRoot, int yRoot,
-            Boolean drawLine) {
-        switch (expr.getClass().getSimpleName()) {
-        case "Email": {
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + expr.toString() + "</text>";
-            visual.add(entry);
-            return new TreeSet<String>(Set.of(expr.toString()));
-        }
-        case "MailingList": {
-            MailingList m = (MailingList) expr;
-            String name = m.getName();
-
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-
-            if (map.containsKey(name)) {
-                String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + name + "</text>";
-                visual.add(entry);
-                return evaluate(map.get(name), map, xRoot, yRoot + DISTANCE_BETWEEN_LABELS, true);
-            } else {
-                map.put(name, EmptyEmailSet.getEmpty());
-                String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + "empty" + "</text>";
-                visual.add(entry);
-                return new TreeSet<String>(Set.of());
-            }
-        }
-        case "Union": {
-            Union e = (Union) expr;
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + "union" + "</text>";
-            visual.add(entry);
-
-            Set<String> emailsLeft = new HashSet<String>(evaluate(left, map, xRoot, yRoot + DISTANCE_BETWEEN_LABELS, true));
-            Set<String> emailsRight = new HashSet<String>(evaluate(right, map, xRoot + DISTANCE_BETWEEN_LABELS, yRoot + DISTANCE_BETWEEN_LABELS, false));
-
-            emailsLeft.addAll(emailsRight);
-            return Collections.unmodifiableSortedSet(new TreeSet<String>(emailsLeft));
-        }
-        case "Difference": {
-            Difference e = (Difference) expr;
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + "diff" + "</text>";
-            visual.add(entry);
-
-            Set<String> emailsLeft = new HashSet<String>(evaluate(left, map, xRoot, yRoot + DISTANCE_BETWEEN_LABELS, true));
-            Set<String> emailsRight = new HashSet<String>(evaluate(right, map, xRoot + DISTANCE_BETWEEN_LABELS, yRoot + DISTANCE_BETWEEN_LABELS, false));
-            SortedSet<String> ret = new TreeSet<String>();
-
-            for (String email : emailsLeft) {
-                if (!emailsRight.contains(email)) {
-                    ret.add(email);
-                }
-            }
-
-            return Collections.unmodifiableSortedSet(ret);
-        }
-        case "Intersection": {
-            Intersection e = (Intersection) expr;
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + "and" + "</text>";
-            visual.add(entry);
-
-            Set<String> emailsLeft = new HashSet<String>(evaluate(left, map, xRoot, yRoot + DISTANCE_BETWEEN_LABELS, true));
-            Set<String> emailsRight = new HashSet<String>(evaluate(right, map, xRoot + DISTANCE_BETWEEN_LABELS, yRoot + DISTANCE_BETWEEN_LABELS, false));
-            SortedSet<String> ret = new TreeSet<String>();
-
-            for (String email : emailsLeft) {
-                if (emailsRight.contains(email)) {
-                    ret.add(email);
-                }
-            }
-
-            return Collections.unmodifiableSortedSet(ret);
-        }
-        case "ListDefinition": {
-            ListDefinition e = (ListDefinition) expr;
-            String name = e.getName();
-
-            // Expression a = cycle(name, e.getExpr(), map);
-            Expression a = e.getExpr();
-
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + " = " + "</text>";
-            visual.add(entry);
-
-            map.put(name, a);
-            e = new ListDefinition(name, a);
-
-            SortedSet<String> s = evaluate(e.getExpr(), map, xRoot, yRoot + DISTANCE_BETWEEN_LABELS, true);
-            return s;
-        }
-        case "Sequence": {
-            Sequence e = (Sequence) expr;
-            evaluate(e.getLeft(), map, xRoot, yRoot, true);
-
-            return evaluate(e.getRight(), map, xRoot, yRoot+DISTANCE_BETWEEN_LABELS, true);
-        }
-        case "Parallel": {
-            Parallel e = (Parallel) expr;
-
-            // if valid pipe
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-            
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-            
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + " | " + "</text>";
-            visual.add(entry);
-
-            Thread t1 = new Thread(() -> {
-                evaluate(left, map, xRoot, yRoot, true);
-            });
-
-            Thread t2 = new Thread(() -> {
-                evaluate(right, map, xRoot, yRoot, false);
-            });
-
-            t1.start();
-            t2.start();
-
-            try {
-                t1.join();
-                t2.join();
-            } catch (InterruptedException e1) {
-             }
-
-            return new TreeSet<String>();
-        }
-        case "EmptyEmailSet": {
-            if (drawLine) {
-                String line1 = "  <line x1=\"" + xRoot + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            } else {
-                String line1 = "  <line x1=\"" + (xRoot - DISTANCE_BETWEEN_LABELS) + "\" y1=\"" + yRoot + "\" x2=\"" + xRoot + "\" y2=\""
-                        + (yRoot + DISTANCE_BETWEEN_LABELS) + "\" stroke=\"blue\"/>";
-                visual.add(line1);
-            }
-            String entry = "<text x=\"" + xRoot + "\" y=\"" + (yRoot + DISTANCE_BETWEEN_LABELS) + "\">" + " empty " + "</text>";
-            visual.add(entry);
-
-            return new TreeSet<String>(Set.of());
-        }
-        default:
-            System.out.println(expr.getClass().getSimpleName());
-            throw new AssertionError("should never get here while evaluating");
-
-        }
-    }
-
-    /**
-     * Evaluates an expression and returns the emails that form part of an expression, 
-     * generating a visualisation with an indented recursive structure at the same time.
-     * 
-     * @param expr the expression to evaluate
-     * @param map a map mapping list name to an expression of what it contains
-     * @param depth keeps track of how deep down the recursion trace we are
-     * @return a set of emails that correspond to this expression
+     * Render the result and both visualizations of an expression from a single traced
+     * evaluation, so definitions in it are applied once and everything shown agrees
+     *
+     * @param extra text of the expression
+     * @param out context to render into
      */
-    private static SortedSet<String> evaluateV2(Expression expr, Map<String, Expression> map, int depth) {
-        switch (expr.getClass().getSimpleName()) {
-        case "Email": {
-            String line1 = "-".repeat(depth * 2) + "email: " + expr.toString();
-            visual.add(line1);
-
-            return new TreeSet<String>(Set.of(expr.toString()));
-        }
-        case "MailingList": {
-            MailingList m = (MailingList) expr;
-            String name = m.getName();
-
-            if (map.containsKey(name)) {
-                String line1 = "-".repeat(depth * 2) + name + ": " + expr.toString();
-                visual.add(line1);
-                return evaluateV2(map.get(name), map, depth * 2 + 1);
-            } else {
-                map.put(name, EmptyEmailSet.getEmpty());
-                String line1 = "-".repeat(depth * 2) + name + ": empty";
-                visual.add(line1);
-                return new TreeSet<String>(Set.of());
-            }
-        }
-        case "Union": {
-            Union e = (Union) expr;
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-
-            String line1 = "-".repeat(depth * 2) + "union: " + e.getLeft().toString() + " , " + e.getRight().toString() + " := " + e.toString();
-            visual.add(line1);
-
-            Set<String> emailsLeft = new HashSet<String>(evaluateV2(left, map, depth + 1));
-            Set<String> emailsRight = new HashSet<String>(evaluateV2(right, map, depth + 1));
-
-            emailsLeft.addAll(emailsRight);
-            return Collections.unmodifiableSortedSet(new TreeSet<String>(emailsLeft));
-        }
-        case "Difference": {
-            Difference e = (Difference) expr;
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-
-            String line1 = "-".repeat(depth * 2) + "difference: " + e.getLeft().toString() + " ! "
-                    + e.getRight().toString() + " := " + e.toString();
-            visual.add(line1);
-
-            Set<String> emailsLeft = new HashSet<String>(evaluateV2(left, map, depth + 1));
-            Set<String> emailsRight = new HashSet<String>(evaluateV2(right, map, depth + 1));
-            SortedSet<String> ret = new TreeSet<String>();
-
-            for (String email : emailsLeft) {
-                if (!emailsRight.contains(email)) {
-                    ret.add(email);
-                }
-            }
-
-            return Collections.unmodifiableSortedSet(ret);
-        }
-        case "Intersection": {
-            Intersection e = (Intersection) expr;
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
-
-            String line1 = "-".repeat(depth * 2) + "intersection: " + e.getLeft().toString() + " * "
-                    + e.getRight().toString() + " := " +  e.toString();
-            
-            visual.add(line1);
-
-            Set<String> emailsLeft = new HashSet<String>(evaluateV2(left, map, depth + 1));
-            Set<String> emailsRight = new HashSet<String>(evaluateV2(right, map, depth + 1));
-            SortedSet<String> ret = new TreeSet<String>();
-
-            for (String email : emailsLeft) {
-                if (emailsRight.contains(email)) {
-                    ret.add(email);
-                }
-            }
-
-            return Collections.unmodifiableSortedSet(ret);
-        }
-        case "ListDefinition": {
-            ListDefinition e = (ListDefinition) expr;
-            String name = e.getName();
-
-            // Expression a = cycle(name, e.getExpr(), map);
-            Expression a = e.getExpr();
-
-            String line1 = "-".repeat(depth * 2) + name + " = " + a;
-            visual.add(line1);
-
-            map.put(name, a);
-            e = new ListDefinition(name, a);
-
-            SortedSet<String> s = evaluateV2(e.getExpr(), map, depth + 1);
-            return s;
-        }
-        case "Sequence": {
-            Sequence e = (Sequence) expr;
-            evaluateV2(e.getLeft(), map, depth + 1);
-
-            return evaluateV2(e.getRight(), map, depth + 1);
+    private void render(String extra, RenderContext out) {
+        final int numDashesNewSection = 100;
+        final Expression parsed;
+        try {
+            parsed = Expression.parse(extra);
+        } catch (IllegalArgumentException e) {
+            out.line("<H2> Warning: Expression has an error in it! </H2>");
+            return;
         }
-        case "Parallel": {
-            Parallel e = (Parallel) expr;
 
-            // if valid pipe
-            Expression left = e.getLeft();
-            Expression right = e.getRight();
+        out.line("<H2> Resulting expression parsed is: " + parsed + "  </H2>");
+        out.line("<br><br>" + "-".repeat(numDashesNewSection) + "<br>");
+        out.line("<H3> Recursive calculation & explanation </H3>");
+        out.line("<br>" + "-".repeat(numDashesNewSection) + "<br>");
+        out.flush();
 
-            String line1 = "-".repeat(depth * 2) + "parallel: " + e.getLeft().toString() + " | "
-                    + e.getRight().toString();
-            visual.add(line1);
-
-            Thread t1 = new Thread(() -> {
-                evaluateV2(left, map, depth + 1);
-            });
-
-            Thread t2 = new Thread(() -> {
-                evaluateV2(right, map, depth + 1);
-            });
-
-            t1.start();
-            t2.start();
-
-            try {
-                t1.join();
-                t2.join();
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
+        final TraceRenderer tracer = new TraceRenderer(out);
+        final boolean readsOnly = ParallelEvaluation.readsOnly(List.of(parsed), this.allLists);
+        try {
+            final EmailSet result = parsed.trace(this.allLists, tracer);
+            if (!readsOnly) {
+                this.durability.sync();
             }
-
-            return new TreeSet<String>();
-        }
-        case "EmptyEmailSet": {
-
-            String line1 = "-".repeat(depth * 2) + "empty email ";
-            visual.add(line1);
-
-            return new TreeSet<String>(Set.of());
+            out.line("<H3> Which equals " + EmailDictionary.decode(result) + "</H3>");
+        } catch (RuntimeException e) {
+            out.line("<H2> Warning: Expression has an error in it! </H2>");
+        } catch (IOException e) {
+            out.line("<H2> Warning: Definitions could not be saved! </H2>");
         }
-        default:
-            System.out.println(expr.getClass().getSimpleName());
-            throw new AssertionError("should never get here while evaluating");
 
+        out.line("<br><br>" + "-".repeat(numDashesNewSection) + "<br>");
+        out.line("<H3> Tree visualization of expression </H3>");
+        out.line("<br>" + "-".repeat(numDashesNewSection) + "<br>");
+        out.line(
+                "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"500\" height=\"500\">");
+        out.line("<text x=\"10\" y=\"20\">expr</text>");
+        for (String fragment : tracer.treeFragments()) {
+            out.line(fragment);
         }
+        out.line("</svg>");
     }
 
 }
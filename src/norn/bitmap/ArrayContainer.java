@@ -0,0 +1,158 @@
+package norn.bitmap;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ *
+ * A sparse container that stores its values as a sorted array.
+ *
+ */
+final class ArrayContainer extends Container {
+
+    private final char[] values;
+
+    // Abstraction function
+    //   AF(values) = { values[i] | 0 <= i < values.length }
+    //
+    // Rep invariant
+    //   - values is strictly ascending and non empty
+    //   - values.length <= ARRAY_MAX
+    //
+    // Safety from rep exposure
+    //   - values is private, final and copied in toChars
+    //
+    // Thread Safety Argument
+    //   - immutable
+
+    /**
+     * @param values strictly ascending values, owned by the new container
+     */
+    ArrayContainer(char[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @param cardinality number of values
+     * @return bytes needed to store that many values as an array
+     */
+    static int sizeInBytes(int cardinality) {
+        return cardinality * Character.BYTES;
+    }
+
+    /**
+     * @param words bitmap to read
+     * @param cardinality number of bits set in words
+     * @return array container with the set bits of words
+     */
+    static ArrayContainer fromWords(long[] words, int cardinality) {
+        char[] values = new char[cardinality];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                values[n++] = (char) (i * Long.SIZE + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values);
+    }
+
+    @Override
+    int cardinality() {
+        return this.values.length;
+    }
+
+    @Override
+    boolean contains(int low) {
+        return Arrays.binarySearch(this.values, (char) low) >= 0;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+        final int base = high << 16;
+        for (char low : this.values) {
+            action.accept(base | low);
+        }
+    }
+
+    @Override
+    void orInto(long[] words) {
+        for (char low : this.values) {
+            words[low >>> 6] |= 1L << low;
+        }
+    }
+
+    @Override
+    char[] toChars() {
+        return this.values.clone();
+    }
+
+    @Override
+    int first() {
+        return this.values[0];
+    }
+
+    @Override
+    int ceiling(int low) {
+        int i = Arrays.binarySearch(this.values, (char) low);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < this.values.length ? this.values[i] : -1;
+    }
+
+    @Override
+    Container or(Container that) {
+        if (!(that instanceof ArrayContainer)) {
+            return that.or(this);
+        }
+        char[] other = ((ArrayContainer) that).values;
+        if (this.values.length + other.length > ARRAY_MAX) {
+            return super.or(that);
+        }
+        char[] merged = new char[this.values.length + other.length];
+        int i = 0, j = 0, n = 0;
+        while (i < this.values.length && j < other.length) {
+            if (this.values[i] < other[j]) {
+                merged[n++] = this.values[i++];
+            } else if (this.values[i] > other[j]) {
+                merged[n++] = other[j++];
+            } else {
+                merged[n++] = this.values[i++];
+                j++;
+            }
+        }
+        while (i < this.values.length) {
+            merged[n++] = this.values[i++];
+        }
+        while (j < other.length) {
+            merged[n++] = other[j++];
+        }
+        return fromChars(merged, n);
+    }
+
+    @Override
+    Container and(Container that) {
+        char[] kept = new char[this.values.length];
+        int n = 0;
+        for (char low : this.values) {
+            if (that.contains(low)) {
+                kept[n++] = low;
+            }
+        }
+        return fromChars(kept, n);
+    }
+
+    @Override
+    Container andNot(Container that) {
+        char[] kept = new char[this.values.length];
+        int n = 0;
+        for (char low : this.values) {
+            if (!that.contains(low)) {
+                kept[n++] = low;
+            }
+        }
+        return fromChars(kept, n);
+    }
+}
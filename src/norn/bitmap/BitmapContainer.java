@@ -0,0 +1,97 @@
+package norn.bitmap;
+
+import java.util.function.IntConsumer;
+
+/**
+ *
+ * A dense container that stores one bit for each of its 65536 possible values.
+ * Set operations between bitmaps run a 64-bit word at a time.
+ *
+ */
+final class BitmapContainer extends Container {
+
+    /** bytes used by every bitmap container */
+    static final int SIZE_IN_BYTES = WORDS * Long.BYTES;
+
+    private final long[] words;
+    private final int cardinality;
+
+    // Abstraction function
+    //   AF(words, cardinality) = { i | bit (i % 64) of words[i / 64] is set }
+    //
+    // Rep invariant
+    //   - words.length == WORDS
+    //   - cardinality == number of set bits in words, and cardinality > ARRAY_MAX
+    //
+    // Safety from rep exposure
+    //   - words is private, final and copied in toWords
+    //
+    // Thread Safety Argument
+    //   - immutable
+
+    /**
+     * @param words bitmap owned by the new container
+     * @param cardinality number of set bits in words
+     */
+    BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    int cardinality() {
+        return this.cardinality;
+    }
+
+    @Override
+    boolean contains(int low) {
+        return (this.words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+        final int base = high << 16;
+        for (int i = 0; i < WORDS; i++) {
+            long word = this.words[i];
+            while (word != 0) {
+                action.accept(base | (i * Long.SIZE + Long.numberOfTrailingZeros(word)));
+                word &= word - 1;
+            }
+        }
+    }
+
+    @Override
+    void orInto(long[] target) {
+        for (int i = 0; i < WORDS; i++) {
+            target[i] |= this.words[i];
+        }
+    }
+
+    @Override
+    long[] toWords() {
+        return this.words.clone();
+    }
+
+    @Override
+    char[] toChars() {
+        return ArrayContainer.fromWords(this.words, this.cardinality).toChars();
+    }
+
+    @Override
+    int first() {
+        return this.ceiling(0);
+    }
+
+    @Override
+    int ceiling(int low) {
+        int i = low >>> 6;
+        long word = this.words[i] & (-1L << low);
+        while (word == 0) {
+            if (++i == WORDS) {
+                return -1;
+            }
+            word = this.words[i];
+        }
+        return i * Long.SIZE + Long.numberOfTrailingZeros(word);
+    }
+}
@@ -0,0 +1,202 @@
+package norn.bitmap;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ *
+ * A container holds the low 16 bits of every id in an EmailSet that shares
+ * one high 16-bit key. Containers are immutable once built, so sets produced
+ * by set operations may share them.
+ *
+ */
+abstract class Container {
+
+    // Abstraction function
+    //   AF(subclass rep) = the set of 16-bit values { low } stored in this chunk
+    //
+    // Rep invariant
+    //   - cardinality() > 0
+    //   - the representation is the one chosen by fromWords or fromChars
+    //
+    // Safety from rep exposure
+    //   - subclasses never hand out their arrays, every operation builds a new container
+    //
+    // Thread Safety Argument
+    //   - immutable
+
+    /** number of values a container can hold */
+    static final int CAPACITY = 1 << 16;
+
+    /** number of 64-bit words in a bitmap container */
+    static final int WORDS = CAPACITY / Long.SIZE;
+
+    /** above this many values a sorted array is larger than a bitmap */
+    static final int ARRAY_MAX = 4096;
+
+    /**
+     * @return number of values in this container
+     */
+    abstract int cardinality();
+
+    /**
+     * @param low value in [0, 65535]
+     * @return true iff low is in this container
+     */
+    abstract boolean contains(int low);
+
+    /**
+     * Calls action with (high << 16) | low for every value in ascending order
+     *
+     * @param high the key this container is stored under
+     * @param action consumer of full ids
+     */
+    abstract void forEach(int high, IntConsumer action);
+
+    /**
+     * Sets the bit of every value in this container
+     *
+     * @param words 1024-word bitmap, modified by this method
+     */
+    abstract void orInto(long[] words);
+
+    /**
+     * @return the values of this container in ascending order
+     */
+    abstract char[] toChars();
+
+    /**
+     * @return the smallest value in this container
+     */
+    abstract int first();
+
+    /**
+     * @param low value in [0, 65535]
+     * @return smallest value in this container that is >= low, or -1 if there is none
+     */
+    abstract int ceiling(int low);
+
+    /**
+     * @return a new 1024-word bitmap holding the values of this container
+     */
+    long[] toWords() {
+        long[] words = new long[WORDS];
+        this.orInto(words);
+        return words;
+    }
+
+    /**
+     * @param that another container
+     * @return container holding the values in this or that
+     */
+    Container or(Container that) {
+        long[] words = this.toWords();
+        that.orInto(words);
+        return fromWords(words);
+    }
+
+    /**
+     * @param that another container
+     * @return container holding the values in both this and that, or null if there are none
+     */
+    Container and(Container that) {
+        if (that instanceof ArrayContainer) {
+            return that.and(this);
+        }
+        long[] words = this.toWords();
+        long[] other = that.toWords();
+        for (int i = 0; i < WORDS; i++) {
+            words[i] &= other[i];
+        }
+        return fromWords(words);
+    }
+
+    /**
+     * @param that another container
+     * @return container holding the values in this but not in that, or null if there are none
+     */
+    Container andNot(Container that) {
+        long[] words = this.toWords();
+        if (that instanceof ArrayContainer) {
+            for (char low : that.toChars()) {
+                words[low >>> 6] &= ~(1L << low);
+            }
+        } else {
+            long[] other = that.toWords();
+            for (int i = 0; i < WORDS; i++) {
+                words[i] &= ~other[i];
+            }
+        }
+        return fromWords(words);
+    }
+
+    /**
+     * Picks the smallest representation for the values set in a bitmap
+     *
+     * @param words 1024-word bitmap, which may be kept by the returned container
+     * @return the container, or null if no bit is set
+     */
+    static Container fromWords(long[] words) {
+        int cardinality = 0;
+        int runs = 0;
+        long carry = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+            runs += Long.bitCount(word & ~((word << 1) | carry));
+            carry = word >>> (Long.SIZE - 1);
+        }
+        if (cardinality == 0) {
+            return null;
+        }
+        if (RunContainer.sizeInBytes(runs) < Math.min(ArrayContainer.sizeInBytes(cardinality), BitmapContainer.SIZE_IN_BYTES)) {
+            return RunContainer.fromWords(words, runs);
+        }
+        if (cardinality <= ARRAY_MAX) {
+            return ArrayContainer.fromWords(words, cardinality);
+        }
+        return new BitmapContainer(words, cardinality);
+    }
+
+    /**
+     * Picks the smallest representation for a sorted run of distinct values
+     *
+     * @param values ascending, distinct values in [0, 65535]
+     * @param length number of values of the array to use
+     * @return the container, or null if length is 0
+     */
+    static Container fromChars(char[] values, int length) {
+        if (length == 0) {
+            return null;
+        }
+        int runs = 1;
+        for (int i = 1; i < length; i++) {
+            if (values[i] != values[i - 1] + 1) {
+                runs++;
+            }
+        }
+        if (RunContainer.sizeInBytes(runs) < Math.min(ArrayContainer.sizeInBytes(length), BitmapContainer.SIZE_IN_BYTES)) {
+            return RunContainer.fromChars(values, length, runs);
+        }
+        if (length <= ARRAY_MAX) {
+            return new ArrayContainer(Arrays.copyOf(values, length));
+        }
+        long[] words = new long[WORDS];
+        for (int i = 0; i < length; i++) {
+            words[values[i] >>> 6] |= 1L << values[i];
+        }
+        return new BitmapContainer(words, length);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof Container)) {
+            return false;
+        }
+        return Arrays.equals(this.toChars(), ((Container) that).toChars());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.toChars());
+    }
+}
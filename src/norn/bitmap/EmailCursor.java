@@ -0,0 +1,29 @@
+package norn.bitmap;
+
+/**
+ *
+ * A forward-only cursor over a set of email ids in ascending order. Cursors let
+ * set operators combine their operands one id at a time instead of building
+ * a set for every node of an expression.
+ *
+ */
+public interface EmailCursor {
+
+    /** returned once the cursor has no more ids */
+    public static final int END = -1;
+
+    /**
+     * Moves to the next id
+     *
+     * @return the smallest id greater than every id returned so far, or END
+     */
+    public int next();
+
+    /**
+     * Skips ahead to an id
+     *
+     * @param target non-negative id
+     * @return the smallest id >= target and greater than every id returned so far, or END
+     */
+    public int advance(int target);
+}
@@ -0,0 +1,323 @@
+package norn.bitmap;
+
+import java.util.List;
+
+/**
+ *
+ * Cursors that combine other cursors: union is a merge, intersection a leapfrog
+ * that lets each side skip ahead to the other's id, and difference a merge that
+ * skips the ids of its right side. Each keeps only the current id of its operands.
+ *
+ */
+public final class EmailCursors {
+
+    private static final EmailCursor EMPTY = new EmailCursor() {
+        @Override
+        public int next() {
+            return END;
+        }
+
+        @Override
+        public int advance(int target) {
+            return END;
+        }
+    };
+
+    // marks an operand whose next id has not been read yet
+    private static final int UNREAD = -2;
+
+    // uninstantiable
+    private EmailCursors() {
+    }
+
+    /**
+     * @return cursor with no ids
+     */
+    public static EmailCursor empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param id non-negative id
+     * @return cursor over just that id
+     */
+    public static EmailCursor single(int id) {
+        return new EmailCursor() {
+            private boolean done = false;
+
+            @Override
+            public int next() {
+                if (this.done) {
+                    return END;
+                }
+                this.done = true;
+                return id;
+            }
+
+            @Override
+            public int advance(int target) {
+                return id >= target ? this.next() : this.skip();
+            }
+
+            private int skip() {
+                this.done = true;
+                return END;
+            }
+        };
+    }
+
+    /**
+     * @param left cursor
+     * @param right cursor
+     * @return cursor over the ids of either cursor, which consumes both
+     */
+    public static EmailCursor union(EmailCursor left, EmailCursor right) {
+        return new EmailCursor() {
+            private int leftHead = UNREAD;
+            private int rightHead = UNREAD;
+
+            @Override
+            public int next() {
+                if (this.leftHead == UNREAD) {
+                    this.leftHead = left.next();
+                }
+                if (this.rightHead == UNREAD) {
+                    this.rightHead = right.next();
+                }
+                if (this.leftHead == END && this.rightHead == END) {
+                    return END;
+                }
+                final int id;
+                if (this.rightHead == END || (this.leftHead != END && this.leftHead <= this.rightHead)) {
+                    id = this.leftHead;
+                } else {
+                    id = this.rightHead;
+                }
+                if (this.leftHead == id) {
+                    this.leftHead = UNREAD;
+                }
+                if (this.rightHead == id) {
+                    this.rightHead = UNREAD;
+                }
+                return id;
+            }
+
+            @Override
+            public int advance(int target) {
+                if (this.leftHead == UNREAD || (this.leftHead != END && this.leftHead < target)) {
+                    this.leftHead = left.advance(target);
+                }
+                if (this.rightHead == UNREAD || (this.rightHead != END && this.rightHead < target)) {
+                    this.rightHead = right.advance(target);
+                }
+                return this.next();
+            }
+        };
+    }
+
+    /**
+     * @param left cursor
+     * @param right cursor
+     * @return cursor over the ids of both cursors, which consumes both
+     */
+    public static EmailCursor intersection(EmailCursor left, EmailCursor right) {
+        return new EmailCursor() {
+            @Override
+            public int next() {
+                return this.leapfrog(left.next());
+            }
+
+            @Override
+            public int advance(int target) {
+                return this.leapfrog(left.advance(target));
+            }
+
+            // alternately moves each side to the other's id until they agree
+            private int leapfrog(int candidate) {
+                int id = candidate;
+                while (id != END) {
+                    final int other = right.advance(id);
+                    if (other == id || other == END) {
+                        return other;
+                    }
+                    id = left.advance(other);
+                    if (id == other) {
+                        return id;
+                    }
+                }
+                return END;
+            }
+        };
+    }
+
+    /**
+     * @param left cursor to draw ids from
+     * @param right cursor of ids to exclude
+     * @return cursor over the ids of left that are not in right, which consumes both
+     */
+    public static EmailCursor difference(EmailCursor left, EmailCursor right) {
+        return new EmailCursor() {
+            private int rightHead = UNREAD;
+
+            @Override
+            public int next() {
+                return this.skip(left.next());
+            }
+
+            @Override
+            public int advance(int target) {
+                return this.skip(left.advance(target));
+            }
+
+            // moves past ids of left that right also has
+            private int skip(int candidate) {
+                int id = candidate;
+                while (id != END) {
+                    if (this.rightHead == UNREAD || (this.rightHead != END && this.rightHead < id)) {
+                        this.rightHead = right.advance(id);
+                    }
+                    if (this.rightHead != id) {
+                        return id;
+                    }
+                    id = left.next();
+                }
+                return END;
+            }
+        };
+    }
+
+    /**
+     * @param cursors cursors to merge
+     * @return cursor over the ids of any of the cursors, merged with a heap of their
+     *         current ids, which consumes all of them
+     */
+    public static EmailCursor union(List<EmailCursor> cursors) {
+        return new EmailCursor() {
+            private final EmailCursor[] operands = cursors.toArray(new EmailCursor[0]);
+            private final int[] heads = new int[this.operands.length];
+            private final int[] heap = new int[this.operands.length];
+            private int size = -1;
+
+            // heap holds the indices of the operands that are not at END, as a binary min-heap
+            // on heads; size is -1 until the first id has been read from every operand
+
+            @Override
+            public int next() {
+                if (this.size < 0) {
+                    for (int i = 0; i < this.operands.length; i++) {
+                        this.heads[i] = this.operands[i].next();
+                    }
+                    this.heapify();
+                }
+                if (this.size == 0) {
+                    return END;
+                }
+                final int id = this.heads[this.heap[0]];
+                while (this.size > 0 && this.heads[this.heap[0]] == id) {
+                    final int top = this.heap[0];
+                    this.heads[top] = this.operands[top].next();
+                    if (this.heads[top] == END) {
+                        this.heap[0] = this.heap[--this.size];
+                    }
+                    this.siftDown(0);
+                }
+                return id;
+            }
+
+            @Override
+            public int advance(int target) {
+                for (int i = 0; i < this.operands.length; i++) {
+                    if (this.size < 0 || (this.heads[i] != END && this.heads[i] < target)) {
+                        this.heads[i] = this.operands[i].advance(target);
+                    }
+                }
+                this.heapify();
+                return this.next();
+            }
+
+            private void heapify() {
+                this.size = 0;
+                for (int i = 0; i < this.operands.length; i++) {
+                    if (this.heads[i] != END) {
+                        this.heap[this.size++] = i;
+                    }
+                }
+                for (int i = this.size / 2 - 1; i >= 0; i--) {
+                    this.siftDown(i);
+                }
+            }
+
+            private void siftDown(int from) {
+                int i = from;
+                while (true) {
+                    int smallest = i;
+                    for (int child = 2 * i + 1; child <= 2 * i + 2 && child < this.size; child++) {
+                        if (this.heads[this.heap[child]] < this.heads[this.heap[smallest]]) {
+                            smallest = child;
+                        }
+                    }
+                    if (smallest == i) {
+                        return;
+                    }
+                    final int swap = this.heap[i];
+                    this.heap[i] = this.heap[smallest];
+                    this.heap[smallest] = swap;
+                    i = smallest;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param cursors non empty list of cursors to intersect
+     * @return cursor over the ids of all the cursors, found by leapfrogging each
+     *         cursor to the largest id seen so far, which consumes all of them
+     */
+    public static EmailCursor intersection(List<EmailCursor> cursors) {
+        return new EmailCursor() {
+            private final EmailCursor[] operands = cursors.toArray(new EmailCursor[0]);
+
+            @Override
+            public int next() {
+                return this.leapfrog(this.operands[0].next());
+            }
+
+            @Override
+            public int advance(int target) {
+                return this.leapfrog(this.operands[0].advance(target));
+            }
+
+            // candidate has been read from operands[0]; agreed counts the operands at candidate
+            private int leapfrog(int candidate) {
+                int id = candidate;
+                int agreed = 1;
+                int i = 1 % this.operands.length;
+                while (id != END && agreed < this.operands.length) {
+                    final int other = this.operands[i].advance(id);
+                    if (other == id) {
+                        agreed++;
+                    } else {
+                        id = other;
+                        agreed = 1;
+                    }
+                    i = (i + 1) % this.operands.length;
+                }
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Reads every remaining id of a cursor into a set
+     *
+     * @param cursor cursor to drain
+     * @return set of the ids the cursor returned
+     */
+    public static EmailSet materialize(EmailCursor cursor) {
+        final EmailSet.Builder builder = new EmailSet.Builder();
+        for (int id = cursor.next(); id != EmailCursor.END; id = cursor.next()) {
+            builder.add(id);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,559 @@
+package norn.bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ *
+ * An immutable compressed set of non-negative int ids, split into chunks of
+ * 65536 ids that are each stored as a sorted array, a bitmap or a list of runs,
+ * whichever is smallest. Union, intersection and difference work chunk by chunk,
+ * and a 64-bit word at a time where both chunks are dense. Operations on large
+ * sets can also be split by chunk key into ranges run on a fork/join pool.
+ *
+ */
+public final class EmailSet {
+
+    private static final EmailSet EMPTY = new EmailSet(new char[0], new Container[0]);
+    private static final int KEY_LIMIT = 1 << 16;
+    private static final int MIN_RANGE_CHUNKS = 4;
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    // Abstraction function
+    //   AF(keys, containers) = { (keys[i] << 16) | low | low in containers[i] }
+    //
+    // Rep invariant
+    //   - keys is strictly ascending
+    //   - keys.length == containers.length and no container is null
+    //   - cardinality == sum of containers[i].cardinality()
+    //
+    // Safety from rep exposure
+    //   - keys and containers are private, final and never returned
+    //   - containers are immutable, so sharing them between sets is safe
+    //
+    // Thread Safety Argument
+    //   - immutable
+
+    private EmailSet(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int total = 0;
+        for (Container container : containers) {
+            total += container.cardinality();
+        }
+        this.cardinality = total;
+    }
+
+    /**
+     * @return the set with no ids
+     */
+    public static EmailSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param ids non-negative ids, in any order and possibly repeated
+     * @return the set of those ids
+     */
+    public static EmailSet of(int... ids) {
+        Builder builder = new Builder();
+        for (int id : ids) {
+            builder.add(id);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return number of ids in this set
+     */
+    public int cardinality() {
+        return this.cardinality;
+    }
+
+    /**
+     * @return true iff this set has no ids
+     */
+    public boolean isEmpty() {
+        return this.cardinality == 0;
+    }
+
+    /**
+     * @param id any id
+     * @return true iff id is in this set
+     */
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int i = Arrays.binarySearch(this.keys, (char) (id >>> 16));
+        return i >= 0 && this.containers[i].contains(id & 0xFFFF);
+    }
+
+    /**
+     * Calls action on every id of this set in ascending order
+     *
+     * @param action consumer of ids
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < this.keys.length; i++) {
+            this.containers[i].forEach(this.keys[i], action);
+        }
+    }
+
+    /**
+     * @return the ids of this set in ascending order
+     */
+    public int[] toArray() {
+        int[] ids = new int[this.cardinality];
+        int[] n = {0};
+        this.forEach(id -> ids[n[0]++] = id);
+        return ids;
+    }
+
+    /**
+     * @return cursor over the ids of this set in ascending order
+     */
+    public EmailCursor cursor() {
+        return new SetCursor();
+    }
+
+    /**
+     * Cursor that walks the containers of this set, using each container's ceiling
+     * to move to the next id or to skip ahead
+     */
+    private final class SetCursor implements EmailCursor {
+        private int index = 0;
+        private int low = -1;
+
+        // index is the container being read and low the last value returned from it, or -1
+
+        @Override
+        public int next() {
+            while (this.index < keys.length) {
+                final int found = this.low == Container.CAPACITY - 1 ? -1 : containers[this.index].ceiling(this.low + 1);
+                if (found >= 0) {
+                    this.low = found;
+                    return keys[this.index] << 16 | found;
+                }
+                this.index++;
+                this.low = -1;
+            }
+            return END;
+        }
+
+        @Override
+        public int advance(int target) {
+            final int high = target >>> 16;
+            if (this.index < keys.length && keys[this.index] < high) {
+                final int i = Arrays.binarySearch(keys, this.index, keys.length, (char) high);
+                this.index = i >= 0 ? i : -i - 1;
+                this.low = -1;
+            }
+            if (this.index < keys.length && keys[this.index] == high) {
+                this.low = Math.max(this.low, (target & 0xFFFF) - 1);
+            }
+            return this.next();
+        }
+    }
+
+    /**
+     * @param that another set
+     * @return the ids in this set, that set, or both
+     */
+    public EmailSet or(EmailSet that) {
+        if (this.isEmpty()) {
+            return that;
+        }
+        if (that.isEmpty()) {
+            return this;
+        }
+        char[] keys = new char[this.keys.length + that.keys.length];
+        Container[] containers = new Container[keys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length && j < that.keys.length) {
+            if (this.keys[i] < that.keys[j]) {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++];
+            } else if (this.keys[i] > that.keys[j]) {
+                keys[n] = that.keys[j];
+                containers[n++] = that.containers[j++];
+            } else {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++].or(that.containers[j++]);
+            }
+        }
+        while (i < this.keys.length) {
+            keys[n] = this.keys[i];
+            containers[n++] = this.containers[i++];
+        }
+        while (j < that.keys.length) {
+            keys[n] = that.keys[j];
+            containers[n++] = that.containers[j++];
+        }
+        return new EmailSet(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * @param that another set
+     * @return the ids in both this set and that set
+     */
+    public EmailSet and(EmailSet that) {
+        int size = Math.min(this.keys.length, that.keys.length);
+        char[] keys = new char[size];
+        Container[] containers = new Container[size];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length && j < that.keys.length) {
+            if (this.keys[i] < that.keys[j]) {
+                i++;
+            } else if (this.keys[i] > that.keys[j]) {
+                j++;
+            } else {
+                Container container = this.containers[i].and(that.containers[j]);
+                if (container != null) {
+                    keys[n] = this.keys[i];
+                    containers[n++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return n == 0 ? EMPTY : new EmailSet(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * @param that another set
+     * @return the ids in this set that are not in that set
+     */
+    public EmailSet andNot(EmailSet that) {
+        if (this.isEmpty() || that.isEmpty()) {
+            return this;
+        }
+        char[] keys = new char[this.keys.length];
+        Container[] containers = new Container[this.keys.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            while (j < that.keys.length && that.keys[j] < this.keys[i]) {
+                j++;
+            }
+            Container container = this.containers[i];
+            if (j < that.keys.length && that.keys[j] == this.keys[i]) {
+                container = container.andNot(that.containers[j]);
+            }
+            if (container != null) {
+                keys[n] = this.keys[i];
+                containers[n++] = container;
+            }
+        }
+        return n == 0 ? EMPTY : new EmailSet(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * Unions any number of sets in one pass: a heap orders their chunks by key, and
+     * the chunks that share a key are ored into a single bitmap
+     *
+     * @param sets sets to union
+     * @return the ids in at least one of the sets
+     */
+    public static EmailSet union(List<EmailSet> sets) {
+        final PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, sets.size()),
+                Comparator.comparingInt(head -> sets.get(head[0]).keys[head[1]]));
+        int capacity = 0;
+        for (int i = 0; i < sets.size(); i++) {
+            if (!sets.get(i).isEmpty()) {
+                heads.add(new int[] {i, 0});
+                capacity += sets.get(i).keys.length;
+            }
+        }
+        char[] keys = new char[capacity];
+        Container[] containers = new Container[capacity];
+        final List<Container> group = new ArrayList<Container>();
+        int n = 0;
+        while (!heads.isEmpty()) {
+            final char key = sets.get(heads.peek()[0]).keys[heads.peek()[1]];
+            group.clear();
+            while (!heads.isEmpty() && sets.get(heads.peek()[0]).keys[heads.peek()[1]] == key) {
+                final int[] head = heads.remove();
+                final EmailSet set = sets.get(head[0]);
+                group.add(set.containers[head[1]]);
+                if (++head[1] < set.keys.length) {
+                    heads.add(head);
+                }
+            }
+            keys[n] = key;
+            if (group.size() == 1) {
+                containers[n++] = group.get(0);
+            } else {
+                final long[] words = new long[Container.WORDS];
+                for (Container container : group) {
+                    container.orInto(words);
+                }
+                containers[n++] = Container.fromWords(words);
+            }
+        }
+        return n == 0 ? EMPTY : new EmailSet(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * Intersects any number of sets, smallest first so that the running result
+     * shrinks as fast as possible, stopping as soon as it is empty
+     *
+     * @param sets non empty list of sets to intersect
+     * @return the ids in every one of the sets
+     */
+    public static EmailSet intersection(List<EmailSet> sets) {
+        final List<EmailSet> bySize = new ArrayList<EmailSet>(sets);
+        bySize.sort(Comparator.comparingInt(EmailSet::cardinality));
+        EmailSet result = bySize.get(0);
+        for (int i = 1; i < bySize.size() && !result.isEmpty(); i++) {
+            result = result.and(bySize.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Same as or, with the chunk keys split into ranges that are combined as fork/join tasks on pool
+     *
+     * @param that another set
+     * @param pool pool to run the ranges on
+     * @return the ids in this set, that set, or both
+     */
+    public EmailSet or(EmailSet that, ForkJoinPool pool) {
+        return inRanges(List.of(this, that), pool, sets -> sets.get(0).or(sets.get(1)));
+    }
+
+    /**
+     * Same as and, with the chunk keys split into ranges that are combined as fork/join tasks on pool
+     *
+     * @param that another set
+     * @param pool pool to run the ranges on
+     * @return the ids in both this set and that set
+     */
+    public EmailSet and(EmailSet that, ForkJoinPool pool) {
+        return inRanges(List.of(this, that), pool, sets -> sets.get(0).and(sets.get(1)));
+    }
+
+    /**
+     * Same as andNot, with the chunk keys split into ranges that are combined as fork/join tasks on pool
+     *
+     * @param that another set
+     * @param pool pool to run the ranges on
+     * @return the ids in this set that are not in that set
+     */
+    public EmailSet andNot(EmailSet that, ForkJoinPool pool) {
+        return inRanges(List.of(this, that), pool, sets -> sets.get(0).andNot(sets.get(1)));
+    }
+
+    /**
+     * Same as union, with the chunk keys split into ranges that are combined as fork/join tasks on pool
+     *
+     * @param sets sets to union
+     * @param pool pool to run the ranges on
+     * @return the ids in at least one of the sets
+     */
+    public static EmailSet union(List<EmailSet> sets, ForkJoinPool pool) {
+        return inRanges(sets, pool, EmailSet::union);
+    }
+
+    /**
+     * Same as intersection, with the chunk keys split into ranges that are combined as fork/join tasks on pool
+     *
+     * @param sets non empty list of sets to intersect
+     * @param pool pool to run the ranges on
+     * @return the ids in every one of the sets
+     */
+    public static EmailSet intersection(List<EmailSet> sets, ForkJoinPool pool) {
+        return inRanges(sets, pool, EmailSet::intersection);
+    }
+
+    /**
+     * Every operation works chunk by chunk, so an operation on the chunks with keys in [from, to)
+     * only needs those chunks. The key space is cut at evenly spaced keys of the largest set,
+     * each range is a task and the results, disjoint and ordered by key, are concatenated.
+     * Operations with too few chunks to share out run as a single range.
+     */
+    private static EmailSet inRanges(List<EmailSet> sets, ForkJoinPool pool, Function<List<EmailSet>, EmailSet> op) {
+        EmailSet largest = EMPTY;
+        for (EmailSet set : sets) {
+            if (set.keys.length > largest.keys.length) {
+                largest = set;
+            }
+        }
+        final int ranges = Math.min(pool.getParallelism() * 2, largest.keys.length / MIN_RANGE_CHUNKS);
+        if (ranges < 2) {
+            return op.apply(sets);
+        }
+        final int[] bounds = new int[ranges + 1];
+        for (int i = 1; i < ranges; i++) {
+            bounds[i] = largest.keys[(int) ((long) i * largest.keys.length / ranges)];
+        }
+        bounds[ranges] = KEY_LIMIT;
+        final RangeTask task = new RangeTask(sets, op, bounds, 0, ranges);
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+    }
+
+    /**
+     * Task that applies an operation to the chunks of sets with keys in [bounds[lo], bounds[hi])
+     */
+    private static final class RangeTask extends RecursiveTask<EmailSet> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<EmailSet> sets;
+        private final Function<List<EmailSet>, EmailSet> op;
+        private final int[] bounds;
+        private final int lo, hi;
+
+        private RangeTask(List<EmailSet> sets, Function<List<EmailSet>, EmailSet> op, int[] bounds, int lo, int hi) {
+            this.sets = sets;
+            this.op = op;
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected EmailSet compute() {
+            if (this.hi - this.lo == 1) {
+                final List<EmailSet> slices = new ArrayList<EmailSet>(this.sets.size());
+                for (EmailSet set : this.sets) {
+                    slices.add(set.slice(this.bounds[this.lo], this.bounds[this.hi]));
+                }
+                return this.op.apply(slices);
+            }
+            final int mid = (this.lo + this.hi) >>> 1;
+            final RangeTask low = new RangeTask(this.sets, this.op, this.bounds, this.lo, mid);
+            low.fork();
+            final EmailSet high = new RangeTask(this.sets, this.op, this.bounds, mid, this.hi).compute();
+            return concat(low.join(), high);
+        }
+    }
+
+    // the chunks of this set with keys in [from, to)
+    private EmailSet slice(int from, int to) {
+        final int start = this.firstKeyAtLeast(from);
+        final int end = this.firstKeyAtLeast(to);
+        if (start == 0 && end == this.keys.length) {
+            return this;
+        }
+        return start == end ? EMPTY
+                : new EmailSet(Arrays.copyOfRange(this.keys, start, end), Arrays.copyOfRange(this.containers, start, end));
+    }
+
+    private int firstKeyAtLeast(int key) {
+        if (key >= KEY_LIMIT) {
+            return this.keys.length;
+        }
+        final int i = Arrays.binarySearch(this.keys, (char) key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    // the union of two sets whose keys are all below and all above some key
+    private static EmailSet concat(EmailSet low, EmailSet high) {
+        if (low.isEmpty()) {
+            return high;
+        }
+        if (high.isEmpty()) {
+            return low;
+        }
+        final char[] keys = Arrays.copyOf(low.keys, low.keys.length + high.keys.length);
+        System.arraycopy(high.keys, 0, keys, low.keys.length, high.keys.length);
+        final Container[] containers = Arrays.copyOf(low.containers, keys.length);
+        System.arraycopy(high.containers, 0, containers, low.containers.length, high.containers.length);
+        return new EmailSet(keys, containers);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof EmailSet)) {
+            return false;
+        }
+        EmailSet cast = (EmailSet) that;
+        return this.cardinality == cast.cardinality
+                && Arrays.equals(this.keys, cast.keys)
+                && Arrays.equals(this.containers, cast.containers);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(this.keys) + this.cardinality;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.toArray());
+    }
+
+    /**
+     *
+     * Mutable builder that collects ids and compresses them into an EmailSet.
+     * Adding ids in ascending order avoids a sort in build().
+     *
+     */
+    public static final class Builder {
+
+        private int[] ids = new int[16];
+        private int size = 0;
+        private boolean ascending = true;
+
+        /**
+         * @param id non-negative id to add
+         * @return this builder
+         */
+        public Builder add(int id) {
+            if (id < 0) {
+                throw new IllegalArgumentException("negative id " + id);
+            }
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            if (this.size > 0 && this.ids[this.size - 1] >= id) {
+                this.ascending = false;
+            }
+            this.ids[this.size++] = id;
+            return this;
+        }
+
+        /**
+         * @return the set of every id added so far
+         */
+        public EmailSet build() {
+            if (this.size == 0) {
+                return EMPTY;
+            }
+            if (!this.ascending) {
+                Arrays.sort(this.ids, 0, this.size);
+            }
+            char[] keys = new char[Math.min(this.size, (this.ids[this.size - 1] >>> 16) + 1)];
+            Container[] containers = new Container[keys.length];
+            char[] lows = new char[Container.CAPACITY];
+            int n = 0;
+            int start = 0;
+            while (start < this.size) {
+                int high = this.ids[start] >>> 16;
+                int length = 0;
+                int end = start;
+                while (end < this.size && this.ids[end] >>> 16 == high) {
+                    char low = (char) this.ids[end];
+                    if (length == 0 || lows[length - 1] != low) {
+                        lows[length++] = low;
+                    }
+                    end++;
+                }
+                keys[n] = (char) high;
+                containers[n++] = Container.fromChars(lows, length);
+                start = end;
+            }
+            return new EmailSet(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+        }
+    }
+}
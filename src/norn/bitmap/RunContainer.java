@@ -0,0 +1,190 @@
+package norn.bitmap;
+
+import java.util.function.IntConsumer;
+
+/**
+ *
+ * A container that stores its values as runs of consecutive values, which
+ * suits ids handed out to a block of addresses imported together.
+ *
+ */
+final class RunContainer extends Container {
+
+    private final char[] runs;
+    private final int cardinality;
+
+    // Abstraction function
+    //   AF(runs, cardinality) = union over i of [runs[2i], runs[2i] + runs[2i+1]]
+    //
+    // Rep invariant
+    //   - runs.length is even and > 0
+    //   - runs are ascending and separated by at least one missing value
+    //   - cardinality == sum over i of runs[2i+1] + 1
+    //
+    // Safety from rep exposure
+    //   - runs is private and final, and never returned
+    //
+    // Thread Safety Argument
+    //   - immutable
+
+    /**
+     * @param runs start and length - 1 of every run, owned by the new container
+     * @param cardinality number of values covered by the runs
+     */
+    private RunContainer(char[] runs, int cardinality) {
+        this.runs = runs;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * @param runs number of runs
+     * @return bytes needed to store that many runs
+     */
+    static int sizeInBytes(int runs) {
+        return 2 * runs * Character.BYTES;
+    }
+
+    /**
+     * @param words bitmap to read
+     * @param count number of runs of set bits in words
+     * @return run container with the set bits of words
+     */
+    static RunContainer fromWords(long[] words, int count) {
+        char[] runs = new char[2 * count];
+        int n = 0;
+        int cardinality = 0;
+        int value = 0;
+        while (n < count) {
+            int start = nextBit(words, value, true);
+            int end = nextBit(words, start, false);
+            runs[2 * n] = (char) start;
+            runs[2 * n + 1] = (char) (end - start - 1);
+            cardinality += end - start;
+            value = end;
+            n++;
+        }
+        return new RunContainer(runs, cardinality);
+    }
+
+    /**
+     * @param values strictly ascending values
+     * @param length number of values of the array to use
+     * @param count number of runs in values
+     * @return run container with those values
+     */
+    static RunContainer fromChars(char[] values, int length, int count) {
+        char[] runs = new char[2 * count];
+        int n = 0;
+        int start = 0;
+        for (int i = 1; i <= length; i++) {
+            if (i == length || values[i] != values[i - 1] + 1) {
+                runs[2 * n] = values[start];
+                runs[2 * n + 1] = (char) (i - 1 - start);
+                n++;
+                start = i;
+            }
+        }
+        return new RunContainer(runs, length);
+    }
+
+    // index of the first bit at or after from whose value is set (or clear), or CAPACITY if none
+    private static int nextBit(long[] words, int from, boolean set) {
+        if (from >= CAPACITY) {
+            return CAPACITY;
+        }
+        int i = from >>> 6;
+        long word = (set ? words[i] : ~words[i]) & (-1L << from);
+        while (word == 0) {
+            if (++i == WORDS) {
+                return CAPACITY;
+            }
+            word = set ? words[i] : ~words[i];
+        }
+        return i * Long.SIZE + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    int cardinality() {
+        return this.cardinality;
+    }
+
+    // index of the last run whose start is <= low, or -1
+    private int runIndex(int low) {
+        int lo = 0, hi = this.runs.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.runs[2 * mid] <= low) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    @Override
+    boolean contains(int low) {
+        int i = this.runIndex(low);
+        return i >= 0 && low <= this.runs[2 * i] + this.runs[2 * i + 1];
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+        final int base = high << 16;
+        for (int i = 0; i < this.runs.length; i += 2) {
+            int end = this.runs[i] + this.runs[i + 1];
+            for (int low = this.runs[i]; low <= end; low++) {
+                action.accept(base | low);
+            }
+        }
+    }
+
+    @Override
+    void orInto(long[] words) {
+        for (int i = 0; i < this.runs.length; i += 2) {
+            int start = this.runs[i];
+            int end = start + this.runs[i + 1] + 1;
+            int first = start >>> 6;
+            int last = (end - 1) >>> 6;
+            long firstMask = -1L << start;
+            int tail = end & (Long.SIZE - 1);
+            long lastMask = tail == 0 ? -1L : -1L >>> (Long.SIZE - tail);
+            if (first == last) {
+                words[first] |= firstMask & lastMask;
+            } else {
+                words[first] |= firstMask;
+                for (int w = first + 1; w < last; w++) {
+                    words[w] = -1L;
+                }
+                words[last] |= lastMask;
+            }
+        }
+    }
+
+    @Override
+    char[] toChars() {
+        char[] values = new char[this.cardinality];
+        int n = 0;
+        for (int i = 0; i < this.runs.length; i += 2) {
+            int end = this.runs[i] + this.runs[i + 1];
+            for (int low = this.runs[i]; low <= end; low++) {
+                values[n++] = (char) low;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    int first() {
+        return this.runs[0];
+    }
+
+    @Override
+    int ceiling(int low) {
+        int i = this.runIndex(low);
+        if (i >= 0 && low <= this.runs[2 * i] + this.runs[2 * i + 1]) {
+            return low;
+        }
+        return i + 1 < this.runs.length / 2 ? this.runs[2 * (i + 1)] : -1;
+    }
+}
@@ -0,0 +1,167 @@
+package norn.web;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the exchanges of an HTTP server, each on the thread the server hands it to, and caps
+ * how many evaluations run at once.
+ *
+ * In VIRTUAL mode every exchange gets its own virtual thread, so a request blocked on a lock,
+ * a file or the evaluation cap does not hold an OS thread. Virtual threads are looked up at
+ * runtime; on a JVM without them VIRTUAL falls back to POOL. In POOL mode exchanges run on a
+ * bounded pool of platform threads.
+ *
+ * The defaults come from system properties: -Dnorn.requestThreads=virtual|pool (virtual),
+ * -Dnorn.requestPoolSize for the pool (64), and -Dnorn.maxEvaluations for the cap
+ * (4 per processor).
+ */
+public class RequestExecution {
+
+    /**
+     * How exchanges are given threads
+     */
+    public enum Mode { VIRTUAL, POOL }
+
+    /**
+     * Work done for one exchange
+     */
+    @FunctionalInterface
+    public interface Work {
+        /**
+         * @throws IOException if the exchange fails
+         */
+        void run() throws IOException;
+    }
+
+    private static final long IDLE_SECONDS = 60;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Semaphore evaluations;
+    private final int maxEvaluations;
+
+    // Abstraction function
+    //   AF(mode, executor, evaluations, maxEvaluations) = exchanges run by executor on threads of
+    //     the given mode, with maxEvaluations - evaluations.availablePermits() evaluations running
+    //
+    // Rep invariant
+    //   - maxEvaluations > 0 and 0 <= evaluations.availablePermits() <= maxEvaluations
+    //   - mode is VIRTUAL iff executor starts a virtual thread per task
+    //
+    // Safety from rep exposure
+    //   - all fields are private and final, the executor is only returned as an Executor to hand
+    //     to a server
+    //
+    // Thread Safety Argument
+    //   - executor and evaluations are thread safe, the other fields are immutable
+
+    /**
+     * @return request execution configured by the system properties
+     */
+    public static RequestExecution fromSystemProperties() {
+        final Mode mode = "pool".equalsIgnoreCase(System.getProperty("norn.requestThreads")) ? Mode.POOL : Mode.VIRTUAL;
+        return new RequestExecution(mode, Integer.getInteger("norn.requestPoolSize", 64),
+                Integer.getInteger("norn.maxEvaluations", 4 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param mode how to give exchanges threads, VIRTUAL falls back to POOL if the JVM has no virtual threads
+     * @param poolSize number of threads in POOL mode, at least 1
+     * @param maxEvaluations number of evaluations allowed to run at once, at least 1
+     */
+    public RequestExecution(Mode mode, int poolSize, int maxEvaluations) {
+        if (poolSize < 1 || maxEvaluations < 1) {
+            throw new IllegalArgumentException("pool size and evaluation cap must be positive");
+        }
+        final ExecutorService virtual = mode == Mode.VIRTUAL ? virtualThreadPerTask() : null;
+        this.mode = virtual == null ? Mode.POOL : Mode.VIRTUAL;
+        this.executor = virtual != null ? virtual : boundedPool(poolSize);
+        this.maxEvaluations = maxEvaluations;
+        this.evaluations = new Semaphore(maxEvaluations, true);
+    }
+
+    /**
+     * @return the mode actually in use
+     */
+    public Mode mode() {
+        return this.mode;
+    }
+
+    /**
+     * @return executor to run the exchanges of a server
+     */
+    public ExecutorService executor() {
+        return this.executor;
+    }
+
+    /**
+     * @return number of evaluations allowed to run at once
+     */
+    public int maxEvaluations() {
+        return this.maxEvaluations;
+    }
+
+    /**
+     * @return number of evaluations running now
+     */
+    public int runningEvaluations() {
+        return this.maxEvaluations - this.evaluations.availablePermits();
+    }
+
+    /**
+     * Runs an evaluation once fewer than maxEvaluations are running
+     *
+     * @param work the evaluation
+     * @throws IOException if work does, or if the thread is interrupted while waiting for its turn
+     */
+    public void evaluate(Work work) throws IOException {
+        try {
+            this.evaluations.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to evaluate", e);
+        }
+        try {
+            work.run();
+        } finally {
+            this.evaluations.release();
+        }
+    }
+
+    /**
+     * Stops taking new exchanges, running ones finish
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this JVM has it, otherwise null
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // virtual threads exist but are a disabled preview feature
+            return null;
+        }
+    }
+
+    private static ExecutorService boundedPool(int size) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = task -> new Thread(task, "norn-request-" + count.incrementAndGet());
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,138 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Tests for BinarySnapshot
+ *
+ */
+public class BinarySnapshotTest {
+
+    /*
+     * Partitions
+     *
+     *   save:
+     *       with members, definitions only
+     *       definitions use every kind of expression, share subexpressions, define lists
+     *
+     *   load:
+     *       through Snapshot.load, directly
+     *       file intact, corrupt
+     *       into a ListNamespace, another map
+     *       lists redefined while saving, not
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // every kind of expression comes back as the same shared node, and the saved member sets are cached again
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists.bin");
+        ListNamespace saved = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit, z@mit; b = a * (y@mit, z@mit, w@mit) ! z@mit; c = (d = x@mit) | (e = y@mit)")
+                .members(saved);
+        saved.put("f", ExpressionFactory.naryIntersection(List.of(
+                ExpressionFactory.mailingList("a"), ExpressionFactory.mailingList("b"), ExpressionFactory.empty())));
+        saved.put("g", ExpressionFactory.sequence(ExpressionFactory.mailingList("a"), ExpressionFactory.mailingList("b")));
+        saved.members("a");
+        saved.members("b");
+        BinarySnapshot.save(saved, file, true);
+        assert BinarySnapshot.isBinary(file);
+
+        ListNamespace loaded = new ListNamespace();
+        Snapshot.load(file, loaded);
+        assertEquals(saved.keySet(), loaded.keySet());
+        for (String name : saved.keySet()) {
+            assertEquals(saved.get(name), loaded.get(name), name);
+        }
+        assertEquals(3, loaded.cachedSize("a"));
+        assertEquals(1, loaded.cachedSize("b"));
+        assertEquals(-1, loaded.cachedSize("c"), "defines lists, never cached");
+        assertEquals(Set.of("y@mit"), Expression.parse("b").evaluate(loaded));
+        assertEquals(Set.of(), Expression.parse("f").evaluate(loaded));
+    }
+
+    // without members nothing is cached, and any map can be loaded into
+    @Test
+    public void testDefinitionsOnly() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists.bin");
+        ListNamespace saved = new ListNamespace();
+        Expression.parse("a = x@mit; b = a, y@mit").members(saved);
+        saved.members("b");
+        BinarySnapshot.save(saved, file, false);
+
+        ListNamespace loaded = new ListNamespace();
+        BinarySnapshot.load(file, loaded);
+        assertEquals(-1, loaded.cachedSize("b"));
+        assertEquals(Set.of("x@mit", "y@mit"), Expression.parse("b").evaluate(loaded));
+
+        Map<String, Expression> plain = new HashMap<String, Expression>();
+        BinarySnapshot.load(file, plain);
+        assertEquals(Set.of("a", "b"), plain.keySet());
+    }
+
+    // a list redefined while saving is never saved with the members of its other definition
+    @Test
+    public void testRedefinedWhileSaving() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists.bin");
+        ListNamespace saved = new ListNamespace();
+        Expression.parse("a = x@mit").members(saved);
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; !done.get(); i++) {
+                Expression.parse(i % 2 == 0 ? "a = y@mit" : "a = x@mit").members(saved);
+                saved.members("a");
+            }
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < 50; round++) {
+                BinarySnapshot.save(saved, file, true);
+                ListNamespace loaded = new ListNamespace();
+                BinarySnapshot.load(file, loaded);
+                EmailSet cached = loaded.cached("a");
+                if (cached != null) {
+                    assertEquals(loaded.get("a").toString(), EmailDictionary.address(cached.toArray()[0]));
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    // a damaged snapshot is refused and nothing is loaded
+    @Test
+    public void testCorrupt() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists.bin");
+        ListNamespace saved = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit").members(saved);
+        BinarySnapshot.save(saved, file, true);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+
+        ListNamespace loaded = new ListNamespace();
+        assertThrows(IOException.class, () -> BinarySnapshot.load(file, loaded));
+        assertEquals(0, loaded.size());
+    }
+}
@@ -0,0 +1,197 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for DefinitionLog
+ *
+ */
+public class DefinitionLogTest {
+
+    /*
+     * Partitions
+     *
+     *   open:
+     *       directory empty, with segments, with a snapshot and segments
+     *       last segment intact, ends in a torn record
+     *       records define pipes and sequences, one record does not parse
+     *
+     *   sync:
+     *       nothing new, changes from one thread, from many threads at once
+     *
+     *   compact:
+     *       called directly, started by the segment size
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // synced definitions, removals and nested definitions come back after a restart
+    @Test
+    public void testRecover() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        ListNamespace before = new ListNamespace();
+        DefinitionLog log = DefinitionLog.open(directory, before);
+        log.sync();
+        Expression.parse("a = x@mit, y@mit; b = (c = a * y@mit) ! z@mit; d = a | e = w@mit").members(before);
+        before.remove("d");
+        log.sync();
+        log.close();
+
+        ListNamespace after = new ListNamespace();
+        DefinitionLog.open(directory, after).close();
+        assertEquals(before.keySet(), after.keySet());
+        for (String name : before.keySet()) {
+            assertEquals(before.get(name), after.get(name), name);
+        }
+        assertEquals(Set.of("y@mit"), Expression.parse("c").evaluate(after));
+    }
+
+    // pipes and sequences come back as they were, and a record that does not parse is skipped, not fatal
+    @Test
+    public void testRecoverPipes() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        ListNamespace before = new ListNamespace();
+        DefinitionLog log = DefinitionLog.open(directory, before);
+        Expression.parse("p = (a = x@mit | b = y@mit); q = (c = z@mit; c, w@mit)").members(before);
+        log.close();
+        Files.write(segments(directory).get(0), record(1, "r = (x@mit | y@mit"), StandardOpenOption.APPEND);
+        Files.write(segments(directory).get(0), record(1, "s = v@mit"), StandardOpenOption.APPEND);
+
+        ListNamespace after = new ListNamespace();
+        DefinitionLog.open(directory, after).close();
+        for (String name : before.keySet()) {
+            assertEquals(before.get(name), after.get(name), name);
+        }
+        assert !after.containsKey("r");
+        assertEquals(Set.of("v@mit"), Expression.parse("s").evaluate(after));
+        assertEquals(Set.of("z@mit", "w@mit"), Expression.parse("q").evaluate(after));
+    }
+
+    // definitions from concurrent threads are all durable once each thread's sync returns
+    @Test
+    public void testConcurrentSync() throws IOException, InterruptedException, ExecutionException {
+        Path directory = Files.createTempDirectory("wal");
+        ListNamespace lists = new ListNamespace();
+        DefinitionLog log = DefinitionLog.open(directory, lists);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                done.add(threads.submit(() -> {
+                    for (int i = 0; i < 25; i++) {
+                        Expression.parse("l" + thread + "_" + i + " = u" + i + "@mit").members(lists);
+                        log.sync();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+        // what is on disk now, without closing the log
+        ListNamespace recovered = new ListNamespace();
+        DefinitionLog.open(directory, recovered).close();
+        assertEquals(200, recovered.size());
+        log.close();
+    }
+
+    // a record torn by a crash is dropped, the ones before it are kept
+    @Test
+    public void testTornRecord() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        ListNamespace lists = new ListNamespace();
+        DefinitionLog log = DefinitionLog.open(directory, lists);
+        Expression.parse("a = x@mit").members(lists);
+        log.close();
+        Path segment = segments(directory).get(0);
+        Files.write(segment, new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+        ListNamespace recovered = new ListNamespace();
+        log = DefinitionLog.open(directory, recovered);
+        Expression.parse("b = y@mit").members(recovered);
+        log.close();
+        ListNamespace again = new ListNamespace();
+        DefinitionLog.open(directory, again).close();
+        assertEquals(Set.of("a", "b"), again.keySet());
+    }
+
+    // compaction leaves a snapshot and the current segment, and loses nothing
+    @Test
+    public void testCompact() throws IOException {
+        Path directory = Files.createTempDirectory("wal");
+        ListNamespace lists = new ListNamespace();
+        DefinitionLog log = DefinitionLog.open(directory, lists);
+        for (int i = 0; i < 50; i++) {
+            Expression.parse("l" + i + " = u" + i + "@mit, l" + (i + 1)).members(lists);
+            log.sync();
+        }
+        log.compact();
+        Expression.parse("l0 = z@mit").members(lists);
+        log.close();
+        assert Files.exists(directory.resolve("snapshot.bin"));
+        assertEquals(1, segments(directory).size());
+
+        ListNamespace recovered = new ListNamespace();
+        DefinitionLog.open(directory, recovered).close();
+        assertEquals(lists.keySet(), recovered.keySet());
+        assertEquals(Set.of("z@mit"), Expression.parse("l0").evaluate(recovered));
+
+        // and starts on its own once a segment is large enough
+        Path other = Files.createTempDirectory("wal");
+        ListNamespace small = new ListNamespace();
+        DefinitionLog background = DefinitionLog.open(other, small, 64);
+        for (int i = 0; i < 20; i++) {
+            Expression.parse("m" + i + " = u" + i + "@mit").members(small);
+            background.sync();
+        }
+        background.close();
+        assert Files.exists(other.resolve("snapshot.bin"));
+        ListNamespace recoveredSmall = new ListNamespace();
+        DefinitionLog.open(other, recoveredSmall).close();
+        assertEquals(small.keySet(), recoveredSmall.keySet());
+    }
+
+    // a record as DefinitionLog writes it
+    private static byte[] record(int kind, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        CRC32 checksum = new CRC32();
+        checksum.update(kind);
+        checksum.update(payload);
+        return ByteBuffer.allocate(2 * Integer.BYTES + 1 + payload.length).putInt(1 + payload.length)
+                .putInt((int) checksum.getValue()).put((byte) kind).put(payload).array();
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+}
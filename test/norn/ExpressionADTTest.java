@@ -1,13 +1,21 @@
 package norn;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import edu.mit.eecs.parserlib.UnableToParseException;
+import norn.bitmap.EmailCursors;
+import norn.bitmap.EmailSet;
 
 /**
  * 
@@ -76,6 +84,10 @@ public class ExpressionADTTest {
 //        correct evaluation, incorrect evaluation (unknown list name)
 //
 //
+//    trace:
+//        same result and definitions as members, steps entered and exited in order, invalid pipe
+//
+//
 //    Whitespace:
 //        whitespace occurrence 0, 1, >1 before and after ","
 //        whitespace occurrence 0, 1, >1 before and after "!"
@@ -102,6 +114,11 @@ public class ExpressionADTTest {
 //        "!" before ";" and vice versa with parentheses to set precedence
 
 
+    // check the rep invariants of the set operators on every evaluation in these tests
+    @BeforeAll
+    public static void enableRepInvariants() {
+        RepInvariants.setEnabled(true);
+    }
     
     // tests union occurs once, 1x1
     @Test
@@ -1245,6 +1262,147 @@ public class ExpressionADTTest {
         return testSameSetEmails(Set.of(e1), e2Emails);
     }
     
+    // cursor evaluation gives the same emails and definitions as set evaluation
+    @Test
+    public void testCursorSameAsMembers() {
+        String[] inputs = {
+            "a = x@mit, y@mit; b = a * (y@mit, z@mit); (a ! b), b",
+            "(room=alice@mit.edu)*room",
+            "room1=alice@mit.edu; room1=eve@mit.edu, ryan@gmail, room1, teehee@gmail; room1",
+            "(x = a@mit.edu | y = b@mit.edu) , x",
+        };
+        for (String input : inputs) {
+            Map<String, Expression> setMap = new ListNamespace();
+            Map<String, Expression> cursorMap = new ListNamespace();
+            Expression expression = Expression.parse(input);
+            EmailSet members = expression.members(setMap);
+            assertEquals(members, EmailCursors.materialize(expression.cursor(cursorMap)));
+            assertEquals(setMap, cursorMap);
+        }
+    }
+    
+    // traced evaluation gives the same emails and definitions as set evaluation, entering
+    // and leaving every step in order
+    @Test
+    public void testTraceSameAsMembers() {
+        String[] inputs = {
+            "a = x@mit, y@mit; b = a * (y@mit, z@mit); (a ! b), b",
+            "(room=alice@mit.edu)*room",
+            "room1=alice@mit.edu; room1=eve@mit.edu, ryan@gmail, room1, teehee@gmail; room1",
+            "(x = a@mit.edu | y = b@mit.edu) , x",
+            "a = b = c, d@mit; a, b, undefined",
+        };
+        for (String input : inputs) {
+            Map<String, Expression> setMap = new ListNamespace();
+            Map<String, Expression> traceMap = new ListNamespace();
+            Expression expression = Expression.parse(input);
+            List<String> events = new ArrayList<String>();
+            EmailSet traced = expression.trace(traceMap, new Tracer() {
+                @Override public void enter(Expression expr, Map<String, Expression> map) {
+                    events.add("enter " + expr);
+                }
+                @Override public void exit(Expression expr, EmailSet result) {
+                    events.add("exit " + expr);
+                }
+            });
+            assertEquals(expression.members(setMap), traced);
+            assertEquals(setMap, traceMap);
+            assertEquals("enter " + expression, events.get(0));
+            assertEquals("exit " + expression, events.get(events.size() - 1));
+            int open = 0;
+            for (String event : events) {
+                open += event.startsWith("enter ") ? 1 : -1;
+                assert open >= 0;
+            }
+            assertEquals(0, open);
+        }
+        assertThrows(RuntimeException.class, () -> Expression.parse("a = b@mit | c = a").trace(new ListNamespace(), new Tracer() {
+            @Override public void enter(Expression expr, Map<String, Expression> map) { }
+            @Override public void exit(Expression expr, EmailSet result) { }
+        }));
+    }
+    
+    // chains of unions and intersections parse to n-ary nodes that match the binary chains
+    @Test
+    public void testNaryChainsSameAsBinary() {
+        Expression a = new MailingList("a");
+        Expression b = new Email("b@mit");
+        Expression c = new MailingList("c");
+        Expression union = Expression.parse("a, b@mit, c");
+        Expression binaryUnion = new Union(new Union(a, b), c);
+        assert union instanceof NaryUnion;
+        assertEquals(binaryUnion, union);
+        assertEquals(union, binaryUnion);
+        assertEquals(binaryUnion.hashCode(), union.hashCode());
+        assertEquals(binaryUnion.toString(), union.toString());
+        
+        Expression intersection = Expression.parse("a * b@mit * c");
+        Expression binaryIntersection = new Intersection(new Intersection(a, b), c);
+        assert intersection instanceof NaryIntersection;
+        assertEquals(binaryIntersection, intersection);
+        assertEquals(intersection, binaryIntersection);
+        assertEquals(binaryIntersection.toString(), intersection.toString());
+        
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("a = b@mit, x@mit, y@mit; c = y@mit, b@mit, z@mit").evaluate(map);
+        assertEquals(Set.of("b@mit", "x@mit", "y@mit", "z@mit"), union.evaluate(map));
+        assertEquals(Set.of("b@mit"), intersection.evaluate(map));
+        assertEquals(union.members(map), EmailCursors.materialize(union.cursor(map)));
+        assertEquals(intersection.members(map), EmailCursors.materialize(intersection.cursor(map)));
+    }
+    
+    // contains agrees with members and leaves the same definitions behind, for every kind of expression
+    @Test
+    public void testContainsSameAsMembers() {
+        List<String> expressions = List.of("x@mit", "(d = ), a", "a", "a, b", "a * b", "a ! b", "b ! a", "a, b, c",
+                "a * b * c", "(d = x@mit, w@mit) * a", "a; (d = b) ! y@mit", "(d = x@mit) | (e = y@mit)",
+                "(a = a, w@mit), c");
+        for (String text : expressions) {
+            for (String email : List.of("x@mit", "y@mit", "z@mit", "w@mit", "nobody@mit")) {
+                Map<String, Expression> probed = new HashMap<String, Expression>();
+                Map<String, Expression> evaluated = new HashMap<String, Expression>();
+                for (Map<String, Expression> map : List.of(probed, evaluated)) {
+                    Expression.parse("a = x@mit, y@mit; b = y@mit, z@mit; c = z@mit").evaluate(map);
+                }
+                boolean member = Expression.parse(text).contains(email, probed);
+                assertEquals(Expression.parse(text).evaluate(evaluated).contains(email), member, text + " " + email);
+                assertEquals(evaluated, probed, text + " " + email);
+            }
+        }
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit; b = a ! y@mit").evaluate(lists);
+        lists.members("b");
+        assert Expression.parse("b").contains("x@mit", lists);
+        assert !Expression.parse("b").contains("y@mit", lists);
+        assert !Expression.parse("b").contains("nobody@mit", lists);
+    }
+    
+    // operands that cannot change the answer are not looked at, unless they define lists, even through a list they read
+    @Test
+    public void testContainsShortCircuits() {
+        Map<String, Expression> map = new HashMap<String, Expression>();
+        assert Expression.parse("x@mit, a").contains("x@mit", map);
+        assert !map.containsKey("a");
+        assert !Expression.parse("b * a").contains("x@mit", map);
+        assert !map.containsKey("a");
+        assert !Expression.parse("c ! a").contains("x@mit", map);
+        assert !map.containsKey("a");
+        assert Expression.parse("x@mit, y@mit, a").contains("x@mit", map);
+        assert !map.containsKey("a");
+        
+        assert !Expression.parse("y@mit, a").contains("x@mit", map);
+        assert map.containsKey("a");
+        assert Expression.parse("x@mit, (d = y@mit)").contains("x@mit", map);
+        assertEquals(Set.of("y@mit"), Expression.parse("d").evaluate(map));
+        
+        // nor when a list they read defines a list
+        for (Map<String, Expression> lists : List.of(new HashMap<String, Expression>(), new ListNamespace())) {
+            Expression.parse("b = (c = x@y); c = z@w").evaluate(lists);
+            assert Expression.parse("x@y, b").contains("x@y", lists);
+            assertEquals(Set.of("x@y"), Expression.parse("c").evaluate(lists));
+        }
+    }
+    
     @Test
     public void testAssertionsEnabled() {
         assertThrows(AssertionError.class, () -> { assert false; },
@@ -0,0 +1,84 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for ExpressionCompiler
+ *
+ */
+public class ExpressionCompilerTest {
+
+    /*
+     * Partitions
+     *
+     *   compile:
+     *       node kind: email, empty, list, union, intersection, difference, n-ary, sequence, definition, pipe
+     *       map is a ListNamespace, another map
+     *       expression compiled before, not compiled before
+     *       cache full: expression compiled often, once
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // compiled forms give the same emails and leave the same lists as the interpreter
+    @Test
+    public void testSameAsInterpreter() {
+        String[] inputs = {
+            "x@mit",
+            "a = x@mit, y@mit; b = a * (y@mit, z@mit); (a ! b), b",
+            "a = x@mit; b = y@mit; c = z@mit; a, b, c, w@mit",
+            "a = x@mit, y@mit; b = y@mit; a * b * (y@mit, v@mit)",
+            "(x = a@mit.edu | y = b@mit.edu) , x",
+            "undefined ! x@mit",
+        };
+        for (String input : inputs) {
+            Expression expression = Expression.parse(input);
+            for (boolean namespace : new boolean[] {true, false}) {
+                Map<String, Expression> interpreted = namespace ? new ListNamespace() : new HashMap<String, Expression>();
+                Map<String, Expression> compiled = namespace ? new ListNamespace() : new HashMap<String, Expression>();
+                assertEquals(expression.members(interpreted), ExpressionCompiler.compile(expression).members(compiled), input);
+                assertEquals(interpreted, compiled, input);
+            }
+        }
+    }
+
+    // the same expression compiles once
+    @Test
+    public void testCached() {
+        Expression expression = Expression.parse("a, b ! c");
+        assertSame(ExpressionCompiler.compile(expression), ExpressionCompiler.compile(Expression.parse("a, b ! c")));
+        assert ExpressionCompiler.cacheSize() > 0;
+    }
+
+    // the cache stays bounded, and keeps an expression that is compiled again and again
+    @Test
+    public void testBoundedKeepsHot() {
+        Expression hot = Expression.parse("hot, (x@mit * y@mit)");
+        ExpressionCompiler.Compiled compiled = ExpressionCompiler.compile(hot);
+        for (int i = 0; i < 5000; i++) {
+            ExpressionCompiler.compile(Expression.parse("cold" + i + " ! x@mit"));
+            assertSame(compiled, ExpressionCompiler.compile(hot));
+        }
+        assert ExpressionCompiler.cacheSize() <= Integer.getInteger("norn.compilerCacheSize", 1024);
+    }
+
+    // definitions are still checked for cycles
+    @Test
+    public void testDefinitionChecked() {
+        Map<String, Expression> map = new ListNamespace();
+        ExpressionCompiler.compile(Expression.parse("a = b; b = c")).members(map);
+        assertThrows(RuntimeException.class, () -> ExpressionCompiler.compile(Expression.parse("c = a")).members(map));
+    }
+}
@@ -0,0 +1,140 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+import norn.ExpressionParser.Implementation;
+
+/**
+ *
+ * Tests for ExpressionDescentParser, against the parserlib parser. Expressions are
+ * hash-consed, so two parses with the same structure give the very same instance.
+ *
+ */
+public class ExpressionDescentParserTest {
+
+    /*
+     * Partitions
+     *
+     *   parse:
+     *       valid, invalid input
+     *       operators: none, each of , ! * ; | =, nested in parentheses, chains of >2
+     *       definitions: empty, one expression, nested definitions, several unions after '='
+     *       lexemes: email, list name, characters only allowed in one of them, '-', '/' and '+'
+     *       whitespace: none, spaces, tabs and newlines, leading, trailing
+     *
+     *   implementation:
+     *       chosen by setImplementation, by argument
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // parses with both parsers and checks they agree
+    private static void assertSameParse(String input) {
+        Expression expected;
+        try {
+            expected = ExpressionParser.parse(input, Implementation.PARSERLIB);
+        } catch (UnableToParseException e) {
+            assertThrows(UnableToParseException.class, () -> ExpressionParser.parse(input, Implementation.DESCENT),
+                    "should not parse: " + input);
+            return;
+        }
+        try {
+            assertSame(expected, ExpressionParser.parse(input, Implementation.DESCENT), input);
+        } catch (UnableToParseException e) {
+            throw new AssertionError("should parse: " + input, e);
+        }
+    }
+
+    // the corners of the grammar
+    @Test
+    public void testGrammarCorners() {
+        String[] inputs = {
+            "a", "a@b", "a-b@mit", "a/b@mit", "a+b@mit", "a@b-c", "a@b/c", "a@b+c", "a-b", "a/b", "a+b", "a.b",
+            "a@@b", "@b", "a@", "_@_", "", " ", "=", "()", "(a", "a)", "a,,b", "a b", "a, ", "a ;", ";",
+            "a = b = c", "a = b c", "a = b c d", "a = b, c = d", "a =", "a = b = ", "a = (b = c)", "a = = b",
+            "a = b == c", "a = bc = d", "a = x@b.c=d", "a = x@bc=d", "a =  b  c", "a = b\tc", "a =\n b \n c",
+            "a = ( b ) c", "a = b c ;d", "a = b c | d", "a = b c ! d", "a = b ! c d", "a = b * c * d e",
+            "a = b c = d e", "(a = b c)", "a = (b c)", "a = b; c d", "a = b c; d = e f", "x=a,b=c",
+            "a=b c=d e=f", "a = b , c d , e", "a = b | c d", "(a = b c) d", "a = (b = c d)", "a=;b=",
+            "a = b = c d = e", "a = x@y.z. w", "a = x@y.z.w", "a = 1 2", "  a = b c  ",
+            "a,b,c,d", "a*b*c", "(a,b),c", "a,(b,c)", "a ! b ! c", "a * b ! c", "a , b * c", "a | b ; c",
+            "list = (a@email,c@email); (list2=f@email|list=(c@email; list!c@email)); list2,list",
+            "room1=alice@mit.edu; room1=eve@mit.edu, ryan@gmail, room1, teehee@gmail; room1",
+            "a=b=c | (b=d@mit|c=x@mit)", "((brett@gmail.com, ryan+@gmail)!brett@gmail.com)*ryan+@gmail",
+        };
+        for (String input : inputs) {
+            assertSameParse(input);
+        }
+    }
+
+    // random soups of tokens, mostly invalid
+    @Test
+    public void testRandomTokens() {
+        String[] tokens = {
+            "a", "bc", "x@y", "x@y.z", "a-b", "a/b", "+", "@", "=", " ", ",", "!", "*", ";", "|", "(", ")", "\t", "-",
+        };
+        Random random = new Random(6090);
+        for (int round = 0; round < 3000; round++) {
+            StringBuilder input = new StringBuilder();
+            int length = 1 + random.nextInt(10);
+            for (int i = 0; i < length; i++) {
+                input.append(tokens[random.nextInt(tokens.length)]);
+            }
+            assertSameParse(input.toString());
+        }
+    }
+
+    // random expressions from the grammar, with juxtaposed unions in definitions
+    @Test
+    public void testRandomExpressions() {
+        Random random = new Random(6091);
+        for (int round = 0; round < 1000; round++) {
+            assertSameParse(randomExpression(random, 3));
+        }
+    }
+
+    private static String randomExpression(Random random, int depth) {
+        String[] leaves = {"a", "b", "list1", "x@mit", "y+z@mit.edu", "c-d"};
+        String[] spaces = {"", " ", "  ", "\n"};
+        String space = spaces[random.nextInt(spaces.length)];
+        if (depth == 0 || random.nextInt(4) == 0) {
+            return leaves[random.nextInt(leaves.length)];
+        }
+        switch (random.nextInt(9)) {
+        case 0:
+            return "(" + randomExpression(random, depth - 1) + ")";
+        case 1:
+            return "b" + space + "=" + space + randomExpression(random, depth - 1);
+        case 2:
+            return "c =" + space + randomExpression(random, depth - 1) + " " + randomExpression(random, depth - 1);
+        default:
+            String operator = ",!*;|".substring(random.nextInt(5)).substring(0, 1);
+            return randomExpression(random, depth - 1) + space + operator + space + randomExpression(random, depth - 1);
+        }
+    }
+
+    // the runtime switch picks the parser used by Expression.parse
+    @Test
+    public void testSetImplementation() {
+        Implementation before = ExpressionParser.getImplementation();
+        try {
+            ExpressionParser.setImplementation(Implementation.DESCENT);
+            assertEquals(Implementation.DESCENT, ExpressionParser.getImplementation());
+            assertSame(Expression.parse("a = b c"), ExpressionFactory.listDefinition("b ", ExpressionFactory.mailingList("c")));
+            assertThrows(IllegalArgumentException.class, () -> Expression.parse("a b"));
+        } finally {
+            ExpressionParser.setImplementation(before);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for ExpressionFactory
+ *
+ */
+public class ExpressionFactoryTest {
+
+    /*
+     * Partitions
+     *
+     *   factory methods:
+     *       node kind: email, mailing list, union, intersection, difference, n-ary, definition, sequence, pipe
+     *       same shape asked for twice, different names, same children in a different order
+     *       binary chain of an n-ary node
+     *
+     *   cycle:
+     *       nothing substituted, substituted deep in the tree
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // every kind of node is shared when parsed twice
+    @Test
+    public void testParsedTwiceShared() {
+        String[] inputs = {
+            "x@mit", "a", "a, b", "a * b", "a ! b", "a, b, c", "a * b * c", "a = b", "a = b; c", "a = x@mit | b = y@mit",
+        };
+        for (String input : inputs) {
+            assertSame(Expression.parse(input), Expression.parse(input), input);
+        }
+        Expression left = Expression.parse("(a = x@mit, y@mit); a ! z@mit");
+        Expression right = Expression.parse("b = (x@mit, y@mit)");
+        assertSame(((ListDefinition) ((Sequence) left).getLeft()).getExpr(), ((ListDefinition) right).getExpr());
+    }
+
+    // different names and orders make different nodes, which may still be equal
+    @Test
+    public void testDistinctShapes() {
+        assertNotSame(ExpressionFactory.mailingList("a"), ExpressionFactory.mailingList("b"));
+        Expression a = ExpressionFactory.mailingList("a");
+        Expression b = ExpressionFactory.mailingList("b");
+        Expression ab = ExpressionFactory.union(a, b);
+        Expression ba = ExpressionFactory.union(b, a);
+        assertNotSame(ab, ba);
+        assertEquals(ab, ba);
+        assertNotSame(ExpressionFactory.union(a, b), ExpressionFactory.intersection(a, b));
+        assertSame(ExpressionFactory.naryUnion(List.of(a, b, a)), ExpressionFactory.naryUnion(List.of(a, b, a)));
+    }
+
+    // unchanged subtrees are returned as they are
+    @Test
+    public void testCycleKeepsUnchanged() {
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("a = x@mit").evaluate(map);
+        Expression expression = Expression.parse("((b, c) * d) ! (e = f; g | h)");
+        assertSame(expression, expression.cycle("a", map));
+
+        Expression deep = Expression.parse("((b, c) * d) ! (a, e)");
+        Expression cycled = deep.cycle("a", map);
+        assertEquals(Expression.parse("((b, c) * d) ! (x@mit, e)"), cycled);
+        assertSame(((Difference) deep).getLeft(), ((Difference) cycled).getLeft());
+    }
+
+    // the binary chains of n-ary nodes are shared like any other node
+    @Test
+    public void testToBinaryShared() {
+        NaryUnion union = (NaryUnion) Expression.parse("a, b, c");
+        assertSame(union.toBinary(), union.toBinary());
+        assertSame(ExpressionFactory.union(ExpressionFactory.union(ExpressionFactory.mailingList("a"),
+                ExpressionFactory.mailingList("b")), ExpressionFactory.mailingList("c")), union.toBinary());
+        NaryIntersection intersection = (NaryIntersection) Expression.parse("a * b * c");
+        assertSame(intersection.toBinary(), intersection.toBinary());
+    }
+}
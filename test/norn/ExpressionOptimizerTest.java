@@ -0,0 +1,157 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import norn.ExpressionOptimizer.Result;
+import norn.ExpressionOptimizer.Rule;
+
+/**
+ *
+ * Tests for ExpressionOptimizer
+ *
+ */
+public class ExpressionOptimizerTest {
+
+    /*
+     * Partitions
+     *
+     *   optimize:
+     *       rule fired: idempotence, absorption, empty propagation, self difference, difference pushdown
+     *       no rule applies
+     *       expression pure, has definitions, reads an undefined list, reads a list whose definition defines lists
+     *       pushdown makes the tree smaller, does not
+     *
+     *   totals:
+     *       counts grow by the rules fired
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    private static Map<String, Expression> lists() {
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit; b = y@mit, z@mit; c = z@mit, w@mit").evaluate(map);
+        return map;
+    }
+
+    private static Result optimize(String input, Map<String, Expression> map) {
+        return ExpressionOptimizer.optimize(Expression.parse(input), map);
+    }
+
+    // (a, a) * a, nested unions of the same list
+    @Test
+    public void testIdempotence() {
+        Map<String, Expression> map = lists();
+        Result result = optimize("(a, a) * a", map);
+        assertEquals(new MailingList("a"), result.expression());
+        assertEquals(Map.of(Rule.IDEMPOTENCE, 2), result.fired());
+
+        assertEquals(Expression.parse("a, b"), optimize("a, (b, (a, b))", map).expression());
+    }
+
+    // x, (x * y) and x * (x, y)
+    @Test
+    public void testAbsorption() {
+        Map<String, Expression> map = lists();
+        assertEquals(new MailingList("a"), optimize("a, (a * b)", map).expression());
+        assertEquals(new MailingList("a"), optimize("a * (b, a)", map).expression());
+        assertEquals(Map.of(Rule.ABSORPTION, 1), optimize("a, (a ! b)", map).fired());
+    }
+
+    // empty on either side of every operator, empty coming from a simplified operand
+    @Test
+    public void testEmptyPropagation() {
+        Map<String, Expression> map = lists();
+        Expression a = new MailingList("a");
+        Expression empty = EmptyEmailSet.getEmpty();
+        assertEquals(empty, ExpressionOptimizer.optimize(new Intersection(a, empty), map).expression());
+        assertEquals(a, ExpressionOptimizer.optimize(new Union(empty, a), map).expression());
+        assertEquals(a, ExpressionOptimizer.optimize(new Difference(a, empty), map).expression());
+        assertEquals(empty, ExpressionOptimizer.optimize(new Difference(empty, a), map).expression());
+
+        Result result = optimize("a, (b ! b)", map);
+        assertEquals(a, result.expression());
+        assertEquals(Map.of(Rule.SELF_DIFFERENCE, 1, Rule.EMPTY_PROPAGATION, 1), result.fired());
+    }
+
+    // x ! x and variants
+    @Test
+    public void testSelfDifference() {
+        Map<String, Expression> map = lists();
+        Result result = optimize("x@mit ! x@mit", map);
+        assertEquals(EmptyEmailSet.getEmpty(), result.expression());
+        assertEquals(Map.of(Rule.SELF_DIFFERENCE, 1), result.fired());
+        assertEquals(EmptyEmailSet.getEmpty(), optimize("a ! (b, a)", map).expression());
+        assertEquals(EmptyEmailSet.getEmpty(), optimize("(a * b) ! b", map).expression());
+    }
+
+    // pushdown kept only when it shrinks the tree
+    @Test
+    public void testDifferencePushdown() {
+        Map<String, Expression> map = lists();
+        Result smaller = optimize("(a, b) ! a", map);
+        assertEquals(Expression.parse("b ! a"), smaller.expression());
+        assert smaller.fired().containsKey(Rule.DIFFERENCE_PUSHDOWN);
+
+        Result larger = optimize("(a, b) ! c", map);
+        assertEquals(Expression.parse("(a, b) ! c"), larger.expression());
+        assertEquals(Map.of(), larger.fired());
+    }
+
+    // side effects are kept: undefined lists, definitions, lists with nested definitions
+    @Test
+    public void testSideEffectsKept() {
+        Map<String, Expression> map = lists();
+        Expression undefined = Expression.parse("u ! u");
+        assertSame(undefined, ExpressionOptimizer.optimize(undefined, map).expression());
+
+        Expression definition = Expression.parse("d = a ! a");
+        assertSame(definition, ExpressionOptimizer.optimize(definition, map).expression());
+
+        Expression.parse("e = f = a").evaluate(map);
+        Expression impure = Expression.parse("e ! e");
+        assertSame(impure, ExpressionOptimizer.optimize(impure, map).expression());
+
+        assertEquals(Expression.parse("a = b; b"), optimize("a = b; (b, b)", map).expression());
+        Expression redefined = Expression.parse("a = f = b; a ! a");
+        assertSame(redefined, ExpressionOptimizer.optimize(redefined, map).expression());
+    }
+
+    // optimized random expressions evaluate to the same emails
+    @Test
+    public void testRandomSameValue() {
+        Random random = new Random(6060);
+        String[] leaves = {"a", "b", "c", "x@mit", "(b ! b)"};
+        String[] operators = {", ", " * ", " ! "};
+        for (int round = 0; round < 200; round++) {
+            String input = leaves[random.nextInt(leaves.length)];
+            for (int i = 0; i < 5; i++) {
+                String leaf = leaves[random.nextInt(leaves.length)];
+                String operator = operators[random.nextInt(operators.length)];
+                input = random.nextBoolean() ? "(" + input + operator + leaf + ")" : "(" + leaf + operator + input + ")";
+            }
+            Map<String, Expression> map = lists();
+            Expression expression = Expression.parse(input);
+            assertEquals(expression.evaluate(map), ExpressionOptimizer.optimize(expression, map).expression().evaluate(map),
+                    input);
+        }
+    }
+
+    // cumulative counts
+    @Test
+    public void testTotals() {
+        long before = ExpressionOptimizer.totals().get(Rule.SELF_DIFFERENCE);
+        optimize("a ! a", lists());
+        assert ExpressionOptimizer.totals().get(Rule.SELF_DIFFERENCE) >= before + 1;
+    }
+}
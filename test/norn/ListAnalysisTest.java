@@ -0,0 +1,64 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for ListAnalysis
+ *
+ */
+public class ListAnalysisTest {
+
+    /*
+     * Partitions
+     *
+     *   defined, referenced:
+     *       expression has no lists, only reads, only defines, nested definitions
+     *
+     *   reachable:
+     *       read lists undefined, defined, defined in terms of other lists, defining other lists
+     *
+     *   checkAcyclic:
+     *       no cycle, list reads itself, cycle through 1 list, cycle through >1 lists
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // nested definitions and reads
+    @Test
+    public void testDefinedReferenced() {
+        ListAnalysis analysis = ListAnalysis.of(Expression.parse("(a = b, x@mit); c * (d = e)"));
+        assertEquals(Set.of("a", "d"), analysis.defined());
+        assertEquals(Set.of("b", "c", "e"), analysis.referenced());
+        assertEquals(Set.of(), ListAnalysis.of(Expression.parse("x@mit, y@mit")).defined());
+    }
+
+    // reachable follows definitions in the map
+    @Test
+    public void testReachable() {
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("c = d, (e = f); g = h").evaluate(map);
+        assertEquals(Set.of("a", "b", "c", "d", "e", "f"), ListAnalysis.of(Expression.parse("a = b, c")).reachable(map));
+    }
+
+    // reading the list itself is not a cycle, reading a list that reads it is
+    @Test
+    public void testCheckAcyclic() {
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("a = x@mit; b = a; c = b").evaluate(map);
+        ListAnalysis.of(Expression.parse("a, y@mit")).checkAcyclic("a", map);
+        ListAnalysis.of(Expression.parse("c")).checkAcyclic("d", map);
+        assertThrows(RuntimeException.class, () -> ListAnalysis.of(Expression.parse("b")).checkAcyclic("a", map));
+        assertThrows(RuntimeException.class, () -> ListAnalysis.of(Expression.parse("x@mit, c")).checkAcyclic("a", map));
+    }
+}
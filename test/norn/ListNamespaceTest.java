@@ -0,0 +1,90 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import norn.bitmap.EmailSet;
+
+/**
+ *
+ * Tests for ListNamespace
+ *
+ */
+public class ListNamespaceTest {
+
+    /*
+     * Partitions
+     *
+     *   members:
+     *       list undefined, defined and unchanged, redefined
+     *       list depends on a redefined list directly, transitively, not at all
+     *       definition has nested list definitions (side effects), has none
+     *
+     *   version:
+     *       list never defined, defined, dependency redefined
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // undefined list becomes defined as empty
+    @Test
+    public void testUndefined() {
+        ListNamespace lists = new ListNamespace();
+        assertEquals(0, lists.version("a"));
+        assertEquals(EmailSet.empty(), lists.members("a"));
+        assert lists.containsKey("a");
+        assertNotEquals(0L, lists.version("a"));
+    }
+
+    // unchanged list is read from the cache
+    @Test
+    public void testRepeatedReadIsCached() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit").evaluate(lists);
+        EmailSet first = lists.members("a");
+        assertSame(first, lists.members("a"));
+        assertEquals(Set.of("x@mit", "y@mit"), EmailDictionary.decode(first));
+    }
+
+    // redefining a list changes it and everything depending on it, but nothing else
+    @Test
+    public void testTransitiveInvalidation() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit; b = a, y@mit; c = b; d = z@mit").evaluate(lists);
+        lists.members("c");
+        EmailSet d = lists.members("d");
+        long dVersion = lists.version("d");
+        long cVersion = lists.version("c");
+
+        Expression.parse("a = w@mit").evaluate(lists);
+
+        assert lists.version("c") > cVersion;
+        assertEquals(dVersion, lists.version("d"));
+        assertSame(d, lists.members("d"));
+        assertEquals(Set.of("w@mit", "y@mit"), EmailDictionary.decode(lists.members("c")));
+    }
+
+    // a list whose definition defines another list keeps applying that definition
+    @Test
+    public void testNestedDefinitionNotSkipped() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("c = x@mit; a = b = c").evaluate(lists);
+        lists.members("a");
+        Expression.parse("b = y@mit").evaluate(lists);
+        assertEquals(Set.of("y@mit"), EmailDictionary.decode(lists.members("b")));
+
+        lists.members("a");
+        lists.members("a");
+        assertEquals(Set.of("x@mit"), EmailDictionary.decode(lists.members("b")));
+    }
+}
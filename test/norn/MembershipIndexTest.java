@@ -0,0 +1,114 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for MembershipIndex
+ *
+ */
+public class MembershipIndexTest {
+
+    /*
+     * Partitions
+     *
+     *   listsContaining:
+     *       email in no list, one list, several lists; email never seen
+     *       lists defined before the index, after it
+     *       list redefined, removed, depends on a changed list
+     *
+     *   lookup: answers both for the same moment
+     *
+     *   unindexed:
+     *       no list defines lists, a list defines lists directly, through a list it reads
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // answers follow definitions made before and after the index, redefinitions and removals
+    @Test
+    public void testFollowsChanges() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("backend = a@mit, b@mit; frontend = c@mit; eng = backend, frontend").evaluate(lists);
+        MembershipIndex index = new MembershipIndex(lists);
+        assertEquals(Set.of("backend", "eng"), index.listsContaining("a@mit"));
+        assertEquals(Set.of(), index.listsContaining("never-seen@mit"));
+
+        Expression.parse("sales = a@mit, d@mit; org = eng, sales").evaluate(lists);
+        assertEquals(Set.of("backend", "eng", "sales", "org"), index.listsContaining("a@mit"));
+
+        Expression.parse("backend = b@mit").evaluate(lists);
+        assertEquals(Set.of("sales", "org"), index.listsContaining("a@mit"));
+        assertEquals(Set.of("backend", "eng", "org"), index.listsContaining("b@mit"));
+
+        lists.remove("sales");
+        assertEquals(Set.of(), index.listsContaining("a@mit"));
+        assertEquals(Set.of(), index.listsContaining("d@mit"));
+        assertEquals(Set.of(), index.unindexed());
+    }
+
+    // lists that define lists when evaluated are left out, and come back once they no longer do
+    @Test
+    public void testUnindexed() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit, (b = y@mit); c = a, z@mit; d = x@mit").evaluate(lists);
+        MembershipIndex index = new MembershipIndex(lists);
+        assertEquals(Set.of("d"), index.listsContaining("x@mit"));
+        assertEquals(Set.of("a", "c"), index.unindexed());
+        MembershipIndex.Answer answer = index.lookup("x@mit");
+        assertEquals(Set.of("d"), answer.lists());
+        assertEquals(Set.of("a", "c"), answer.unindexed());
+
+        Expression.parse("a = x@mit").evaluate(lists);
+        assertEquals(Set.of("a", "c", "d"), index.listsContaining("x@mit"));
+        assertEquals(Set.of(), index.unindexed());
+    }
+
+    // random edits keep the index equal to evaluating every list
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(25);
+        ListNamespace lists = new ListNamespace();
+        MembershipIndex index = new MembershipIndex(lists);
+        List<String> names = List.of("l0", "l1", "l2", "l3", "l4", "l5", "l6", "l7");
+        for (int round = 0; round < 150; round++) {
+            int i = random.nextInt(names.size());
+            if (random.nextInt(10) == 0) {
+                lists.remove(names.get(i));
+            } else {
+                String text = "u" + random.nextInt(6) + "@mit";
+                for (int j = 0; j < i; j++) {
+                    if (random.nextInt(3) == 0) {
+                        text = "(" + text + (random.nextBoolean() ? ", " : " ! ") + names.get(j) + ")";
+                    }
+                }
+                lists.put(names.get(i), Expression.parse(text));
+            }
+            if (round % 5 == 0) {
+                lists.members(names.get(random.nextInt(names.size())));
+            }
+            for (int u = 0; u < 6; u++) {
+                String email = "u" + u + "@mit";
+                Set<String> expected = new TreeSet<String>();
+                for (String name : Set.copyOf(lists.keySet())) {
+                    if (Expression.parse(name).evaluate(lists).contains(email)) {
+                        expected.add(name);
+                    }
+                }
+                assertEquals(expected, index.listsContaining(email), email);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for ParallelEngine and pipes run on it
+ *
+ */
+public class ParallelEngineTest {
+
+    /*
+     * Partitions
+     *
+     *   branches:
+     *       pipe of 2, chain of >2, pipe nested in parentheses, pipe inside a branch
+     *
+     *   checkPipes:
+     *       valid, branch reads a list another branch defines, two branches define the same list,
+     *       conflicting branches adjacent, not adjacent
+     *
+     *   invokeAll:
+     *       no task fails, a task throws, caller interrupted, called from a worker of the pool
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // chains and parenthesized pipes flatten into their branches, pipes inside a branch do not
+    @Test
+    public void testBranches() {
+        Parallel chain = (Parallel) Expression.parse("a | b | (c | d) | e ; (f | g)");
+        assertEquals(List.of(Expression.parse("a"), Expression.parse("b"), Expression.parse("c"),
+                Expression.parse("d"), Expression.parse("e ; (f | g)")), ParallelEngine.branches(chain));
+
+        Parallel pair = (Parallel) Expression.parse("a=x@mit | b");
+        assertEquals(List.of(Expression.parse("a=x@mit"), Expression.parse("b")), ParallelEngine.branches(pair));
+    }
+
+    // every branch of a chain runs, and lists defined by any of them are kept
+    @Test
+    public void testChainDefinesAll() {
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("a=x@mit | b=y@mit | c=z@mit | d=(w@mit, v@mit)").members(map);
+        assertEquals(Set.of("x@mit"), EmailDictionary.decode(map.get("a").members(map)));
+        assertEquals(Set.of("y@mit"), EmailDictionary.decode(map.get("b").members(map)));
+        assertEquals(Set.of("z@mit"), EmailDictionary.decode(map.get("c").members(map)));
+        assertEquals(Set.of("w@mit", "v@mit"), EmailDictionary.decode(map.get("d").members(map)));
+    }
+
+    // conflicts between branches that are not next to each other are found before anything runs
+    @Test
+    public void testInvalidPipes() {
+        Map<String, Expression> map = new ListNamespace();
+        Expression.parse("e = a").members(map);
+        assertThrows(RuntimeException.class, () -> Expression.parse("a=x@mit | b=y@mit | c=a").members(map));
+        assertThrows(RuntimeException.class, () -> Expression.parse("e | b=y@mit | a=x@mit").members(map));
+        assertThrows(RuntimeException.class, () -> Expression.parse("c=x@mit | b | c=y@mit").members(map));
+        assertEquals(null, map.get("b"));
+        assertEquals(null, map.get("c"));
+    }
+
+    // the first failure of a branch reaches the caller after every branch has finished
+    @Test
+    public void testExceptionPropagates() {
+        Map<String, Boolean> ran = new ConcurrentHashMap<String, Boolean>();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        tasks.add(() -> ran.put("first", true));
+        tasks.add(() -> {
+            throw new IllegalStateException("branch failed");
+        });
+        tasks.add(() -> ran.put("last", true));
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> ParallelEngine.invokeAll(tasks));
+        assertEquals("branch failed", thrown.getMessage());
+        assertEquals(Set.of("first", "last"), ran.keySet());
+    }
+
+    // an interrupted caller stops waiting and keeps its interrupt flag
+    @Test
+    public void testInterruptRestored() {
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(RuntimeException.class, () -> ParallelEngine.invokeAll(List.of(() -> { })));
+            assert Thread.currentThread().isInterrupted();
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    // pipes nested deeper than the pool is wide still finish
+    @Test
+    public void testNestedPipes() {
+        Map<String, Expression> map = new ListNamespace();
+        StringBuilder text = new StringBuilder("l0=x0@mit");
+        for (int i = 1; i < 4 * ParallelEngine.parallelism() + 4; i++) {
+            text = new StringBuilder("(" + text + ") ; (l" + i + "=x" + i + "@mit | m" + i + "=y" + i + "@mit)");
+        }
+        Expression.parse(text.toString()).members(map);
+        assertEquals(Set.of("x0@mit"), EmailDictionary.decode(map.get("l0").members(map)));
+        assertEquals(Set.of("y5@mit"), EmailDictionary.decode(map.get("m5").members(map)));
+    }
+}
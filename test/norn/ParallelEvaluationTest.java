@@ -0,0 +1,130 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for ParallelEvaluation
+ *
+ */
+public class ParallelEvaluationTest {
+
+    /*
+     * Partitions
+     *
+     *   concurrent:
+     *       map is a ListNamespace, another map
+     *       operands cost below threshold, one above, two above
+     *       operand members cached, not cached
+     *       operands read only, define a list, read a list defined by a definition
+     *
+     *   members, union, intersection, difference:
+     *       run sequentially, concurrently, split into key ranges
+     *       compiled, interpreted; shallow expression, deep chain of operations
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // only costly, read-only operands in a namespace run at the same time
+    @Test
+    public void testConcurrent() {
+        long before = ParallelEvaluation.getThreshold();
+        try {
+            ParallelEvaluation.setThreshold(3);
+            Map<String, Expression> map = new ListNamespace();
+            Expression.parse("a = x@mit, y@mit, z@mit").members(map);
+            Expression.parse("b = (x@mit, w@mit) ! (v@mit, u@mit)").members(map);
+            Expression.parse("c = e = y@mit").members(map);
+            List<Expression> ab = List.of(Expression.parse("a"), Expression.parse("b"));
+
+            if (ParallelEngine.parallelism() > 1) {
+                assert ParallelEvaluation.concurrent(ab, map);
+            }
+            assert !ParallelEvaluation.concurrent(List.of(Expression.parse("a"), Expression.parse("x@mit")), map);
+            assert !ParallelEvaluation.concurrent(List.of(Expression.parse("a"), Expression.parse("c")), map);
+            assert !ParallelEvaluation.concurrent(List.of(Expression.parse("a"), Expression.parse("d = b")), map);
+            assert !ParallelEvaluation.concurrent(ab, new HashMap<String, Expression>(map));
+
+            ((ListNamespace) map).members("a");
+            ((ListNamespace) map).members("b");
+            assert !ParallelEvaluation.concurrent(ab, map);
+        } finally {
+            ParallelEvaluation.setThreshold(before);
+        }
+    }
+
+    // with every operation run in parallel, results and definitions match sequential evaluation
+    @Test
+    public void testSameAsSequential() {
+        long before = ParallelEvaluation.getThreshold();
+        Random random = new Random(6130);
+        String[] leaves = {"a", "b", "c", "d", "x@mit", "y@mit", "z@mit", "(a, b, c)", "(b * c * d)"};
+        String[] operators = {",", "*", "!"};
+        try {
+            ParallelEvaluation.setThreshold(1);
+            for (int round = 0; round < 100; round++) {
+                Map<String, Expression> parallel = new ListNamespace();
+                Map<String, Expression> sequential = new HashMap<String, Expression>();
+                for (String definition : new String[] {"a = x@mit, y@mit", "b = y@mit, z@mit, w@mit", "c = a ! z@mit",
+                        "d = (e = a, v@mit), b"}) {
+                    Expression.parse(definition).members(parallel);
+                    Expression.parse(definition).members(sequential);
+                }
+                StringBuilder text = new StringBuilder(leaves[random.nextInt(leaves.length)]);
+                for (int i = 0; i < 4; i++) {
+                    text = new StringBuilder("(" + text + " " + operators[random.nextInt(operators.length)] + " "
+                            + leaves[random.nextInt(leaves.length)] + ")");
+                }
+                Expression expression = Expression.parse(text.toString());
+                assertEquals(EmailDictionary.decode(expression.members(sequential)),
+                        EmailDictionary.decode(expression.members(parallel)), text.toString());
+                assertEquals(Set.copyOf(sequential.keySet()), Set.copyOf(parallel.keySet()), text.toString());
+            }
+        } finally {
+            ParallelEvaluation.setThreshold(before);
+        }
+    }
+
+    // a deep chain is estimated once per evaluation, not again at every operation, so it takes about as
+    // long as on the sequential path
+    @Test
+    public void testDeepChain() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit; b = y@mit, z@mit").evaluate(lists);
+        Expression chain = ExpressionFactory.mailingList("a");
+        for (int i = 0; i < 1000; i++) {
+            Expression operand = i % 3 == 0 ? ExpressionFactory.mailingList("b") : ExpressionFactory.email("u" + i + "@mit");
+            chain = i % 2 == 0 ? ExpressionFactory.union(chain, operand) : ExpressionFactory.difference(chain, operand);
+        }
+        Map<String, Expression> sequential = new HashMap<String, Expression>(lists);
+        Set<String> expected = EmailDictionary.decode(chain.members(sequential));
+
+        long sequentialNanos = Long.MAX_VALUE;
+        long namespaceNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            chain.members(sequential);
+            sequentialNanos = Math.min(sequentialNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(expected, EmailDictionary.decode(ExpressionCompiler.compile(chain).members(lists)));
+            assertEquals(expected, EmailDictionary.decode(chain.members(lists)));
+            namespaceNanos = Math.min(namespaceNanos, (System.nanoTime() - start) / 2);
+        }
+        assert namespaceNanos < 10 * sequentialNanos + 50_000_000L
+                : "namespace " + namespaceNanos + "ns, sequential " + sequentialNanos + "ns";
+    }
+}
@@ -0,0 +1,105 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ *
+ * Tests for ParseCache
+ *
+ */
+public class ParseCacheTest {
+
+    /*
+     * Partitions
+     *
+     *   parse:
+     *       text cached, not cached, too long to cache
+     *       text valid, invalid
+     *       cache below capacity, full
+     *       entry read once (probation), read again (protected)
+     *
+     *   hits, misses, evictions, size:
+     *       0, >0
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // miss then hit, counted
+    @Test
+    public void testHitAndMiss() throws UnableToParseException {
+        ParseCache cache = new ParseCache(16);
+        assertEquals(0, cache.size());
+        Expression first = cache.parse("a, b ! c");
+        Expression second = cache.parse("a, b ! c");
+        assertSame(first, second);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.size());
+        assertEquals(Expression.parse("a, b ! c"), first);
+    }
+
+    // parse errors are thrown every time and never cached
+    @Test
+    public void testErrorsNotCached() {
+        ParseCache cache = new ParseCache(16);
+        assertThrows(UnableToParseException.class, () -> cache.parse("a b"));
+        assertThrows(UnableToParseException.class, () -> cache.parse("a b"));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.misses());
+    }
+
+    // a full cache evicts one-off texts before texts read more than once
+    @Test
+    public void testEvictsOneOffsFirst() throws UnableToParseException {
+        ParseCache cache = new ParseCache(16);
+        List<String> polled = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            polled.add("polled" + i);
+        }
+        for (String text : polled) {
+            cache.parse(text);
+            cache.parse(text);
+        }
+        long hitsBefore = cache.hits();
+        for (int i = 0; i < 1000; i++) {
+            cache.parse("once" + i);
+        }
+        assert cache.evictions() > 0;
+        assert cache.size() <= 16 * 2;
+
+        int protectedHits = 0;
+        for (String text : polled) {
+            long before = cache.hits();
+            cache.parse(text);
+            protectedHits += cache.hits() - before;
+        }
+        assert cache.hits() > hitsBefore;
+        assert protectedHits > 0;
+    }
+
+    // very long texts are parsed but not kept
+    @Test
+    public void testLongTextNotCached() throws UnableToParseException {
+        ParseCache cache = new ParseCache(16);
+        StringBuilder text = new StringBuilder("x0@mit");
+        for (int i = 1; i < 10000; i++) {
+            text.append(", x").append(i).append("@mit");
+        }
+        Expression expression = cache.parse(text.toString());
+        assert expression instanceof NaryUnion;
+        assertEquals(0, cache.size());
+    }
+}
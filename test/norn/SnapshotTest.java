@@ -0,0 +1,148 @@
+package norn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for Snapshot
+ *
+ */
+public class SnapshotTest {
+
+    /*
+     * Partitions
+     *
+     *   save:
+     *       map empty, not empty
+     *       file exists, does not exist
+     *
+     *   load:
+     *       file with a footer that matches, does not match; without a footer (legacy)
+     *       base text, binary; with no delta, deltas, deltas of an older base
+     *
+     *   saveDelta:
+     *       lists defined, redefined, removed since the checkpoint; nothing changed
+     *       file has a base, has none
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // what is saved loads back to the same lists, and saving again replaces the file, leaving nothing behind
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path directory = Files.createTempDirectory("snapshot");
+        Path file = directory.resolve("lists");
+        Map<String, Expression> saved = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit; b = a ! y@mit; c = (a * b), z@mit").members(saved);
+        Snapshot.save(new ListNamespace(), file);
+        Snapshot.save(saved, file);
+
+        Map<String, Expression> loaded = new ListNamespace();
+        Snapshot.load(file, loaded);
+        assertEquals(saved.keySet(), loaded.keySet());
+        for (String name : saved.keySet()) {
+            assertEquals(saved.get(name).evaluate(saved), loaded.get(name).evaluate(loaded), name);
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(file), files.toList(), "no temporary file left");
+        }
+        List<String> lines = Files.readAllLines(file, UTF_8);
+        assert lines.get(lines.size() - 1).startsWith("#norn-crc32 ") : lines;
+    }
+
+    // a damaged snapshot is refused before any of it is applied
+    @Test
+    public void testCorrupt() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists");
+        Map<String, Expression> saved = new ListNamespace();
+        Expression.parse("a = x@mit; b = y@mit").members(saved);
+        Snapshot.save(saved, file);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 4] = (byte) (bytes[bytes.length / 4] == 'x' ? 'w' : 'x');
+        Files.write(file, bytes);
+
+        Map<String, Expression> loaded = new ListNamespace();
+        assertThrows(IOException.class, () -> Snapshot.load(file, loaded));
+        assertEquals(Map.of(), loaded);
+    }
+
+    // a file saved before snapshots had a footer still loads
+    @Test
+    public void testLegacy() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists");
+        Files.write(file, List.of("a = x@mit, y@mit", "b = a ! x@mit"), UTF_8);
+        Map<String, Expression> loaded = new ListNamespace();
+        Snapshot.load(file, loaded);
+        assertEquals(Set.of("y@mit"), Expression.parse("b").evaluate(loaded));
+    }
+
+    // deltas only hold what changed since the previous checkpoint, and stack on their base when loading
+    @Test
+    public void testDeltas() throws IOException {
+        for (boolean binary : new boolean[] { false, true }) {
+            Path file = Files.createTempDirectory("snapshot").resolve("lists");
+            ListNamespace lists = new ListNamespace();
+            Expression.parse("a = x@mit; b = y@mit; c = a, b").members(lists);
+            if (binary) {
+                Snapshot.saveBinary(lists, file, true);
+            } else {
+                Snapshot.save(lists, file);
+            }
+
+            Expression.parse("a = z@mit; d = w@mit").members(lists);
+            Snapshot.saveDelta(lists, file);
+            List<String> first = Files.readAllLines(file.resolveSibling("lists.delta-1"), UTF_8);
+            assertEquals(4, first.size(), "base, a, d, footer");
+            lists.remove("b");
+            Snapshot.saveDelta(lists, file);
+            Snapshot.saveDelta(lists, file);
+            assert Files.exists(file.resolveSibling("lists.delta-2"));
+            assert !Files.exists(file.resolveSibling("lists.delta-3")) : "nothing changed";
+
+            ListNamespace loaded = new ListNamespace();
+            Snapshot.load(file, loaded);
+            assertEquals(Set.of("a", "c", "d"), loaded.keySet());
+            assertEquals(Set.of("z@mit"), Expression.parse("c").evaluate(loaded));
+
+            // a full save starts a new base, older deltas are gone
+            Snapshot.save(lists, file);
+            assert !Files.exists(file.resolveSibling("lists.delta-1"));
+        }
+    }
+
+    // deltas left by an older base are not stacked on a newer one
+    @Test
+    public void testStaleDelta() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("lists");
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit").members(lists);
+        Snapshot.save(lists, file);
+        Expression.parse("a = y@mit").members(lists);
+        Snapshot.saveDelta(lists, file);
+        Path delta = file.resolveSibling("lists.delta-1");
+        byte[] stale = Files.readAllBytes(delta);
+
+        Expression.parse("a = z@mit").members(lists);
+        Snapshot.save(lists, file);
+        Files.write(delta, stale);
+        ListNamespace loaded = new ListNamespace();
+        Snapshot.load(file, loaded);
+        assertEquals(Set.of("z@mit"), Expression.parse("a").evaluate(loaded));
+    }
+}
@@ -0,0 +1,185 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for ViewMaintenance, through the members a ListNamespace keeps
+ *
+ */
+public class ViewMaintenanceTest {
+
+    /*
+     * Partitions
+     *
+     *   maintainable:
+     *       emails, lists, empty set, binary and n-ary set operations; list definitions, sequence, pipe
+     *
+     *   maintained list:
+     *       reads the changed list through union, intersection, difference (either side)
+     *       depends on it directly, transitively, through several paths
+     *       emails enter, leave, both
+     *
+     *   not maintained:
+     *       redefined list was not cached, dependent was not cached, dependent reads an uncached list,
+     *       dependent defines lists, dependents form a cycle
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // covers emails, lists, empty set, set operations, list definitions, sequence, pipe
+    @Test
+    public void testMaintainable() {
+        assert ViewMaintenance.maintainable(Expression.parse("(a, x@mit) * b ! (c, y@mit)"));
+        assert ViewMaintenance.maintainable(ExpressionFactory.naryUnion(List.of(
+                ExpressionFactory.mailingList("a"), ExpressionFactory.mailingList("b"), ExpressionFactory.empty())));
+        assert !ViewMaintenance.maintainable(Expression.parse("a, (b = x@mit)"));
+        assert !ViewMaintenance.maintainable(Expression.parse("a; b"));
+        assert !ViewMaintenance.maintainable(Expression.parse("a | b"));
+    }
+
+    // a hierarchy stays cached when a leaf changes, and agrees with evaluating it again
+    @Test
+    public void testHierarchy() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("backend = a@mit, b@mit; frontend = c@mit; sales = d@mit, e@mit;"
+                + "eng = backend, frontend; org = eng, sales; quiet = org ! (sales * e@mit)").evaluate(lists);
+        lists.members("quiet");
+
+        Expression.parse("backend = b@mit, f@mit").evaluate(lists);
+
+        assertEquals(2, lists.cachedSize("backend"));
+        assertEquals(3, lists.cachedSize("eng"));
+        assertEquals(5, lists.cachedSize("org"));
+        assertEquals(4, lists.cachedSize("quiet"));
+        assertEquals(Set.of("b@mit", "c@mit", "d@mit", "f@mit", "e@mit"), Expression.parse("org").evaluate(lists));
+        assertMatchesFresh(lists);
+    }
+
+    // intersection and difference on either side, and a list reached through several paths
+    @Test
+    public void testRules() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit, y@mit, z@mit; b = y@mit, z@mit, w@mit; both = a * b; "
+                + "only = a ! b; other = b ! a; twice = both, only, a").evaluate(lists);
+        for (String name : List.of("both", "only", "other", "twice")) {
+            lists.members(name);
+        }
+
+        Expression.parse("b = x@mit, w@mit, v@mit").evaluate(lists);
+
+        for (String name : List.of("b", "both", "only", "other", "twice")) {
+            assert lists.cachedSize(name) >= 0 : name;
+        }
+        assertEquals(Set.of("x@mit"), Expression.parse("both").evaluate(lists));
+        assertEquals(Set.of("y@mit", "z@mit"), Expression.parse("only").evaluate(lists));
+        assertEquals(Set.of("w@mit", "v@mit"), Expression.parse("other").evaluate(lists));
+        assertMatchesFresh(lists);
+    }
+
+    // lists that cannot be maintained are evaluated again, and still correct
+    @Test
+    public void testNotMaintained() {
+        ListNamespace lists = new ListNamespace();
+        Expression.parse("a = x@mit; b = a, y@mit; c = a, (d = z@mit); e = a, f; g = a").evaluate(lists);
+        lists.members("b");
+        lists.members("c");
+        lists.members("e");
+        // f is no longer cached, e is cached again
+        lists.put("f", Expression.parse("w@mit; w@mit"));
+        lists.prime("e", EmailDictionary.encode(Set.of("x@mit", "w@mit")));
+
+        Expression.parse("a = v@mit").evaluate(lists);
+
+        assertEquals(2, lists.cachedSize("b"));
+        assertEquals(-1, lists.cachedSize("c"), "defines lists");
+        assertEquals(-1, lists.cachedSize("e"), "reads a list that is not cached");
+        assertEquals(-1, lists.cachedSize("g"), "was never read");
+        assertEquals(Set.of("v@mit", "z@mit"), Expression.parse("c").evaluate(lists));
+        assertEquals(Set.of("v@mit", "w@mit"), Expression.parse("e").evaluate(lists));
+
+        // a list that is not cached, redefined, is not computed either
+        ListNamespace fresh = new ListNamespace();
+        Expression.parse("a = x@mit; b = a").evaluate(fresh);
+        fresh.members("b");
+        fresh.put("a", Expression.parse("x@mit; x@mit"));
+        Expression.parse("a = y@mit").evaluate(fresh);
+        assertEquals(-1, fresh.cachedSize("a"));
+        assertEquals(-1, fresh.cachedSize("b"));
+        assertEquals(Set.of("y@mit"), Expression.parse("b").evaluate(fresh));
+    }
+
+    // random edits of a layered hierarchy keep every cached list equal to a fresh evaluation
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(23);
+        ListNamespace lists = new ListNamespace();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            String name = "l" + i;
+            lists.put(name, randomDefinition(random, names));
+            names.add(name);
+        }
+        for (String name : names) {
+            lists.members(name);
+        }
+        for (int round = 0; round < 200; round++) {
+            int index = random.nextInt(names.size());
+            lists.put(names.get(index), randomDefinition(random, names.subList(0, index)));
+            if (round % 7 == 0) {
+                lists.members(names.get(random.nextInt(names.size())));
+            }
+            assertMatchesFresh(lists);
+        }
+    }
+
+    // a definition of set operations on earlier lists and emails u0..u9
+    private static Expression randomDefinition(Random random, List<String> earlier) {
+        Expression expr = operand(random, earlier);
+        for (int i = random.nextInt(3); i >= 0; i--) {
+            Expression other = operand(random, earlier);
+            switch (random.nextInt(3)) {
+            case 0:
+                expr = ExpressionFactory.union(expr, other);
+                break;
+            case 1:
+                expr = ExpressionFactory.intersection(expr, other);
+                break;
+            default:
+                expr = ExpressionFactory.difference(expr, other);
+            }
+        }
+        return expr;
+    }
+
+    private static Expression operand(Random random, List<String> earlier) {
+        if (earlier.isEmpty() || random.nextBoolean()) {
+            return ExpressionFactory.email("u" + random.nextInt(10) + "@mit");
+        }
+        return ExpressionFactory.mailingList(earlier.get(random.nextInt(earlier.size())));
+    }
+
+    // every cached list has the members a namespace without cache would compute
+    private static void assertMatchesFresh(ListNamespace lists) {
+        ListNamespace fresh = new ListNamespace();
+        fresh.putAll(lists);
+        for (String name : Set.copyOf(lists.keySet())) {
+            if (lists.cachedSize(name) >= 0) {
+                assertEquals(EmailDictionary.decode(fresh.members(name)), EmailDictionary.decode(lists.cached(name)),
+                        name);
+            }
+        }
+    }
+}
@@ -11,9 +11,20 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 import org.junit.jupiter.api.Test;
@@ -29,6 +40,19 @@ public class WebServerTest {
       *
       * eval request:
       *      expression is valid, not valid
+      *      one request at a time, concurrent requests
+      *
+      * api eval request:
+      *      format JSON, NDJSON (query or Accept header)
+      *      expression valid, not valid, missing, with conflicting definitions
+      *      method GET, other
+      *
+      * log:
+      *      server without a log, with one; restarted
+      *
+      * api batch request:
+      *      items read only, define lists; valid, not valid, blank lines
+      *      method POST, other
       */
    
     // Manual tests
@@ -82,6 +106,36 @@ public class WebServerTest {
     }
 
 
+    // concurrent requests each get only their own visualization
+    @Test
+    public void testEvalConcurrent() throws IOException, InterruptedException, ExecutionException {
+        final WebServer server = new WebServer(0);
+        server.start();
+        final ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> pages = new ArrayList<Future<String>>();
+            for (int i = 0; i < 16; i++) {
+                final URL url = new URL("http://localhost:" + server.port() + "/eval/x" + i + "@mit,y" + i + "@mit");
+                pages.add(clients.submit(() -> {
+                    try (InputStream input = url.openStream()) {
+                        return new String(input.readAllBytes(), UTF_8);
+                    }
+                }));
+            }
+            for (int i = 0; i < 16; i++) {
+                final String page = pages.get(i).get();
+                for (int j = 0; j < 16; j++) {
+                    assertEquals(i == j, page.contains(">x" + j + "@mit<"), "request " + i + " shows x" + j + "@mit");
+                }
+                assertEquals(1, page.split("<svg ", -1).length - 1, "one tree");
+                assert page.trim().endsWith("</svg>");
+            }
+        } finally {
+            clients.shutdown();
+            server.stop();
+        }
+    }
+
     //This tests for input expression invalid response
     @Test
     public void testLookInValid() throws IOException, URISyntaxException {
@@ -99,4 +153,176 @@ public class WebServerTest {
         server.stop();
     }
 
+    // /api/eval answers members only, as JSON by default or as NDJSON
+    @Test
+    public void testApiEvalFormats() throws IOException {
+        final WebServer server = new WebServer(0);
+        server.start();
+        try {
+            final String base = "http://localhost:" + server.port() + "/api/eval";
+            final HttpURLConnection json = (HttpURLConnection) new URL(base + "/b@mit,a@mit").openConnection();
+            assertEquals(200, json.getResponseCode(), "response code");
+            assertEquals("2", json.getHeaderField("X-Norn-Size"));
+            final String body = read(json);
+            assert body.startsWith("{\"expression\":") : body;
+            assert body.contains("\"size\":2,\"parseMicros\":") : body;
+            assert body.trim().endsWith(",\"members\":[\"a@mit\",\"b@mit\"]}") : body;
+
+            final HttpURLConnection query = (HttpURLConnection) new URL(base + "?format=ndjson&expr=c%40mit%2Ca%40mit").openConnection();
+            final String[] lines = read(query).split("\n");
+            assertEquals(3, lines.length);
+            assert lines[0].contains("\"size\":2") : lines[0];
+            assertEquals("\"a@mit\"", lines[1]);
+            assertEquals("\"c@mit\"", lines[2]);
+
+            final HttpURLConnection accept = (HttpURLConnection) new URL(base + "/x@mit*y@mit").openConnection();
+            accept.setRequestProperty("Accept", "application/x-ndjson");
+            assert accept.getContentType().startsWith("application/x-ndjson");
+            assertEquals(1, read(accept).split("\n").length, "metadata only");
+        } finally {
+            server.stop();
+        }
+    }
+
+    // /api/eval reports errors with their status code and a JSON body
+    @Test
+    public void testApiEvalErrors() throws IOException {
+        final WebServer server = new WebServer(0);
+        server.start();
+        try {
+            final String base = "http://localhost:" + server.port() + "/api/eval";
+            final HttpURLConnection invalid = (HttpURLConnection) new URL(base + "/@").openConnection();
+            assertEquals(400, invalid.getResponseCode(), "response code");
+            assert read(invalid).startsWith("{\"error\":");
+
+            assertEquals(400, ((HttpURLConnection) new URL(base).openConnection()).getResponseCode(), "missing");
+
+            final HttpURLConnection cycle = (HttpURLConnection) new URL(base + "/x=y;y=x").openConnection();
+            assertEquals(409, cycle.getResponseCode(), "response code");
+
+            final HttpURLConnection post = (HttpURLConnection) new URL(base + "/a@mit").openConnection();
+            post.setRequestMethod("POST");
+            assertEquals(405, post.getResponseCode(), "response code");
+            assertEquals("GET", post.getHeaderField("Allow"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    // /api/contains answers for one email, defines lists like /api/eval and reports bad requests
+    @Test
+    public void testApiContains() throws IOException {
+        final WebServer server = new WebServer(0);
+        server.start();
+        try {
+            final String base = "http://localhost:" + server.port() + "/api/contains";
+            final HttpURLConnection define = (HttpURLConnection) new URL(
+                    base + "?email=x@mit&expr=a+%3D+x@mit,+y@mit").openConnection();
+            assertEquals(200, define.getResponseCode(), "response code");
+            assertEquals("true", define.getHeaderField("X-Norn-Member"));
+            final String body = read(define);
+            assert body.startsWith("{\"expression\":\"(a = (x@mit, y@mit))\",\"email\":\"x@mit\",\"member\":true,") : body;
+
+            final HttpURLConnection miss = (HttpURLConnection) new URL(base + "?expr=a+!+y@mit&email=y@mit").openConnection();
+            assertEquals(200, miss.getResponseCode(), "response code");
+            assert read(miss).contains("\"member\":false") : "y@mit is taken out";
+
+            assertEquals(400, ((HttpURLConnection) new URL(base + "?expr=a").openConnection()).getResponseCode(),
+                    "missing email");
+            assertEquals(400, ((HttpURLConnection) new URL(base + "?email=x@mit&expr=@").openConnection())
+                    .getResponseCode(), "does not parse");
+            assertEquals(409, ((HttpURLConnection) new URL(base + "?email=x@mit&expr=x%3Dy;y%3Dx").openConnection())
+                    .getResponseCode(), "cycle");
+        } finally {
+            server.stop();
+        }
+    }
+
+    // /api/lists answers from the index as lists change, and names the lists it does not cover
+    @Test
+    public void testApiLists() throws IOException {
+        final WebServer server = new WebServer(0);
+        server.start();
+        try {
+            final String base = "http://localhost:" + server.port();
+            read((HttpURLConnection) new URL(base + "/api/eval?expr=" + URLEncoder.encode(
+                    "a = x@mit, y@mit; b = a ! y@mit; c = y@mit, (d = x@mit)", UTF_8)).openConnection());
+            final HttpURLConnection first = (HttpURLConnection) new URL(base + "/api/lists?email=x@mit").openConnection();
+            assertEquals(200, first.getResponseCode(), "response code");
+            final String body = read(first);
+            assert body.startsWith("{\"email\":\"x@mit\",\"lists\":[\"a\",\"b\",\"d\"],\"unindexed\":[\"c\"],") : body;
+
+            read((HttpURLConnection) new URL(base + "/api/eval?expr=" + URLEncoder.encode("a = y@mit", UTF_8))
+                    .openConnection());
+            assert read((HttpURLConnection) new URL(base + "/api/lists/x@mit").openConnection())
+                    .startsWith("{\"email\":\"x@mit\",\"lists\":[\"d\"],");
+            assertEquals(Set.of("a"), server.listsContaining("y@mit"), "c is not covered");
+
+            assertEquals(400, ((HttpURLConnection) new URL(base + "/api/lists").openConnection()).getResponseCode(),
+                    "missing email");
+        } finally {
+            server.stop();
+        }
+    }
+
+    // /api/batch answers every line in order, definitions apply to the lines after them, errors do not stop it
+    @Test
+    public void testApiBatch() throws IOException {
+        final WebServer server = new WebServer(0);
+        server.start();
+        try {
+            final HttpURLConnection post = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/api/batch").openConnection();
+            post.setRequestMethod("POST");
+            post.setDoOutput(true);
+            try (OutputStream body = post.getOutputStream()) {
+                body.write("a = x@mit, y@mit\na\n@\n\na * y@mit\na = z@mit\na\nb = c; c = b\na, b\n".getBytes(UTF_8));
+            }
+            assertEquals(200, post.getResponseCode(), "response code");
+            final String[] lines = read(post).split("\n");
+            assertEquals(8, lines.length);
+            assert lines[0].startsWith("{\"line\":1,") && lines[0].endsWith("\"members\":[\"x@mit\",\"y@mit\"]}") : lines[0];
+            assert lines[1].startsWith("{\"line\":2,") && lines[1].contains("\"size\":2") : lines[1];
+            assertEquals("{\"line\":3,\"status\":400,\"error\":\"expression does not parse\"}", lines[2]);
+            assert lines[3].startsWith("{\"line\":5,") && lines[3].endsWith("[\"y@mit\"]}") : lines[3];
+            assert lines[5].startsWith("{\"line\":7,") && lines[5].endsWith("[\"z@mit\"]}") : lines[5];
+            assert lines[6].startsWith("{\"line\":8,\"status\":409,") : lines[6];
+            assert lines[7].startsWith("{\"line\":9,") && lines[7].endsWith("[\"z@mit\"]}") : lines[7];
+
+            final HttpURLConnection get = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/api/batch").openConnection();
+            assertEquals(405, get.getResponseCode(), "response code");
+        } finally {
+            server.stop();
+        }
+    }
+
+    // lists defined through a server with a log are there again after a restart
+    @Test
+    public void testLogRestart() throws IOException {
+        final Path directory = Files.createTempDirectory("wal");
+        final WebServer server = new WebServer(0, directory);
+        server.start();
+        try {
+            final URL define = new URL("http://localhost:" + server.port() + "/api/eval?expr=a%3Dx%40mit%2Cy%40mit");
+            assertEquals(200, ((HttpURLConnection) define.openConnection()).getResponseCode(), "response code");
+        } finally {
+            server.stop();
+        }
+
+        final WebServer restarted = new WebServer(0, directory);
+        restarted.start();
+        try {
+            final HttpURLConnection read = (HttpURLConnection) new URL("http://localhost:" + restarted.port() + "/api/eval/a").openConnection();
+            assertEquals("2", read.getHeaderField("X-Norn-Size"));
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        final InputStream input = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        try (input) {
+            return new String(input.readAllBytes(), UTF_8);
+        }
+    }
+
 }
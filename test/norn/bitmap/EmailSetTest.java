@@ -0,0 +1,234 @@
+package norn.bitmap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Tests for EmailSet
+ *
+ */
+public class EmailSetTest {
+
+    /*
+     * Partitions
+     *
+     *   or, and, andNot:
+     *       either side empty, both non empty
+     *       chunks only on one side, chunks on both sides
+     *       chunk stored as array, bitmap, runs (and mixes of those)
+     *       result chunk empty, non empty
+     *
+     *   contains:
+     *       id in set, not in set, in a missing chunk, negative
+     *
+     *   builder:
+     *       ids added ascending, unordered, duplicated
+     *
+     *   cursor, EmailCursors:
+     *       read with next only, with advance to ids in and out of the set, past the end
+     *       union, intersection, difference of cursors, nested
+     *
+     *   union, intersection of many sets and cursors:
+     *       1, 2, >2 operands, some empty, sharing chunks
+     *
+     *   operations split into key ranges on a pool:
+     *       too few chunks to split, many chunks, one side empty
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // empty sets
+    @Test
+    public void testEmpty() {
+        EmailSet a = EmailSet.of(1, 2, 3);
+        assertEquals(a, a.or(EmailSet.empty()));
+        assertEquals(a, EmailSet.empty().or(a));
+        assertEquals(EmailSet.empty(), a.and(EmailSet.empty()));
+        assertEquals(a, a.andNot(EmailSet.empty()));
+        assertEquals(EmailSet.empty(), a.andNot(a));
+        assert EmailSet.empty().isEmpty();
+    }
+
+    // unordered, duplicated ids, contains in and out of chunks, negative ids
+    @Test
+    public void testBuilderAndContains() {
+        EmailSet a = EmailSet.of(70000, 5, 5, 3, 70000, 1 << 20);
+        assertEquals(4, a.cardinality());
+        assert a.contains(5);
+        assert a.contains(70000);
+        assert a.contains(1 << 20);
+        assert !a.contains(4);
+        assert !a.contains(200000);
+        assert !a.contains(-1);
+        assertEquals("[3, 5, 70000, 1048576]", a.toString());
+    }
+
+    // arrays, bitmaps and runs combined with each other, checked against TreeSet
+    @Test
+    public void testRandomAgainstTreeSet() {
+        Random random = new Random(6031);
+        for (int round = 0; round < 40; round++) {
+            SortedSet<Integer> left = randomIds(random);
+            SortedSet<Integer> right = randomIds(random);
+            EmailSet a = build(left);
+            EmailSet b = build(right);
+
+            SortedSet<Integer> union = new TreeSet<Integer>(left);
+            union.addAll(right);
+            SortedSet<Integer> intersection = new TreeSet<Integer>(left);
+            intersection.retainAll(right);
+            SortedSet<Integer> difference = new TreeSet<Integer>(left);
+            difference.removeAll(right);
+
+            assertEquals(build(union), a.or(b));
+            assertEquals(union.toString(), a.or(b).toString());
+            assertEquals(intersection.toString(), a.and(b).toString());
+            assertEquals(difference.toString(), a.andNot(b).toString());
+            assertEquals(intersection.size(), a.and(b).cardinality());
+        }
+    }
+
+    // set cursors skipping inside a chunk, across chunks and past the end
+    @Test
+    public void testSetCursorAdvance() {
+        EmailCursor cursor = EmailSet.of(3, 9, 70000, 200000).cursor();
+        assertEquals(3, cursor.next());
+        assertEquals(9, cursor.advance(4));
+        assertEquals(70000, cursor.advance(9));
+        assertEquals(200000, cursor.advance(131072));
+        assertEquals(EmailCursor.END, cursor.advance(200001));
+        assertEquals(EmailCursor.END, cursor.next());
+    }
+
+    // merged cursors give the same ids as the set operations
+    @Test
+    public void testCursorsAgainstSets() {
+        Random random = new Random(6032);
+        for (int round = 0; round < 20; round++) {
+            EmailSet a = build(randomIds(random));
+            EmailSet b = build(randomIds(random));
+            EmailSet c = build(randomIds(random));
+
+            assertEquals(a.or(b), EmailCursors.materialize(EmailCursors.union(a.cursor(), b.cursor())));
+            assertEquals(a.and(b), EmailCursors.materialize(EmailCursors.intersection(a.cursor(), b.cursor())));
+            assertEquals(a.andNot(b), EmailCursors.materialize(EmailCursors.difference(a.cursor(), b.cursor())));
+
+            EmailCursor nested = EmailCursors.difference(
+                    EmailCursors.intersection(EmailCursors.union(a.cursor(), b.cursor()), c.cursor()),
+                    EmailCursors.intersection(a.cursor(), b.cursor()));
+            assertEquals(a.or(b).and(c).andNot(a.and(b)), EmailCursors.materialize(nested));
+        }
+    }
+
+    // k-way union and intersection of sets and of cursors agree with folding the binary operations
+    @Test
+    public void testManyOperands() {
+        Random random = new Random(6033);
+        for (int k = 1; k <= 6; k++) {
+            List<EmailSet> sets = new ArrayList<EmailSet>();
+            List<EmailCursor> unionCursors = new ArrayList<EmailCursor>();
+            List<EmailCursor> intersectionCursors = new ArrayList<EmailCursor>();
+            EmailSet union = EmailSet.empty();
+            EmailSet intersection = null;
+            for (int i = 0; i < k; i++) {
+                EmailSet set = (i == 3) ? EmailSet.empty() : build(randomIds(random)).or(EmailSet.of(42, 70000));
+                sets.add(set);
+                unionCursors.add(set.cursor());
+                intersectionCursors.add(set.cursor());
+                union = union.or(set);
+                intersection = (intersection == null) ? set : intersection.and(set);
+            }
+            assertEquals(union, EmailSet.union(sets));
+            assertEquals(intersection, EmailSet.intersection(sets));
+            assertEquals(union, EmailCursors.materialize(EmailCursors.union(unionCursors)));
+            assertEquals(intersection, EmailCursors.materialize(EmailCursors.intersection(intersectionCursors)));
+        }
+        assertEquals(EmailSet.empty(), EmailSet.union(List.of()));
+    }
+
+    // operations split into key ranges on a pool agree with the sequential ones
+    @Test
+    public void testRangeSplitOperations() {
+        Random random = new Random(6034);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int round = 0; round < 10; round++) {
+                EmailSet a = build(manyChunks(random));
+                EmailSet b = build(manyChunks(random));
+                EmailSet c = round == 0 ? EmailSet.empty() : build(manyChunks(random));
+                assertEquals(a.or(b), a.or(b, pool));
+                assertEquals(a.and(b), a.and(b, pool));
+                assertEquals(a.andNot(b), a.andNot(b, pool));
+                assertEquals(c.andNot(a), c.andNot(a, pool));
+                assertEquals(EmailSet.union(List.of(a, b, c)), EmailSet.union(List.of(a, b, c), pool));
+                assertEquals(EmailSet.intersection(List.of(a, b, c)), EmailSet.intersection(List.of(a, b, c), pool));
+                assertEquals(a.or(b).cardinality(), a.or(b, pool).cardinality());
+            }
+            EmailSet small = EmailSet.of(1, 70000);
+            assertEquals(small.or(EmailSet.of(2)), small.or(EmailSet.of(2), pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // ids spread over up to 64 chunks
+    private static SortedSet<Integer> manyChunks(Random random) {
+        SortedSet<Integer> ids = new TreeSet<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            ids.add(random.nextInt(64 << 16));
+        }
+        int start = random.nextInt(40 << 16);
+        for (int i = start; i < start + random.nextInt(1 << 18); i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    // mix of sparse, dense and consecutive chunks
+    private static SortedSet<Integer> randomIds(Random random) {
+        SortedSet<Integer> ids = new TreeSet<Integer>();
+        for (int chunk = 0; chunk < 4; chunk++) {
+            int base = random.nextInt(6) << 16;
+            switch (random.nextInt(3)) {
+            case 0:
+                for (int i = 0; i < 100; i++) {
+                    ids.add(base + random.nextInt(1 << 16));
+                }
+                break;
+            case 1:
+                for (int i = 0; i < 10000; i++) {
+                    ids.add(base + random.nextInt(1 << 16));
+                }
+                break;
+            default:
+                int start = random.nextInt(1 << 15);
+                for (int i = start; i < start + random.nextInt(20000); i++) {
+                    ids.add(base + i);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static EmailSet build(SortedSet<Integer> ids) {
+        EmailSet.Builder builder = new EmailSet.Builder();
+        for (int id : ids) {
+            builder.add(id);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,104 @@
+package norn.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import norn.web.RequestExecution.Mode;
+
+/**
+ *
+ * Tests for RequestExecution
+ *
+ */
+public class RequestExecutionTest {
+
+    /*
+     * Partitions
+     *
+     *   mode:
+     *       VIRTUAL on a JVM with virtual threads, without them; POOL
+     *
+     *   evaluate:
+     *       below the cap, at the cap, work throws
+     */
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // virtual threads are used when the JVM has them, the pool otherwise
+    @Test
+    public void testMode() {
+        RequestExecution virtual = new RequestExecution(Mode.VIRTUAL, 4, 2);
+        RequestExecution pool = new RequestExecution(Mode.POOL, 4, 2);
+        try {
+            assertEquals(Runtime.version().feature() >= 21 ? Mode.VIRTUAL : Mode.POOL, virtual.mode());
+            assertEquals(Mode.POOL, pool.mode());
+            assertThrows(IllegalArgumentException.class, () -> new RequestExecution(Mode.POOL, 4, 0));
+        } finally {
+            virtual.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    // no more than the cap evaluate at once, whatever the number of threads
+    @Test
+    public void testCap() throws InterruptedException, ExecutionException {
+        for (Mode mode : Mode.values()) {
+            RequestExecution execution = new RequestExecution(mode, 8, 2);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger most = new AtomicInteger();
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            try {
+                for (int i = 0; i < 8; i++) {
+                    done.add(execution.executor().submit(() -> {
+                        execution.evaluate(() -> {
+                            most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            try {
+                                Thread.sleep(20);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            running.decrementAndGet();
+                        });
+                        return null;
+                    }));
+                }
+                for (Future<?> future : done) {
+                    future.get();
+                }
+            } finally {
+                execution.shutdown();
+            }
+            assert most.get() <= 2;
+            assertEquals(0, execution.runningEvaluations());
+        }
+    }
+
+    // a failed evaluation gives its place back
+    @Test
+    public void testFailureReleases() {
+        RequestExecution execution = new RequestExecution(Mode.POOL, 1, 1);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertThrows(IOException.class, () -> execution.evaluate(() -> {
+                    throw new IOException("broken exchange");
+                }));
+            }
+            assertEquals(0, execution.runningEvaluations());
+        } finally {
+            execution.shutdown();
+        }
+    }
+}